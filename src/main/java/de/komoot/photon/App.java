@@ -3,17 +3,26 @@ package de.komoot.photon;
 
 import com.beust.jcommander.JCommander;
 import com.beust.jcommander.ParameterException;
+import de.komoot.photon.elasticsearch.BulkSender;
+import de.komoot.photon.elasticsearch.CountryIndices;
+import de.komoot.photon.elasticsearch.CountryRouting;
+import de.komoot.photon.elasticsearch.DumpLoader;
 import de.komoot.photon.elasticsearch.Server;
+import de.komoot.photon.nominatim.ImportProfile;
 import de.komoot.photon.nominatim.NominatimConnector;
 import de.komoot.photon.nominatim.NominatimUpdater;
 import de.komoot.photon.utils.CorsFilter;
 import lombok.extern.slf4j.Slf4j;
 import org.elasticsearch.client.Client;
+import org.json.JSONObject;
 import spark.Request;
 import spark.Response;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static spark.Spark.*;
 
@@ -30,6 +39,18 @@ public class App {
             if (args.isCorsAnyOrigin() && args.getCorsOrigin() != null) { // these are mutually exclusive
                 throw new ParameterException("Use only one cors configuration type");
             }
+            if (args.isShardRouting() && args.isCountryIndices()) {
+                throw new ParameterException("Country indices have a single shard, use only one of -country-indices and -shard-routing");
+            }
+            if (args.isOfflineBuild() && !args.getTransportAddresses().isEmpty()) {
+                throw new ParameterException("An offline build uses the embedded elasticsearch node, do not give transport addresses");
+            }
+            if (args.isOfflineBuild() && !args.isNominatimImport() && args.getJsonImport() == null) {
+                throw new ParameterException("-offline-build only tunes the node of -nominatim-import or -json-import");
+            }
+            if (args.getUpdateThreads() < 1) {
+                throw new ParameterException("-update-threads must be at least 1");
+            }
         } catch (ParameterException e) {
             log.warn("could not start photon: " + e.getMessage());
             jCommander.usage();
@@ -64,18 +85,24 @@ public class App {
                 return;
             }
 
+            if (args.getJsonImport() != null) {
+                shutdownES = true;
+                startJsonImport(args, esServer, esClient);
+                return;
+            }
+
             if (args.isNominatimUpdate()) {
                 shutdownES = true;
                 log.info("Ensuring that the cluster is ready, this might take some time.");
                 // inspired by https://stackoverflow.com/a/50316299
                 esClient.admin().cluster().prepareHealth().setWaitForGreenStatus().execute().actionGet();
-                final NominatimUpdater nominatimUpdater = setupNominatimUpdater(args, esClient);
+                final NominatimUpdater nominatimUpdater = setupNominatimUpdater(args, esServer);
                 nominatimUpdater.update();
                 return;
             }
 
             // no special action specified -> normal mode: start search API
-            startApi(args, esClient);
+            startApi(args, esServer);
         } finally {
             if (shutdownES) esServer.shutdown();
         }
@@ -106,11 +133,11 @@ public class App {
     private static void startJsonDump(CommandLineArgs args) {
         try {
             final String filename = args.getJsonDump();
-            final JsonDumper jsonDumper = new JsonDumper(filename, args.getLanguages());
-            NominatimConnector nominatimConnector = new NominatimConnector(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
-            nominatimConnector.setImporter(jsonDumper);
+            final JsonDumper jsonDumper = new JsonDumper(filename, args.getLanguages(), args.getJsonShards(), args.isJsonCompress());
+            NominatimConnector nominatimConnector = setupNominatimConnector(args, jsonDumper);
+            jsonDumper.setImportProfile(nominatimConnector.getImportProfile().toJson());
             nominatimConnector.readEntireDatabase(args.getCountryCodes().split(","));
-            log.info("json dump was created: " + filename);
+            log.info("json dump was created: " + filename + ", see " + JsonDumper.getManifestFile(filename) + " for its files");
         } catch (FileNotFoundException e) {
             log.error("cannot create dump", e);
         }
@@ -125,19 +152,152 @@ public class App {
      * @param esNodeClient
      */
     private static void startNominatimImport(CommandLineArgs args, Server esServer, Client esNodeClient) {
+        final File checkpointFile = new File(new File(args.getDataDirectory(), "photon_data"), "import_checkpoint.json");
+        boolean resume = args.isResume() && checkpointFile.exists();
+        if (args.isResume() && !resume) {
+            log.warn("no import checkpoint found in " + checkpointFile + ", starting a new import");
+        }
+
+        // the current index keeps serving requests until the new one is complete
+        String indexName = null;
+        if (resume) {
+            try {
+                indexName = NominatimConnector.getCheckpointIndex(checkpointFile);
+            } catch (IOException | RuntimeException e) {
+                throw new RuntimeException("cannot read import checkpoint " + checkpointFile, e);
+            }
+            if (!esServer.isPendingGeneration(indexName, args.isCountryIndices())) {
+                log.warn("index " + indexName + " of the unfinished import cannot be continued, starting a new import");
+                indexName = null;
+                resume = false;
+            }
+        }
+        if (!resume && args.isCountryIndices()) {
+            // the country indices are created as their places turn up
+            indexName = esServer.newIndexGeneration();
+        } else if (!resume) {
+            try {
+                indexName = esServer.createIndexGeneration();
+            } catch (IOException e) {
+                throw new RuntimeException("cannot setup index, elastic search config files not readable", e);
+            }
+        }
+
+        log.info("starting import from nominatim to photon index " + indexName + " with languages: " + args.getLanguages());
+        BulkSender bulkSender = new BulkSender(esNodeClient, args.getBulkConcurrency(), args.getBulkActions(), args.getBulkSizeMb(), args.getBulkFlushInterval());
+        CountryIndices countryIndices = args.isCountryIndices() ? new CountryIndices(esServer, indexName) : null;
+        de.komoot.photon.elasticsearch.Importer importer = countryIndices != null
+                ? new de.komoot.photon.elasticsearch.Importer(esNodeClient, countryIndices, args.getLanguages(), bulkSender)
+                : new de.komoot.photon.elasticsearch.Importer(esNodeClient, indexName, args.getLanguages(), bulkSender);
+        importer.setCountryRouting(args.isShardRouting());
+        NominatimConnector nominatimConnector = setupNominatimConnector(args, importer);
+        nominatimConnector.setCheckpoint(checkpointFile, indexName, resume);
+        // new country indices get the import settings when they are created, those of a resumed import here
+        final String importIndices = countryIndices != null ? countryIndices.getPattern() : indexName;
+        esServer.setImportIndexSettings(importIndices);
+        long documents = -1;
         try {
-            esServer.recreateIndex(); // dump previous data
+            documents = nominatimConnector.readEntireDatabase(args.getCountryCodes().split(","));
+        } finally {
+            // a failed import is not merged, a resumed import changes the index again
+            esServer.restoreIndexSettings(importIndices, documents >= 0 ? args.getForceMergeSegments() : 0);
+        }
+        checkStored(bulkSender);
+        esServer.setImportProfile(importIndices, nominatimConnector.getImportProfile().toJson());
+        if (countryIndices != null) {
+            countryIndices.writeBoundingBoxes();
+            // with -country-codes only the imported countries are replaced
+            esServer.activateIndex(indexName, !args.getCountryCodes().trim().isEmpty(), documents);
+        } else {
+            if (args.isShardRouting()) {
+                CountryRouting.writeBoundingBoxes(esNodeClient, indexName);
+            }
+            esServer.activateIndex(indexName, false, documents);
+        }
+        esServer.deleteOldIndices(args.getKeepOldIndices());
+
+        log.info("imported data from nominatim to photon with languages: " + args.getLanguages());
+    }
+
+    /**
+     * load a json dump into a new elastic search index
+     *
+     * @param args
+     * @param esServer
+     * @param esNodeClient
+     */
+    private static void startJsonImport(CommandLineArgs args, Server esServer, Client esNodeClient) {
+        final List<File> files;
+        final JSONObject importProfile;
+        final String indexName;
+        try {
+            files = DumpLoader.getDumpFiles(args.getJsonImport());
+            importProfile = DumpLoader.getImportProfile(args.getJsonImport());
+            indexName = esServer.createIndexGeneration();
         } catch (IOException e) {
-            throw new RuntimeException("cannot setup index, elastic search config files not readable", e);
+            throw new RuntimeException("cannot setup json import", e);
+        }
+
+        BulkSender bulkSender = new BulkSender(esNodeClient, args.getBulkConcurrency(), args.getBulkActions(), args.getBulkSizeMb(), args.getBulkFlushInterval());
+        esServer.setImportIndexSettings(indexName);
+        long documents = -1;
+        try {
+            documents = new DumpLoader(indexName, bulkSender).load(files);
+        } finally {
+            esServer.restoreIndexSettings(indexName, documents >= 0 ? args.getForceMergeSegments() : 0);
+        }
+        checkStored(bulkSender);
+        esServer.setImportProfile(indexName, importProfile);
+        esServer.activateIndex(indexName, false, documents);
+        esServer.deleteOldIndices(args.getKeepOldIndices());
+
+        log.info("imported json dump " + args.getJsonImport() + " to photon");
+    }
+
+    /**
+     * Make sure that every document of an import was stored before the new index replaces the active one.
+     */
+    private static void checkStored(BulkSender bulkSender) {
+        if (bulkSender.getFailedCount() > 0) {
+            throw new IllegalStateException(bulkSender.getFailedCount() + " documents could not be stored, the new index is not activated");
         }
+    }
 
-        log.info("starting import from nominatim to photon with languages: " + args.getLanguages());
-        de.komoot.photon.elasticsearch.Importer importer = new de.komoot.photon.elasticsearch.Importer(esNodeClient, args.getLanguages());
+    /**
+     * Prepare Nominatim connector for a full import
+     *
+     * @param args
+     * @param importer
+     */
+    private static NominatimConnector setupNominatimConnector(CommandLineArgs args, Importer importer) {
         NominatimConnector nominatimConnector = new NominatimConnector(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
         nominatimConnector.setImporter(importer);
-        nominatimConnector.readEntireDatabase(args.getCountryCodes().split(","));
-
-        log.info("imported data from nominatim to photon with languages: " + args.getLanguages());
+        nominatimConnector.setCompletionThreads(args.getCompletionThreads());
+        nominatimConnector.setCompletionBatchSize(args.getCompletionBatchSize());
+        nominatimConnector.setAddressCacheSize(args.getAddressCacheSize());
+        nominatimConnector.setUseAddressGraph(args.isAddressGraph());
+        nominatimConnector.setScanThreads(args.getScanThreads());
+        nominatimConnector.setExpandThreads(args.getExpandThreads());
+        nominatimConnector.setSerializeThreads(args.getSerializeThreads());
+        nominatimConnector.setUseBinaryCopy(args.isBinaryCopy());
+        if (args.getImportProfile() != null) {
+            try {
+                nominatimConnector.setImportProfile(ImportProfile.load(new File(args.getImportProfile())));
+            } catch (IOException e) {
+                throw new RuntimeException("cannot read import profile " + args.getImportProfile(), e);
+            }
+        }
+        if (args.getReplicaHosts() != null && !args.getReplicaHosts().isEmpty()) {
+            for (String replica : args.getReplicaHosts().split(",")) {
+                int index = replica.indexOf(":");
+                if (index >= 0) {
+                    nominatimConnector.addReplica(replica.substring(0, index), Integer.parseInt(replica.substring(index + 1)));
+                } else {
+                    nominatimConnector.addReplica(replica, args.getPort());
+                }
+            }
+        }
+        return nominatimConnector;
     }
 
     /**
@@ -146,10 +306,17 @@ public class App {
      * @param args
      * @param esNodeClient
      */
-    private static NominatimUpdater setupNominatimUpdater(CommandLineArgs args, Client esNodeClient) {
+    private static NominatimUpdater setupNominatimUpdater(CommandLineArgs args, Server esServer) {
+        final Client esNodeClient = esServer.getClient();
         NominatimUpdater nominatimUpdater = new NominatimUpdater(args.getHost(), args.getPort(), args.getDatabase(), args.getUser(), args.getPassword());
-        Updater updater = new de.komoot.photon.elasticsearch.Updater(esNodeClient, args.getLanguages());
-        nominatimUpdater.setUpdater(updater);
+        List<Updater> updaters = new ArrayList<>(args.getUpdateThreads());
+        for (int i = 0; i < args.getUpdateThreads(); i++) {
+            BulkSender bulkSender = new BulkSender(esNodeClient, args.getBulkConcurrency(), args.getBulkActions(), args.getBulkSizeMb(), args.getBulkFlushInterval());
+            updaters.add(new de.komoot.photon.elasticsearch.Updater(esServer, args.getLanguages(), bulkSender));
+        }
+        nominatimUpdater.setUpdaters(updaters);
+        // changes are selected like the places of the import
+        nominatimUpdater.setImportProfile(ImportProfile.parse(esServer.getImportProfile()));
         return nominatimUpdater;
     }
 
@@ -157,9 +324,10 @@ public class App {
      * start api to accept search requests via http
      *
      * @param args
-     * @param esNodeClient
+     * @param esServer
      */
-    private static void startApi(CommandLineArgs args, Client esNodeClient) {
+    private static void startApi(CommandLineArgs args, Server esServer) {
+        final Client esNodeClient = esServer.getClient();
         port(args.getListenPort());
         ipAddress(args.getListenIp());
 
@@ -172,15 +340,18 @@ public class App {
             });
         }
 
-        // setup search API
-        get("api", new SearchRequestHandler("api", esNodeClient, args.getLanguages(), args.getDefaultLanguage()));
-        get("api/", new SearchRequestHandler("api/", esNodeClient, args.getLanguages(), args.getDefaultLanguage()));
+        // setup search API, indices with an older mapping can still be searched without the countrycode filter
+        boolean countryCodeFilter = esServer.hasCurrentMapping();
+        get("api", new SearchRequestHandler("api", esNodeClient, args.getLanguages(), args.getDefaultLanguage(), countryCodeFilter));
+        get("api/", new SearchRequestHandler("api/", esNodeClient, args.getLanguages(), args.getDefaultLanguage(), countryCodeFilter));
         get("reverse", new ReverseSearchRequestHandler("reverse", esNodeClient, args.getLanguages(), args.getDefaultLanguage()));
         get("reverse/", new ReverseSearchRequestHandler("reverse/", esNodeClient, args.getLanguages(), args.getDefaultLanguage()));
 
         // setup update API
-        final NominatimUpdater nominatimUpdater = setupNominatimUpdater(args, esNodeClient);
+        final NominatimUpdater nominatimUpdater = setupNominatimUpdater(args, esServer);
         get("/nominatim-update", (Request request, Response response) -> {
+            // the index may have been replaced by an import with another profile
+            nominatimUpdater.setImportProfile(ImportProfile.parse(esServer.getImportProfile()));
             new Thread(() -> nominatimUpdater.update()).start();
             return "nominatim update started (more information in console output) ...";
         });
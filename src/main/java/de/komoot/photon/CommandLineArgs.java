@@ -5,6 +5,7 @@ package de.komoot.photon;
  */
 
 import com.beust.jcommander.Parameter;
+import de.komoot.photon.elasticsearch.BulkSender;
 import lombok.Data;
 
 import java.io.File;
@@ -17,7 +18,7 @@ public class CommandLineArgs {
     @Parameter(names = "-transport-addresses", description = "the comma separated addresses of external elasticsearch nodes where the client can connect to (default is an empty string which forces an internal node to start)")
     private String transportAddresses = "";
 
-    @Parameter(names = "-nominatim-import", description = "import nominatim database into photon (this will delete previous index)")
+    @Parameter(names = "-nominatim-import", description = "import nominatim database into a new photon index, the previous index is served until the import is complete")
     private boolean nominatimImport = false;
 
     @Parameter(names = "-nominatim-update", description = "fetch updates from nominatim database into photon and exit (this updates the index only without offering an API)")
@@ -32,9 +33,81 @@ public class CommandLineArgs {
     @Parameter(names = "-country-codes", description = "country codes filter that nominatim importer should import, comma separated. If empty full planet is done")
     private String countryCodes = "";
 
+    @Parameter(names = "-import-profile", description = "json file that restricts the places of nominatim import and json dump by osm class and type, search rank and importance and chooses the indexed name variants (default is to import everything)")
+    private String importProfile = null;
+
+    @Parameter(names = "-resume", description = "continue an aborted nominatim import from its last checkpoint instead of starting from scratch")
+    private boolean resume = false;
+
+    @Parameter(names = "-force-merge", description = "merge the index down to this number of segments after nominatim import, 0 disables merging (default 0)")
+    private int forceMergeSegments = 0;
+
+    @Parameter(names = "-completion-threads", description = "number of threads that complete address information in parallel during nominatim import, each uses its own database connection (default 1)")
+    private int completionThreads = 1;
+
+    @Parameter(names = "-expand-threads", description = "number of threads that create one document per house number during nominatim import (default 1)")
+    private int expandThreads = 1;
+
+    @Parameter(names = "-serialize-threads", description = "number of threads that serialize documents for elasticsearch during nominatim import (default 1)")
+    private int serializeThreads = 1;
+
+    @Parameter(names = "-completion-batch-size", description = "number of places whose address information is looked up with a single query during nominatim import (default 100)")
+    private int completionBatchSize = 100;
+
+    @Parameter(names = "-address-cache-size", description = "number of parent places whose address is cached during nominatim import, 0 disables the cache (default 10000)")
+    private int addressCacheSize = 10000;
+
+    @Parameter(names = "-address-graph", description = "load the address hierarchy of all places into memory before nominatim import instead of querying it for every place (needs a lot of memory for a planet)")
+    private boolean addressGraph = false;
+
+    @Parameter(names = "-update-threads", description = "number of workers that update the sectors of a rank in parallel during nominatim update, each uses its own database connection and bulk requests (default 1)")
+    private int updateThreads = 1;
+
+    @Parameter(names = "-scan-threads", description = "number of threads that read the place tables in parallel during nominatim import, each uses its own database connection (default 1)")
+    private int scanThreads = 1;
+
+    @Parameter(names = "-binary-copy", description = "read placex with postgres' binary COPY during nominatim import, faster than reading it through JDBC")
+    private boolean binaryCopy = false;
+
+    @Parameter(names = "-replica-hosts", description = "comma separated host:port of read replicas of the nominatim database, reading during nominatim import is spread over the main database and all replicas (default is an empty string)")
+    private String replicaHosts = "";
+
+    @Parameter(names = "-bulk-concurrency", description = "number of bulk requests that may be sent to elasticsearch in parallel during nominatim import and update (default 2)")
+    private int bulkConcurrency = BulkSender.DEFAULT_CONCURRENT_REQUESTS;
+
+    @Parameter(names = "-bulk-actions", description = "maximum number of documents in a bulk request to elasticsearch (default 10000)")
+    private int bulkActions = BulkSender.DEFAULT_BULK_ACTIONS;
+
+    @Parameter(names = "-bulk-size", description = "maximum size of a bulk request to elasticsearch in megabytes (default 10)")
+    private int bulkSizeMb = BulkSender.DEFAULT_BULK_SIZE_MB;
+
+    @Parameter(names = "-bulk-flush-interval", description = "send incomplete bulk requests to elasticsearch after this many seconds, 0 disables (default 5)")
+    private int bulkFlushInterval = BulkSender.DEFAULT_FLUSH_INTERVAL_SECONDS;
+
     @Parameter(names = "-json", description = "import nominatim database and dump it to a json like files in (useful for developing)")
     private String jsonDump = null;
 
+    @Parameter(names = "-json-shards", description = "number of files the json dump is split into, written in parallel (default 1)")
+    private int jsonShards = 1;
+
+    @Parameter(names = "-json-compress", description = "gzip the files of the json dump")
+    private boolean jsonCompress = false;
+
+    @Parameter(names = "-json-import", description = "load json dump files into a new photon index instead of importing from nominatim, comma separated, a dump's manifest stands for all of its files")
+    private String jsonImport = null;
+
+    @Parameter(names = "-keep-old-indices", description = "number of replaced photon indices to keep after an import, older ones are deleted (default 0)")
+    private int keepOldIndices = 0;
+
+    @Parameter(names = "-country-indices", description = "split the index of -nominatim-import into one index per country, searches restricted by bbox or countrycode only go to the matching countries. Together with -country-codes only these countries are rebuilt and the others keep being served")
+    private boolean countryIndices = false;
+
+    @Parameter(names = "-shard-routing", description = "route the places of -nominatim-import to shards by country, searches restricted by bbox, radius or countrycode only ask the shards of the matching countries (cannot be used with -country-indices)")
+    private boolean shardRouting = false;
+
+    @Parameter(names = "-offline-build", description = "tune the embedded elasticsearch node for -nominatim-import or -json-import: no http, no cluster discovery, half of the heap for indexing and a longer bulk queue. The documents are still indexed by elasticsearch, the shards are not written offline (only with -nominatim-import or -json-import, cannot be used with -transport-addresses)")
+    private boolean offlineBuild = false;
+
     @Parameter(names = "-recreate-index", description = "delete index and all documents, creates a new and empty photon index")
     private boolean recreateIndex = false;
 
@@ -0,0 +1,260 @@
+package de.komoot.photon;
+
+import com.neovisionaries.i18n.CountryCode;
+import com.vividsolutions.jts.geom.Envelope;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Converts photon documents into the source that is stored in elasticsearch.
+ * <p>
+ * The serializer writes directly into a per-thread buffer that is reused for all documents, so that the only
+ * allocation per document is the resulting byte array. Name maps are read key by key instead of being copied
+ * into filtered maps first. Use {@link XContentType#SMILE} for documents that are sent to elasticsearch and
+ * {@link XContentType#JSON} for anything humans may read. Instances are thread-safe.
+ */
+public class DocumentSerializer {
+    private static final String[] NAME_VARIANTS = {"alt_name", "alt", "int_name", "int", "loc_name", "loc",
+            "old_name", "old", "reg_name", "reg", "addr:housename", "housename"};
+
+    private final XContentType type;
+    private final String[] languages;
+    /** 'name:' + language for all languages, precomputed to save the string concatenation per lookup */
+    private final String[] languageKeys;
+
+    private final ThreadLocal<BytesStreamOutput> buffers = new ThreadLocal<BytesStreamOutput>() {
+        @Override
+        protected BytesStreamOutput initialValue() {
+            return new BytesStreamOutput(4096);
+        }
+    };
+
+    public DocumentSerializer(String[] languages, XContentType type) {
+        // duplicate languages would produce duplicate keys, which elasticsearch refuses
+        Set<String> unique = new LinkedHashSet<>(Arrays.asList(languages));
+        this.type = type;
+        this.languages = unique.toArray(new String[unique.size()]);
+        this.languageKeys = new String[this.languages.length];
+        for (int i = 0; i < this.languages.length; i++) {
+            languageKeys[i] = "name:" + this.languages[i];
+        }
+    }
+
+    public XContentType getType() {
+        return type;
+    }
+
+    /**
+     * @return the names of the name variants in the document, like 'alt' or 'old'
+     */
+    public static List<String> getNameVariants() {
+        List<String> variants = new ArrayList<>(NAME_VARIANTS.length / 2);
+        for (int i = 0; i < NAME_VARIANTS.length; i += 2) {
+            variants.add(NAME_VARIANTS[i + 1]);
+        }
+        return variants;
+    }
+
+    /**
+     * @param variant name of a name variant in the document, like 'alt' or 'old'
+     * @return the osm tag the variant is taken from, null if there is no such variant
+     */
+    public static String getNameVariantTag(String variant) {
+        for (int i = 0; i < NAME_VARIANTS.length; i += 2) {
+            if (NAME_VARIANTS[i + 1].equals(variant)) {
+                return NAME_VARIANTS[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the serialized document in the format of this serializer
+     */
+    public byte[] serialize(PhotonDoc doc) throws IOException {
+        BytesStreamOutput buffer = buffers.get();
+        buffer.reset();
+
+        XContentBuilder builder = new XContentBuilder(type.xContent(), buffer);
+        write(builder, doc);
+        builder.close();
+
+        return BytesReference.toBytes(buffer.bytes());
+    }
+
+    /**
+     * Write the document as a complete object to the given builder.
+     */
+    public void write(XContentBuilder builder, PhotonDoc doc) throws IOException {
+        builder.startObject()
+                .field(Constants.OSM_ID, doc.getOsmId())
+                .field(Constants.OSM_TYPE, doc.getOsmType())
+                .field(Constants.OSM_KEY, doc.getTagKey())
+                .field(Constants.OSM_VALUE, doc.getTagValue())
+                .field(Constants.OBJECT_TYPE, doc.getObjectType())
+                .field(Constants.IMPORTANCE, doc.getImportance())
+                .field(Constants.OSM_RANK_ADDRESS, doc.getRankAddress());
+
+        if (doc.getCentroid() != null) {
+            builder.startObject("coordinate")
+                    .field("lat", doc.getCentroid().getY())
+                    .field("lon", doc.getCentroid().getX())
+                    .endObject();
+        }
+
+        if (doc.getHouseNumber() != null) {
+            builder.field("housenumber", doc.getHouseNumber());
+        }
+
+        if (doc.getPostcode() != null) {
+            builder.field("postcode", doc.getPostcode());
+        }
+
+        writeName(builder, doc.getName());
+        writeIntlNames(builder, doc.getCity(), "city");
+        writeIntlNames(builder, doc.getCountry(), "country");
+        CountryCode countryCode = doc.getCountryCode();
+        if (countryCode != null)
+            builder.field(Constants.COUNTRYCODE, countryCode.getAlpha2());
+        writeIntlNames(builder, doc.getState(), "state");
+        writeIntlNames(builder, doc.getStreet(), "street");
+        writeIntlNames(builder, doc.getLocality(), "locality");
+        writeIntlNames(builder, doc.getDistrict(), "district");
+        writeIntlNames(builder, doc.getCounty(), "county");
+        writeContext(builder, doc.getContext());
+        writeExtent(builder, doc.getBbox());
+
+        builder.endObject();
+    }
+
+    private static void writeExtent(XContentBuilder builder, Envelope bbox) throws IOException {
+        if (bbox == null) return;
+
+        if (bbox.getArea() == 0.) return;
+
+        // http://www.elasticsearch.org/guide/en/elasticsearch/reference/current/mapping-geo-shape-type.html#_envelope
+        builder.startObject("extent");
+        builder.field("type", "envelope");
+
+        builder.startArray("coordinates");
+        builder.startArray().value(bbox.getMinX()).value(bbox.getMaxY()).endArray();
+        builder.startArray().value(bbox.getMaxX()).value(bbox.getMinY()).endArray();
+
+        builder.endArray();
+        builder.endObject();
+    }
+
+    private void writeName(XContentBuilder builder, Map<String, String> names) throws IOException {
+        if (names == null) return;
+
+        boolean started = writeLanguageNames(builder, names, "name");
+        for (int i = 0; i < NAME_VARIANTS.length; i += 2) {
+            String value = names.get(NAME_VARIANTS[i]);
+            if (value != null) {
+                started = startObject(builder, "name", started);
+                builder.field(NAME_VARIANTS[i + 1], value);
+            }
+        }
+
+        if (started) {
+            builder.endObject();
+        }
+    }
+
+    private void writeIntlNames(XContentBuilder builder, Map<String, String> names, String field) throws IOException {
+        if (names == null) return;
+
+        if (writeLanguageNames(builder, names, field)) {
+            builder.endObject();
+        }
+    }
+
+    /**
+     * Write the default and the language specific names, the object for the field is only started when a name exists.
+     *
+     * @return true when the object has been started
+     */
+    private boolean writeLanguageNames(XContentBuilder builder, Map<String, String> names, String field) throws IOException {
+        boolean started = false;
+
+        String value = names.get("name");
+        if (value != null) {
+            started = startObject(builder, field, started);
+            builder.field("default", value);
+        }
+
+        for (int i = 0; i < languages.length; i++) {
+            value = names.get(languageKeys[i]);
+            if (value != null) {
+                started = startObject(builder, field, started);
+                builder.field(languages[i], value);
+            }
+        }
+
+        return started;
+    }
+
+    private void writeContext(XContentBuilder builder, Set<Map<String, String>> contexts) throws IOException {
+        if (contexts == null || contexts.isEmpty()) return;
+
+        @SuppressWarnings("unchecked")
+        Map<String, String>[] entries = contexts.toArray(new Map[contexts.size()]);
+
+        boolean started = writeContextNames(builder, entries, "name", "default", false);
+        for (int i = 0; i < languages.length; i++) {
+            started = writeContextNames(builder, entries, languageKeys[i], languages[i], started);
+        }
+
+        if (started) {
+            builder.endObject();
+        }
+    }
+
+    /**
+     * Write the distinct names with the given key of all contexts as a comma separated list.
+     */
+    private static boolean writeContextNames(XContentBuilder builder, Map<String, String>[] contexts, String key, String field, boolean started) throws IOException {
+        StringBuilder joined = null;
+        for (int i = 0; i < contexts.length; i++) {
+            String value = contexts[i].get(key);
+            if (value == null || isDuplicate(contexts, i, key, value)) {
+                continue;
+            }
+
+            if (joined == null) {
+                joined = new StringBuilder(value);
+            } else {
+                joined.append(", ").append(value);
+            }
+        }
+
+        if (joined == null) {
+            return started;
+        }
+
+        started = startObject(builder, "context", started);
+        builder.field(field, joined.toString());
+        return started;
+    }
+
+    private static boolean isDuplicate(Map<String, String>[] contexts, int index, String key, String value) {
+        for (int i = 0; i < index; i++) {
+            if (value.equals(contexts[i].get(key))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean startObject(XContentBuilder builder, String field, boolean started) throws IOException {
+        if (!started) {
+            builder.startObject(field);
+        }
+        return true;
+    }
+}
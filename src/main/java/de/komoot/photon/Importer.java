@@ -7,14 +7,31 @@ package de.komoot.photon;
  */
 public interface Importer {
     /**
-     * a new document was imported
+     * a new document was imported, may be called from several threads at once
      *
      * @param doc
+     * @return false if the document was dropped because it could not be serialized
      */
-    public void add(PhotonDoc doc);
+    public boolean add(PhotonDoc doc);
+
+    /**
+     * write all documents added so far and wait until they are stored
+     *
+     * @return true if all documents were stored successfully
+     */
+    public boolean flush();
 
     /**
      * import is finished
      */
     public void finish();
+
+    /**
+     * describe how the target of the documents keeps up since the last report, for the progress log of an import
+     *
+     * @return the report or null if there is nothing to report
+     */
+    default String report() {
+        return null;
+    }
 }
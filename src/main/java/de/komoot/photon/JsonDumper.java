@@ -1,40 +1,296 @@
 package de.komoot.photon;
 
+import com.google.common.io.BaseEncoding;
 import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.json.JSONArray;
+import org.json.JSONObject;
 
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * useful to create json files that can be used for fast re imports
+ * <p>
+ * The files are in the format of the bulk API of elasticsearch and can be loaded with {@code -json-import}.
+ * <p>
+ * The dump may be split into several shard files, each written by its own thread and optionally gzip compressed.
+ * Documents are distributed over the shards round robin. When the dump is finished, a manifest with the shard
+ * files, their document counts and SHA-256 checksums is written next to it ({@link #getManifestFile(String)}).
  *
  * @author christoph
  */
 @Slf4j
 public class JsonDumper implements Importer {
-    private PrintWriter writer = null;
-    private final String[] languages;
+    private static final int SHARD_QUEUE_SIZE = 1000;
+
+    private final String filename;
+    private final boolean compress;
+    private final DocumentSerializer serializer;
+    private final List<ShardWriter> shards = new ArrayList<>();
+    private final List<Thread> writerThreads = new ArrayList<>();
+    private final AtomicLong nextShard = new AtomicLong();
+    private JSONObject importProfile = new JSONObject();
 
     public JsonDumper(String filename, String languages) throws FileNotFoundException {
-        this.writer = new PrintWriter(filename);
-        this.languages = languages.split(",");
+        this(filename, languages, 1, false);
+    }
+
+    /**
+     * @param filename  name of the dump, also the name of the only file for a single uncompressed shard
+     * @param shardCount number of files to write in parallel
+     * @param compress  gzip the shard files
+     */
+    public JsonDumper(String filename, String languages, int shardCount, boolean compress) throws FileNotFoundException {
+        this.filename = filename;
+        this.compress = compress;
+        this.serializer = new DocumentSerializer(languages.split(","), XContentType.JSON);
+
+        // all files are opened before the first writer thread starts, so that a failure leaves no thread behind
+        try {
+            for (int i = 0; i < Math.max(1, shardCount); i++) {
+                shards.add(new ShardWriter(new File(getShardFileName(filename, i, shardCount, compress)), compress));
+            }
+        } catch (FileNotFoundException | RuntimeException e) {
+            for (ShardWriter shard : shards) {
+                shard.abort();
+            }
+            throw e;
+        }
+
+        for (int i = 0; i < shards.size(); i++) {
+            Thread thread = new Thread(shards.get(i), "json-dump-" + i);
+            writerThreads.add(thread);
+            thread.start();
+        }
+    }
+
+    static String getShardFileName(String filename, int shard, int shardCount, boolean compress) {
+        String name = shardCount > 1 ? String.format("%s.%03d", filename, shard) : filename;
+        return compress ? name + ".gz" : name;
+    }
+
+    /**
+     * @param importProfile json of the import profile the dumped places were selected with, stored in the manifest
+     */
+    public void setImportProfile(JSONObject importProfile) {
+        this.importProfile = importProfile;
+    }
+
+    public static File getManifestFile(String filename) {
+        return new File(filename + ".manifest.json");
     }
 
     @Override
-    public void add(PhotonDoc doc) {
+    public boolean add(PhotonDoc doc) {
+        final byte[] json;
         try {
-            writer.println("{\"index\": {}}");
-            writer.println(Utils.convert(doc, this.languages).string());
+            json = serializer.serialize(doc);
         } catch (IOException e) {
             log.error("error writing json file", e);
+            return false;
+        }
+
+        // the document id is kept so that a re import creates the same documents as the nominatim import,
+        // it contains the house number and may need escaping
+        byte[] action = ("{\"index\": {\"_id\": " + JSONObject.quote(doc.getUid()) + "}}\n").getBytes(StandardCharsets.UTF_8);
+        byte[] lines = Arrays.copyOf(action, action.length + json.length + 1);
+        System.arraycopy(json, 0, lines, action.length, json.length);
+        lines[lines.length - 1] = '\n';
+
+        ShardWriter shard = shards.get((int) (nextShard.getAndIncrement() % shards.size()));
+        shard.put(lines);
+        return true;
+    }
+
+    /**
+     * Wait until all documents added so far are written to the shard files.
+     *
+     * @return false if writing any of the shards failed
+     */
+    @Override
+    public synchronized boolean flush() {
+        boolean success = true;
+        for (ShardWriter shard : shards) {
+            shard.put(ShardWriter.FLUSH);
+        }
+        for (ShardWriter shard : shards) {
+            shard.flushed.acquireUninterruptibly();
+            success &= !shard.failed;
         }
+        return success;
     }
 
     @Override
     public void finish() {
-        if (writer != null) {
-            writer.close();
+        for (ShardWriter shard : shards) {
+            shard.put(ShardWriter.FINISH);
+        }
+        for (Thread thread : writerThreads) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.error("interrupted while waiting for the json dump to be written", e);
+                return;
+            }
+        }
+
+        writeManifest();
+    }
+
+    private void writeManifest() {
+        JSONArray files = new JSONArray();
+        long documents = 0;
+        boolean failed = false;
+        for (ShardWriter shard : shards) {
+            JSONObject file = new JSONObject();
+            file.put("file", shard.file.getName());
+            file.put("documents", shard.documents);
+            file.put("bytes", shard.file.length());
+            file.put("sha256", shard.checksum);
+            files.put(file);
+            documents += shard.documents;
+            failed |= shard.failed;
+        }
+
+        JSONObject manifest = new JSONObject();
+        manifest.put("compression", compress ? "gzip" : "none");
+        manifest.put("documents", documents);
+        manifest.put("complete", !failed);
+        manifest.put("files", files);
+        manifest.put("import_profile", importProfile);
+
+        File manifestFile = getManifestFile(filename);
+        try {
+            Files.write(manifestFile.toPath(), manifest.toString(2).getBytes(StandardCharsets.UTF_8));
+        } catch (IOException e) {
+            log.error("cannot write json dump manifest " + manifestFile, e);
+        }
+    }
+
+    /**
+     * Writes the documents of one shard file, runs in its own thread.
+     */
+    private static class ShardWriter implements Runnable {
+        static final byte[] FLUSH = new byte[0];
+        static final byte[] FINISH = new byte[0];
+
+        private final File file;
+        private final BlockingQueue<byte[]> queue = new ArrayBlockingQueue<>(SHARD_QUEUE_SIZE);
+        private final Semaphore flushed = new Semaphore(0);
+        private final OutputStream output;
+        private final MessageDigest digest;
+        private volatile boolean failed = false;
+        private volatile long documents = 0;
+        private volatile String checksum;
+
+        ShardWriter(File file, boolean compress) throws FileNotFoundException {
+            this.file = file;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException("SHA-256 is a required algorithm of every JVM", e);
+            }
+
+            OutputStream fileOutput = new DigestOutputStream(new FileOutputStream(file), digest);
+            try {
+                output = compress ? new GZIPOutputStream(fileOutput, 1 << 16) : new BufferedOutputStream(fileOutput, 1 << 16);
+            } catch (IOException e) {
+                try {
+                    fileOutput.close();
+                } catch (IOException closeFailure) {
+                    e.addSuppressed(closeFailure);
+                }
+                throw new IllegalStateException("cannot start compressed json dump " + file, e);
+            }
+        }
+
+        /**
+         * Close the file of a writer whose thread was never started.
+         */
+        void abort() {
+            try {
+                output.close();
+            } catch (IOException e) {
+                log.warn("cannot close json dump " + file, e);
+            }
+        }
+
+        void put(byte[] lines) {
+            try {
+                queue.put(lines);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while adding to the json dump", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                byte[] lines;
+                try {
+                    lines = queue.take();
+                } catch (InterruptedException e) {
+                    log.error("json dump writer interrupted", e);
+                    failed = true;
+                    break;
+                }
+
+                if (lines == FINISH) {
+                    break;
+                }
+
+                if (lines == FLUSH) {
+                    write(null);
+                    flushed.release();
+                } else {
+                    write(lines);
+                }
+            }
+
+            try {
+                output.close();
+            } catch (IOException e) {
+                log.error("cannot close json dump " + file, e);
+                failed = true;
+            }
+            checksum = BaseEncoding.base16().lowerCase().encode(digest.digest());
+        }
+
+        /**
+         * Write the action and source lines of a document or, for null, flush the buffered output.
+         * After the first error, nothing is written anymore.
+         */
+        private void write(byte[] lines) {
+            if (failed) {
+                return;
+            }
+
+            try {
+                if (lines == null) {
+                    output.flush();
+                } else {
+                    output.write(lines);
+                    documents++;
+                }
+            } catch (IOException e) {
+                log.error("error writing json file " + file, e);
+                failed = true;
+            }
         }
     }
 }
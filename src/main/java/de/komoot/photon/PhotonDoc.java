@@ -101,7 +101,7 @@ public class PhotonDoc {
         this.district = other.district;
         this.city = other.city;
         this.county= other.county;
-        this.context = other.context;
+        this.context = new HashSet<>(other.context);
         this.country = other.country;
         this.state = other.state;
     }
@@ -185,9 +185,7 @@ public class PhotonDoc {
 
         if (field == null) return existingField;
 
-        Map<String, String> map = (existingField == null) ? new HashMap<>() : existingField;
-
-        String existingName = map.get("name");
+        String existingName = (existingField == null) ? null : existingField.get("name");
         if (!field.equals(existingName)) {
             if (log.isDebugEnabled()) {
                 log.debug("Replacing " + addressFieldName + " name '" + existingName + "' with '" + field + "' for osmId #" + osmId);
@@ -196,10 +194,13 @@ public class PhotonDoc {
             if(!Objects.isNull(existingName)) {
                 context.add(ImmutableMap.of("formerName", existingName));
             }
+            // name maps may be shared between documents, so never modify them in place
+            Map<String, String> map = (existingField == null) ? new HashMap<>() : new HashMap<>(existingField);
             map.put("name", field);
+            return map;
         }
 
-        return map;
+        return existingField;
     }
 
     public AddressRow asAddress() {
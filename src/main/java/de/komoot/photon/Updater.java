@@ -1,5 +1,7 @@
 package de.komoot.photon;
 
+import java.util.Collection;
+
 /**
  * @author felix
  */
@@ -10,6 +12,20 @@ public interface Updater {
 
     public void delete(Long id);
 
+    /**
+     * Called with the places of a batch that may be deleted or replaced before they are changed, so that an updater
+     * can look up where they are stored all at once instead of place by place.
+     */
+    public default void prefetch(Collection<Long> placeIds) {
+    }
+
+    /**
+     * Send all changes so far and wait until they are stored.
+     *
+     * @return true if all changes since the last flush were stored
+     */
+    public boolean flush();
+
     public void finish();
 
     public void updateOrCreate(PhotonDoc updatedDoc);
@@ -0,0 +1,223 @@
+package de.komoot.photon.elasticsearch;
+
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.DocWriteRequest;
+import org.elasticsearch.action.bulk.*;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.xcontent.XContentType;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sends index requests to elasticsearch in bulks while the caller keeps producing documents.
+ * <p>
+ * A bulk is sent as soon as it reaches the configured number of actions or size in bytes,
+ * or when the flush interval has passed. Up to the configured number of bulks may be in flight
+ * at the same time. Items that elasticsearch rejects because its queues are full are retried
+ * with exponential backoff; all other failures are counted and can be checked with {@link #flush()}.
+ */
+@Slf4j
+public class BulkSender {
+    public static final int DEFAULT_CONCURRENT_REQUESTS = 2;
+    public static final int DEFAULT_BULK_ACTIONS = 10000;
+    public static final int DEFAULT_BULK_SIZE_MB = 10;
+    public static final int DEFAULT_FLUSH_INTERVAL_SECONDS = 5;
+
+    private static final TimeValue INITIAL_RETRY_DELAY = TimeValue.timeValueMillis(100);
+    private static final int MAX_RETRIES = 8;
+    private static final long CLOSE_TIMEOUT_MINUTES = 30;
+
+    private final BulkProcessor processor;
+    private final int concurrentRequests;
+
+    private final AtomicLong bulks = new AtomicLong();
+    private final AtomicLong stored = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private int inFlight = 0;
+    private long failedSinceFlush = 0;
+
+    // time the bulk slots were in use, see report()
+    private long busyNanos = 0;
+    private long lastChangeNanos = System.nanoTime();
+    private long lastReportNanos = lastChangeNanos;
+    private long lastReportBusyNanos = 0;
+    private long lastReportStored = 0;
+
+    public BulkSender(Client client) {
+        this(client, DEFAULT_CONCURRENT_REQUESTS, DEFAULT_BULK_ACTIONS, DEFAULT_BULK_SIZE_MB, DEFAULT_FLUSH_INTERVAL_SECONDS);
+    }
+
+    /**
+     * @param client               client to send the bulks with
+     * @param concurrentRequests   number of bulks that may be in flight while the next one is filled, 0 sends synchronously
+     * @param bulkActions          maximum number of requests in a bulk
+     * @param bulkSizeMb           maximum size of a bulk in megabytes
+     * @param flushIntervalSeconds send incomplete bulks after this time, 0 disables timed flushes
+     */
+    public BulkSender(Client client, int concurrentRequests, int bulkActions, int bulkSizeMb, int flushIntervalSeconds) {
+        BackoffPolicy backoff = BackoffPolicy.wrap(BackoffPolicy.exponentialBackoff(INITIAL_RETRY_DELAY, MAX_RETRIES), new Runnable() {
+            @Override
+            public void run() {
+                retries.incrementAndGet();
+            }
+        });
+
+        this.concurrentRequests = concurrentRequests;
+        this.processor = BulkProcessor.builder(client, new Listener())
+                .setConcurrentRequests(concurrentRequests)
+                .setBulkActions(bulkActions)
+                .setBulkSize(new ByteSizeValue(bulkSizeMb, ByteSizeUnit.MB))
+                .setFlushInterval(flushIntervalSeconds > 0 ? TimeValue.timeValueSeconds(flushIntervalSeconds) : null)
+                .setBackoffPolicy(backoff)
+                .build();
+    }
+
+    public void add(DocWriteRequest request) {
+        processor.add(request);
+    }
+
+    /**
+     * Add all requests of a payload in the newline delimited format of the bulk API. Only the action lines
+     * are parsed, the document sources are sent on exactly as they are.
+     *
+     * @param payload complete lines of bulk actions and document sources
+     */
+    public void add(BytesReference payload, String defaultIndex, String defaultType, XContentType xContentType) throws IOException {
+        try {
+            processor.add(payload, defaultIndex, defaultType, xContentType);
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("invalid bulk payload", e);
+        }
+    }
+
+    /**
+     * Send all pending requests and wait until elasticsearch has answered for all bulks in flight.
+     *
+     * @return true if no request failed since the last flush
+     */
+    public boolean flush() {
+        processor.flush();
+
+        synchronized (this) {
+            while (inFlight > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    log.warn("Thread interrupted while waiting for bulk requests.");
+                }
+            }
+
+            boolean success = failedSinceFlush == 0;
+            failedSinceFlush = 0;
+            return success;
+        }
+    }
+
+    /**
+     * Send all pending requests and release the sender, no further requests may be added.
+     *
+     * @throws IllegalStateException if not all bulk requests were answered, their documents may be missing
+     */
+    public void close() {
+        processor.flush();
+        try {
+            if (!processor.awaitClose(CLOSE_TIMEOUT_MINUTES, TimeUnit.MINUTES)) {
+                throw new IllegalStateException("bulk requests still unanswered after " + CLOSE_TIMEOUT_MINUTES + " minutes");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while waiting for bulk requests", e);
+        } finally {
+            log.info(String.format("sent %d bulks: %d documents stored, %d failed, %d retries", bulks.get(), stored.get(), failed.get(), retries.get()));
+        }
+    }
+
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    /**
+     * Describe the bulk stage of an import since the last report: documents stored per second, bulks in flight
+     * and how much of the time the bulk slots were in use. Slots that are busy all the time mean that
+     * elasticsearch is the bottleneck of the import.
+     */
+    public synchronized String report() {
+        final long now = System.nanoTime();
+        countBusy(now);
+        final long elapsed = Math.max(1, now - lastReportNanos);
+        final long currentStored = stored.get();
+        final int slots = Math.max(1, concurrentRequests);
+
+        String report = String.format("bulk [%d concurrent request(s)]: %.0f documents/second stored, in flight %d/%d, busy %.0f%%, %d failed, %d retries",
+                concurrentRequests, 1e9 * (currentStored - lastReportStored) / elapsed, inFlight, slots,
+                100d * Math.min(1d, (double) (busyNanos - lastReportBusyNanos) / elapsed / slots), failed.get(), retries.get());
+
+        lastReportNanos = now;
+        lastReportBusyNanos = busyNanos;
+        lastReportStored = currentStored;
+        return report;
+    }
+
+    private void countBusy(long now) {
+        busyNanos += inFlight * (now - lastChangeNanos);
+        lastChangeNanos = now;
+    }
+
+    private synchronized void bulkStarted() {
+        countBusy(System.nanoTime());
+        ++inFlight;
+    }
+
+    private synchronized void bulkFinished(long failures) {
+        countBusy(System.nanoTime());
+        --inFlight;
+        failedSinceFlush += failures;
+        notifyAll();
+    }
+
+    private class Listener implements BulkProcessor.Listener {
+        @Override
+        public void beforeBulk(long executionId, BulkRequest request) {
+            bulkStarted();
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+            long failures = 0;
+            String firstFailure = null;
+            for (BulkItemResponse item : response.getItems()) {
+                if (item.isFailed()) {
+                    if (firstFailure == null) {
+                        firstFailure = "[" + item.getId() + "]: " + item.getFailureMessage();
+                    }
+                    ++failures;
+                }
+            }
+
+            bulks.incrementAndGet();
+            stored.addAndGet(response.getItems().length - failures);
+            if (failures > 0) {
+                failed.addAndGet(failures);
+                log.error(String.format("%d of %d documents of bulk could not be stored, first failure %s", failures, response.getItems().length, firstFailure));
+            }
+            bulkFinished(failures);
+        }
+
+        @Override
+        public void afterBulk(long executionId, BulkRequest request, Throwable failure) {
+            bulks.incrementAndGet();
+            failed.addAndGet(request.numberOfActions());
+            log.error("bulk with " + request.numberOfActions() + " documents failed", failure);
+            bulkFinished(request.numberOfActions());
+        }
+    }
+}
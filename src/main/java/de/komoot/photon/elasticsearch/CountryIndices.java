@@ -0,0 +1,102 @@
+package de.komoot.photon.elasticsearch;
+
+import com.neovisionaries.i18n.CountryCode;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The indices of an index generation that is split by country, see {@code -country-indices}.
+ * <p>
+ * The index of a country is created when its first place turns up. After the import,
+ * {@link #writeBoundingBoxes()} stores the extent of every index in its mapping, {@link IndexRouter} uses it
+ * to send searches only to the indices that can contain results.
+ */
+@Slf4j
+public class CountryIndices {
+    /** key of the bounding box of a country index in the _meta of its mapping: [min lon, min lat, max lon, max lat] */
+    static final String BBOX_META = "bbox";
+
+    private final Server server;
+    private final String generation;
+    /** index names by lower case country */
+    private final Map<String, String> indices = new ConcurrentHashMap<>();
+
+    /**
+     * @param generation a new generation from {@link Server#newIndexGeneration()} or the pending one of an aborted import
+     */
+    public CountryIndices(Server server, String generation) {
+        this.server = server;
+        this.generation = generation;
+        for (String index : server.getIndexGenerations()) {
+            if (Server.getGeneration(index).equals(generation) && Server.getCountry(index) != null) {
+                indices.put(Server.getCountry(index), index);
+            }
+        }
+    }
+
+    public String getGeneration() {
+        return generation;
+    }
+
+    /**
+     * @return pattern matching all indices of the generation, for requests that concern the whole generation
+     */
+    public String getPattern() {
+        return generation + "_*";
+    }
+
+    /**
+     * @param countryCode null for places without a country
+     * @return the index for the places of a country, it is created with import settings if it does not exist yet
+     */
+    public String getIndex(CountryCode countryCode) {
+        String country = countryCode == null ? Server.NO_COUNTRY : countryCode.getAlpha2().toLowerCase(Locale.ROOT);
+        String index = indices.get(country);
+        if (index != null) {
+            return index;
+        }
+
+        synchronized (this) {
+            index = indices.get(country);
+            if (index == null) {
+                try {
+                    index = server.createCountryIndex(generation, country);
+                } catch (IOException e) {
+                    throw new RuntimeException("cannot setup index, elastic search config files not readable", e);
+                }
+                server.setImportIndexSettings(index);
+                indices.put(country, index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Store the extent of the places of every country index in its mapping. The documents must be searchable.
+     */
+    public void writeBoundingBoxes() {
+        final Client client = server.getClient();
+        for (String index : indices.values()) {
+            SearchResponse response = client.prepareSearch(index).setSize(0)
+                    .addAggregation(AggregationBuilders.geoBounds(BBOX_META).field("coordinate"))
+                    .execute().actionGet();
+            JSONArray bbox = CountryRouting.toJson(response.getAggregations().get(BBOX_META));
+            if (bbox == null) {
+                log.warn("index " + index + " does not contain any place");
+                continue;
+            }
+
+            Server.putMeta(client, index, new JSONObject().put(BBOX_META, bbox));
+        }
+        log.info("stored the bounding boxes of " + indices.size() + " country indices");
+    }
+}
@@ -0,0 +1,93 @@
+package de.komoot.photon.elasticsearch;
+
+import com.neovisionaries.i18n.CountryCode;
+import de.komoot.photon.Constants;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.geo.GeoPoint;
+import org.elasticsearch.search.aggregations.AggregationBuilders;
+import org.elasticsearch.search.aggregations.bucket.missing.Missing;
+import org.elasticsearch.search.aggregations.bucket.terms.Terms;
+import org.elasticsearch.search.aggregations.metrics.geobounds.GeoBounds;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.util.Locale;
+
+/**
+ * Routing of the places of an index to shards by their country, see {@code -shard-routing}.
+ * <p>
+ * All places of a country are on the same shard, so a search restricted to some countries or to a region only
+ * has to ask the shards of these countries instead of all shards. The routing value of a place is the lower
+ * case alpha-2 code of its country, {@link Server#NO_COUNTRY} for places without one. After the import,
+ * {@link #writeBoundingBoxes(Client, String)} marks the index as routed and stores the extent of the places of
+ * every country, {@link IndexRouter} uses it to choose the routing values of a search.
+ */
+@Slf4j
+public class CountryRouting {
+    static final String ROUTING_META = "routing";
+    static final String ROUTING = "country";
+    /** key of the bounding boxes of the countries in the _meta of the mapping: [min lon, min lat, max lon, max lat] by routing value */
+    static final String COUNTRIES_META = "countries";
+    /** more than there are countries */
+    private static final int MAX_COUNTRIES = 1000;
+
+    private CountryRouting() {
+    }
+
+    /**
+     * @param countryCode null for places without a country
+     * @return the routing value of the places of a country
+     */
+    public static String getRouting(CountryCode countryCode) {
+        return countryCode == null ? Server.NO_COUNTRY : countryCode.getAlpha2().toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Mark an index as routed by country and store the extent of the places of every country in its mapping.
+     * The documents must be searchable.
+     */
+    public static void writeBoundingBoxes(Client client, String indexName) {
+        SearchResponse response = client.prepareSearch(indexName).setSize(0)
+                .addAggregation(AggregationBuilders.terms(COUNTRIES_META).field(Constants.COUNTRYCODE).size(MAX_COUNTRIES)
+                        .subAggregation(AggregationBuilders.geoBounds(COUNTRIES_META).field("coordinate")))
+                .addAggregation(AggregationBuilders.missing(Server.NO_COUNTRY).field(Constants.COUNTRYCODE)
+                        .subAggregation(AggregationBuilders.geoBounds(COUNTRIES_META).field("coordinate")))
+                .execute().actionGet();
+
+        JSONObject countries = new JSONObject();
+        for (Terms.Bucket bucket : response.getAggregations().<Terms>get(COUNTRIES_META).getBuckets()) {
+            JSONArray bbox = toJson(bucket.getAggregations().get(COUNTRIES_META));
+            if (bbox != null) {
+                countries.put(getRouting(CountryCode.getByCode(bucket.getKeyAsString(), false)), bbox);
+            }
+        }
+        JSONArray noCountry = toJson(response.getAggregations().<Missing>get(Server.NO_COUNTRY).getAggregations().get(COUNTRIES_META));
+        if (noCountry != null) {
+            countries.put(Server.NO_COUNTRY, noCountry);
+        }
+
+        Server.putMeta(client, indexName, new JSONObject().put(ROUTING_META, ROUTING).put(COUNTRIES_META, countries));
+        log.info("stored the bounding boxes of " + countries.length() + " countries routed in index " + indexName);
+    }
+
+    /**
+     * @return the bounding box as stored in the _meta of a mapping
+     */
+    static JSONArray toJson(double[] bbox) {
+        return new JSONArray().put(bbox[0]).put(bbox[1]).put(bbox[2]).put(bbox[3]);
+    }
+
+    /**
+     * @return [min lon, min lat, max lon, max lat], null if there were no places
+     */
+    static JSONArray toJson(GeoBounds bounds) {
+        GeoPoint topLeft = bounds.topLeft();
+        GeoPoint bottomRight = bounds.bottomRight();
+        if (topLeft == null || bottomRight == null) {
+            return null;
+        }
+        return new JSONArray().put(topLeft.getLon()).put(bottomRight.getLat()).put(bottomRight.getLon()).put(topLeft.getLat());
+    }
+}
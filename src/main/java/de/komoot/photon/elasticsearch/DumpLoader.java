@@ -0,0 +1,194 @@
+package de.komoot.photon.elasticsearch;
+
+import de.komoot.photon.JsonDumper;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.common.io.stream.BytesStreamOutput;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Loads the files written by {@link JsonDumper} into the index.
+ * <p>
+ * Every file is read by its own thread. The content is cut into chunks of complete documents and handed
+ * to the bulk sender as it is, so the documents are neither parsed nor serialized again. Files ending
+ * in '.gz' are decompressed on the fly.
+ */
+@Slf4j
+public class DumpLoader {
+    private static final String INDEX_TYPE = "place";
+    private static final int READ_BUFFER_SIZE = 1 << 20;
+    /** number of documents that are passed to the bulk sender at once */
+    private static final int CHUNK_DOCUMENTS = 1000;
+
+    private final String indexName;
+    private final BulkSender bulkSender;
+    private final AtomicLong documents = new AtomicLong();
+
+    public DumpLoader(String indexName, BulkSender bulkSender) {
+        this.indexName = indexName;
+        this.bulkSender = bulkSender;
+    }
+
+    /**
+     * Get the files to load from a comma separated list. Manifests of a dump stand for all files of the dump.
+     */
+    public static List<File> getDumpFiles(String fileNames) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (String fileName : fileNames.split(",")) {
+            File file = new File(fileName.trim());
+            if (!file.getName().endsWith(".manifest.json")) {
+                files.add(file);
+                continue;
+            }
+
+            JSONObject manifest = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            if (!manifest.optBoolean("complete", true)) {
+                log.warn("dump " + file + " was not written completely, documents may be missing");
+            }
+            JSONArray dumpFiles = manifest.getJSONArray("files");
+            for (int i = 0; i < dumpFiles.length(); i++) {
+                files.add(new File(file.getAbsoluteFile().getParentFile(), dumpFiles.getJSONObject(i).getString("file")));
+            }
+        }
+        return files;
+    }
+
+    /**
+     * Get the import profile the places of a dump were selected with from its manifests.
+     *
+     * @param fileNames comma separated list of dump files and manifests
+     * @return json of the profile, empty if the dump has no manifest or contains all places
+     * @throws IllegalArgumentException if the manifests name different profiles
+     */
+    public static JSONObject getImportProfile(String fileNames) throws IOException {
+        JSONObject profile = null;
+        for (String fileName : fileNames.split(",")) {
+            File file = new File(fileName.trim());
+            if (!file.getName().endsWith(".manifest.json")) {
+                continue;
+            }
+
+            JSONObject manifest = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+            JSONObject dumpProfile = manifest.has("import_profile") ? manifest.getJSONObject("import_profile") : new JSONObject();
+            if (profile == null) {
+                profile = dumpProfile;
+            } else if (!profile.similar(dumpProfile)) {
+                throw new IllegalArgumentException("the dumps " + fileNames + " were created with different import profiles");
+            }
+        }
+        return profile == null ? new JSONObject() : profile;
+    }
+
+    /**
+     * Load all files in parallel and wait until elasticsearch has answered all bulk requests.
+     *
+     * @return number of documents read from the files
+     * @throws RuntimeException if a file could not be read or elasticsearch did not store all documents
+     */
+    public long load(List<File> files) {
+        final long startMillis = System.currentTimeMillis();
+        final List<Thread> readers = new ArrayList<>(files.size());
+        final List<IOException> failures = new ArrayList<>();
+
+        for (final File file : files) {
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        loadFile(file);
+                    } catch (IOException e) {
+                        log.error("cannot load " + file, e);
+                        synchronized (failures) {
+                            failures.add(e);
+                        }
+                    }
+                }
+            }, "json-import-" + readers.size());
+            readers.add(reader);
+            reader.start();
+        }
+
+        for (Thread reader : readers) {
+            try {
+                reader.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("interrupted while loading json dump", e);
+            }
+        }
+        bulkSender.close();
+
+        if (!failures.isEmpty()) {
+            throw new RuntimeException("json import failed, " + failures.size() + " of " + files.size() + " files could not be read", failures.get(0));
+        }
+
+        if (bulkSender.getFailedCount() > 0) {
+            throw new RuntimeException("json import failed, " + bulkSender.getFailedCount() + " of " + documents.get() + " documents could not be stored");
+        }
+
+        log.info(String.format("loaded %d documents from %d files in %d seconds",
+                documents.get(), files.size(), (System.currentTimeMillis() - startMillis) / 1000));
+        return documents.get();
+    }
+
+    private void loadFile(File file) throws IOException {
+        log.info("loading " + file);
+        try (InputStream input = openFile(file)) {
+            byte[] buffer = new byte[1 << 16];
+            BytesStreamOutput chunk = new BytesStreamOutput(1 << 20);
+            int lines = 0;
+            int read;
+            while ((read = input.read(buffer)) > 0) {
+                int start = 0;
+                for (int i = 0; i < read; i++) {
+                    // each document consists of the action line and the source line
+                    if (buffer[i] == '\n' && ++lines == 2 * CHUNK_DOCUMENTS) {
+                        chunk.write(buffer, start, i + 1 - start);
+                        send(chunk, lines);
+                        chunk = new BytesStreamOutput(1 << 20);
+                        lines = 0;
+                        start = i + 1;
+                    }
+                }
+                chunk.write(buffer, start, read - start);
+            }
+
+            if (chunk.size() > 0) {
+                if (chunk.bytes().get(chunk.size() - 1) != '\n') {
+                    chunk.write('\n');
+                    ++lines;
+                }
+                send(chunk, lines);
+            }
+        }
+    }
+
+    private void send(BytesStreamOutput chunk, int lines) throws IOException {
+        // the bulk sender keeps references into the chunk, so every chunk needs its own buffer
+        bulkSender.add(chunk.bytes(), indexName, INDEX_TYPE, XContentType.JSON);
+        documents.addAndGet(lines / 2);
+    }
+
+    private static InputStream openFile(File file) throws IOException {
+        InputStream input = Channels.newInputStream(FileChannel.open(file.toPath(), StandardOpenOption.READ));
+        if (file.getName().endsWith(".gz")) {
+            return new GZIPInputStream(input, READ_BUFFER_SIZE);
+        }
+        return new BufferedInputStream(input, READ_BUFFER_SIZE);
+    }
+}
@@ -1,12 +1,11 @@
 package de.komoot.photon.elasticsearch;
 
 import de.komoot.photon.PhotonDoc;
-import de.komoot.photon.Utils;
+import de.komoot.photon.DocumentSerializer;
 import lombok.extern.slf4j.Slf4j;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.Requests;
+import org.elasticsearch.common.xcontent.XContentType;
 import org.elasticsearch.search.builder.SearchSourceBuilder;
 
 import java.io.IOException;
@@ -18,49 +17,89 @@ import java.io.IOException;
  */
 @Slf4j
 public class Importer implements de.komoot.photon.Importer {
-    private int documentCount = 0;
-
-    private final String indexName = "photon";
+    private final String indexName;
     private final String indexType = "place";
     private final Client esClient;
-    private BulkRequestBuilder bulkRequest;
-    private final String[] languages;
+    private final BulkSender bulkSender;
+    private final DocumentSerializer serializer;
+    private final CountryIndices countryIndices;
+    private boolean countryRouting = false;
 
     public Importer(Client esClient, String languages) {
+        this(esClient, languages, new BulkSender(esClient));
+    }
+
+    public Importer(Client esClient, String languages, BulkSender bulkSender) {
+        this(esClient, Server.INDEX_ALIAS, languages, bulkSender);
+    }
+
+    /**
+     * @param indexName index to write to, usually a new generation of the photon index that is not served yet
+     */
+    public Importer(Client esClient, String indexName, String languages, BulkSender bulkSender) {
+        this(esClient, indexName, null, languages, bulkSender);
+    }
+
+    /**
+     * Write every place to the index of its country.
+     */
+    public Importer(Client esClient, CountryIndices countryIndices, String languages, BulkSender bulkSender) {
+        this(esClient, countryIndices.getPattern(), countryIndices, languages, bulkSender);
+    }
+
+    private Importer(Client esClient, String indexName, CountryIndices countryIndices, String languages, BulkSender bulkSender) {
         this.esClient = esClient;
-        this.bulkRequest = esClient.prepareBulk();
-        this.languages = languages.split(",");
+        this.indexName = indexName;
+        this.countryIndices = countryIndices;
+        this.bulkSender = bulkSender;
+        this.serializer = new DocumentSerializer(languages.split(","), XContentType.SMILE);
+    }
+
+    /**
+     * Route the places to shards by their country, see {@link CountryRouting}.
+     */
+    public void setCountryRouting(boolean countryRouting) {
+        this.countryRouting = countryRouting;
     }
 
     @Override
-    public void add(PhotonDoc doc) {
+    public boolean add(PhotonDoc doc) {
+        String index = countryIndices == null ? indexName : countryIndices.getIndex(doc.getCountryCode());
+        String routing = countryRouting ? CountryRouting.getRouting(doc.getCountryCode()) : null;
         try {
-            this.bulkRequest.add(this.esClient.prepareIndex(indexName, indexType).
-                    setSource(Utils.convert(doc, languages)).setId(doc.getUid()));
+            this.bulkSender.add(this.esClient.prepareIndex(index, indexType).
+                    setSource(serializer.serialize(doc), serializer.getType()).setId(doc.getUid()).setRouting(routing).request());
+            return true;
         } catch (IOException e) {
             log.error("could not bulk add document " + doc.getUid(), e);
-            return;
-        }
-        this.documentCount += 1;
-        if (this.documentCount > 0 && this.documentCount % 10000 == 0) {
-            this.saveDocuments();
+            return false;
         }
     }
 
-    private void saveDocuments() {
-        if (this.documentCount < 1) return;
-
-        BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-        if (bulkResponse.hasFailures()) {
-            log.error("error while bulk import:" + bulkResponse.buildFailureMessage());
+    /**
+     * Send all pending documents to elasticsearch, wait for the bulk responses and make sure they are written to disk.
+     *
+     * @return false if any document since the last flush could not be stored
+     */
+    @Override
+    public boolean flush() {
+        if (!this.bulkSender.flush()) {
+            return false;
         }
-        this.bulkRequest = this.esClient.prepareBulk();
+
+        // with the relaxed translog durability of an import the bulk response alone does not mean that the documents survive a crash
+        this.esClient.admin().indices().prepareFlush(indexName).execute().actionGet();
+        return true;
     }
 
     @Override
     public void finish() {
-        this.saveDocuments();
-        this.documentCount = 0;
+        this.bulkSender.close();
+    }
+
+    @Override
+    public String report() {
+        return this.bulkSender.report();
     }
 
     public long count() {
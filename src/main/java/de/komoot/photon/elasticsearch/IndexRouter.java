@@ -0,0 +1,418 @@
+package de.komoot.photon.elasticsearch;
+
+import com.neovisionaries.i18n.CountryCode;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Point;
+import lombok.extern.slf4j.Slf4j;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
+import org.elasticsearch.cluster.routing.OperationRouting;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+
+import java.util.*;
+
+/**
+ * Chooses the indices behind the photon alias and the shards within them that a request has to go to.
+ * <p>
+ * As long as photon serves a single index, every request goes to the alias. When the index is split by country
+ * (see {@link CountryIndices}), searches that are restricted to some countries or to a region only go to the
+ * indices of these countries or the indices whose places intersect the region. Documents of the updater go to
+ * the index of their country.
+ * <p>
+ * When the places of a single index are routed to shards by country (see {@link CountryRouting}), the same
+ * restrictions select the routing values of a search, so that it only hits the shards of these countries.
+ * <p>
+ * The layout of the indices is read from the cluster state and cached for a minute, so that a newly activated
+ * index generation is picked up without restarting photon. {@link Server#deleteOldIndices(int)} keeps the replaced
+ * indices until the cache has expired.
+ */
+@Slf4j
+public class IndexRouter {
+    static final long CACHE_MILLIS = 60 * 1000;
+    private static final String[] ALL_INDICES = {Server.INDEX_ALIAS};
+    private static final double KM_PER_DEGREE = 111.2;
+    /** computes the shard of a routing value like elasticsearch does */
+    private static final OperationRouting OPERATION_ROUTING = new OperationRouting(Settings.EMPTY,
+            new ClusterSettings(Settings.EMPTY, ClusterSettings.BUILT_IN_CLUSTER_SETTINGS));
+
+    private final Client client;
+    private volatile Layout layout = null;
+    private volatile long loadedMillis = 0;
+
+    public IndexRouter(Client client) {
+        this.client = client;
+    }
+
+    /**
+     * @param region        the area the results have to be in, null for no restriction
+     * @param countryCodes  upper case alpha-2 codes of the countries the results have to be in, empty for no restriction
+     * @return the indices to search
+     */
+    public String[] getIndices(Envelope region, Set<String> countryCodes) {
+        List<CountryIndex> indices = getLayout().countryIndices;
+        List<String> selected = select(indices, region, countryCodes);
+        // nothing can match, the search over all indices finds that out as well
+        return selected == null || selected.isEmpty() ? ALL_INDICES : selected.toArray(new String[selected.size()]);
+    }
+
+    /**
+     * @param location center of a reverse search
+     * @param radius   search radius in kilometers
+     * @return the indices to search
+     */
+    public String[] getIndices(Point location, double radius) {
+        return getIndices(getRegion(location, radius), null);
+    }
+
+    /**
+     * @param region        the area the results have to be in, null for no restriction
+     * @param countryCodes  upper case alpha-2 codes of the countries the results have to be in, empty for no restriction
+     * @return the comma separated routing values of a search, null to search all shards
+     */
+    public String getRouting(Envelope region, Set<String> countryCodes) {
+        List<CountryIndex> routes = getLayout().routedCountries;
+        List<String> selected = select(routes, region, countryCodes);
+        return selected == null || selected.isEmpty() ? null : String.join(",", selected);
+    }
+
+    /**
+     * @param location center of a reverse search
+     * @param radius   search radius in kilometers
+     * @return the comma separated routing values of a search, null to search all shards
+     */
+    public String getRouting(Point location, double radius) {
+        return getRouting(getRegion(location, radius), null);
+    }
+
+    /**
+     * @param countryCode null for places without a country
+     * @return the routing value to write a place of the country with, null if the places are not routed
+     */
+    public String getRouting(CountryCode countryCode) {
+        return getLayout().routedCountries == null ? null : CountryRouting.getRouting(countryCode);
+    }
+
+    /**
+     * @return true if the places of the index are routed to shards by country
+     */
+    public boolean isRouted() {
+        return getLayout().routedCountries != null;
+    }
+
+    /**
+     * A get by id only looks at the shard of its routing value. To find a place whose country is unknown, it has to
+     * be looked up with each of these values.
+     *
+     * @return one routing value per shard of the index routed by country, null if the places are not routed
+     */
+    public String[] getShardRoutings() {
+        return getLayout().shardRoutings;
+    }
+
+    /**
+     * @return true if photon serves an index split by country
+     */
+    public boolean isSplit() {
+        return getLayout().countryIndices != null;
+    }
+
+    /**
+     * @param countryCode null for places without a country
+     * @return true if photon serves an index split by country, but there is no index for the places of the country
+     */
+    public boolean isMissingIndex(CountryCode countryCode) {
+        List<CountryIndex> indices = getLayout().countryIndices;
+        if (indices == null) {
+            return false;
+        }
+
+        String country = countryCode == null ? null : countryCode.getAlpha2();
+        for (CountryIndex index : indices) {
+            if (Objects.equals(country, index.country)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param indexName the index a place is written to
+     * @param routing   the routing value a place is written with
+     * @return false if searches restricted to a region may miss a place at the location because it is outside the
+     * stored extent of its country index or of the places of its routing value
+     */
+    public boolean covers(String indexName, String routing, double lon, double lat) {
+        Layout layout = getLayout();
+        if (layout.routedCountries != null) {
+            return covers(layout.routedCountries, routing, lon, lat);
+        }
+        if (layout.countryIndices != null) {
+            return covers(layout.countryIndices, indexName, lon, lat);
+        }
+        return true;
+    }
+
+    private static boolean covers(List<CountryIndex> entries, String name, double lon, double lat) {
+        for (CountryIndex entry : entries) {
+            if (entry.name.equals(name)) {
+                return entry.bbox == null || extend(entry.bbox, lon, lat) == entry.bbox;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param bbox [min lon, min lat, max lon, max lat], min lon is larger than max lon if the box spans the antimeridian
+     * @return the smallest box containing the box and the location, the box itself if it contains the location
+     */
+    static double[] extend(double[] bbox, double lon, double lat) {
+        boolean spansAntimeridian = bbox[0] > bbox[2];
+        boolean coversLon = spansAntimeridian ? lon >= bbox[0] || lon <= bbox[2] : lon >= bbox[0] && lon <= bbox[2];
+        if (coversLon && lat >= bbox[1] && lat <= bbox[3]) {
+            return bbox;
+        }
+
+        double[] extended = bbox.clone();
+        extended[1] = Math.min(bbox[1], lat);
+        extended[3] = Math.max(bbox[3], lat);
+        if (!coversLon) {
+            // grow on the side that is closer, like the geo bounds of the import do
+            double west = (bbox[0] - lon + 360) % 360;
+            double east = (lon - bbox[2] + 360) % 360;
+            if (west < east) {
+                extended[0] = lon;
+            } else {
+                extended[2] = lon;
+            }
+        }
+        return extended;
+    }
+
+    /**
+     * Places of countries that have no index of their own go to the index of the places without country.
+     *
+     * @param countryCode null for places without a country
+     * @return the index to write a place of the country to
+     */
+    public String getIndex(CountryCode countryCode) {
+        List<CountryIndex> indices = getLayout().countryIndices;
+        if (indices == null) {
+            return Server.INDEX_ALIAS;
+        }
+
+        String country = countryCode == null ? null : countryCode.getAlpha2();
+        String fallback = indices.get(0).name;
+        for (CountryIndex index : indices) {
+            if (Objects.equals(country, index.country)) {
+                return index.name;
+            }
+            if (index.country == null) {
+                fallback = index.name;
+            }
+        }
+        log.warn("no index for places of country " + country + ", using " + fallback);
+        return fallback;
+    }
+
+    /**
+     * @return all indices a place may be written to
+     */
+    public String[] getIndices() {
+        List<CountryIndex> indices = getLayout().countryIndices;
+        if (indices == null) {
+            return ALL_INDICES;
+        }
+
+        String[] names = new String[indices.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = indices.get(i).name;
+        }
+        return names;
+    }
+
+    /**
+     * @return the names of the entries that match the restrictions, null if there are no entries or no restrictions
+     */
+    private static List<String> select(List<CountryIndex> entries, Envelope region, Set<String> countryCodes) {
+        boolean filterCountries = countryCodes != null && !countryCodes.isEmpty();
+        if (entries == null || (region == null && !filterCountries)) {
+            return null;
+        }
+
+        List<String> selected = new ArrayList<>();
+        for (CountryIndex entry : entries) {
+            if (filterCountries && !countryCodes.contains(entry.country)) {
+                continue;
+            }
+            if (region != null && !entry.intersects(region)) {
+                continue;
+            }
+            selected.add(entry.name);
+        }
+        return selected;
+    }
+
+    /**
+     * @return the bounding box of a circle, null if it contains a pole or spans all longitudes
+     */
+    private static Envelope getRegion(Point location, double radius) {
+        double latDelta = radius / KM_PER_DEGREE;
+        double lonDelta = radius / (KM_PER_DEGREE * Math.max(0.01, Math.cos(Math.toRadians(location.getY()))));
+        if (location.getY() + latDelta >= 90 || location.getY() - latDelta <= -90 || lonDelta >= 180) {
+            return null;
+        }
+        return new Envelope(location.getX() - lonDelta, location.getX() + lonDelta,
+                location.getY() - latDelta, location.getY() + latDelta);
+    }
+
+    private Layout getLayout() {
+        if (System.currentTimeMillis() - loadedMillis > CACHE_MILLIS) {
+            synchronized (this) {
+                if (System.currentTimeMillis() - loadedMillis > CACHE_MILLIS) {
+                    layout = loadLayout();
+                    loadedMillis = System.currentTimeMillis();
+                }
+            }
+        }
+        return layout;
+    }
+
+    /**
+     * Forget the cached index layout, e.g. after activating another index generation.
+     */
+    public synchronized void reset() {
+        loadedMillis = 0;
+    }
+
+    private Layout loadLayout() {
+        ClusterState state = client.admin().cluster().prepareState().setMetaData(true).execute().actionGet().getState();
+        MetaData metaData = state.getMetaData();
+        List<IndexMetaData> active = new ArrayList<>();
+        for (IndexMetaData index : metaData.getIndices().values().toArray(IndexMetaData.class)) {
+            if (index.getAliases().containsKey(Server.INDEX_ALIAS)) {
+                active.add(index);
+            }
+        }
+
+        if (active.size() == 1 && Server.getCountry(active.get(0).getIndex().getName()) == null) {
+            List<CountryIndex> routedCountries = getRoutedCountries(active.get(0));
+            return new Layout(null, routedCountries, routedCountries == null ? null : getShardRoutings(state, active.get(0).getIndex().getName()));
+        }
+
+        List<CountryIndex> indices = new ArrayList<>();
+        for (IndexMetaData index : active) {
+            String name = index.getIndex().getName();
+            String country = Server.getCountry(name);
+            if (country == null) {
+                return new Layout(null, null, null);
+            }
+            indices.add(new CountryIndex(name, country.equals(Server.NO_COUNTRY) ? null : country.toUpperCase(Locale.ROOT),
+                    toBoundingBox(Server.getMeta(index).get(CountryIndices.BBOX_META))));
+        }
+
+        if (indices.isEmpty()) {
+            return new Layout(null, null, null);
+        }
+        Collections.sort(indices, (a, b) -> a.name.compareTo(b.name));
+        return new Layout(indices, null, null);
+    }
+
+    /**
+     * @return the routing values of the countries with the bounding boxes of their places as stored by
+     * {@link CountryRouting#writeBoundingBoxes(Client, String)}, null if the index is not routed by country
+     */
+    @SuppressWarnings("unchecked")
+    private static List<CountryIndex> getRoutedCountries(IndexMetaData index) {
+        Map<String, Object> meta = Server.getMeta(index);
+        if (!CountryRouting.ROUTING.equals(meta.get(CountryRouting.ROUTING_META)) || !(meta.get(CountryRouting.COUNTRIES_META) instanceof Map)) {
+            return null;
+        }
+
+        List<CountryIndex> routes = new ArrayList<>();
+        for (Map.Entry<String, Object> country : ((Map<String, Object>) meta.get(CountryRouting.COUNTRIES_META)).entrySet()) {
+            String code = country.getKey().equals(Server.NO_COUNTRY) ? null : country.getKey().toUpperCase(Locale.ROOT);
+            routes.add(new CountryIndex(country.getKey(), code, toBoundingBox(country.getValue())));
+        }
+        return routes;
+    }
+
+    /**
+     * @return the first of the routing values "0", "1", ... that leads to each shard of the index
+     */
+    private static String[] getShardRoutings(ClusterState state, String indexName) {
+        String[] routings = new String[state.getMetaData().index(indexName).getNumberOfShards()];
+        int found = 0;
+        for (int i = 0; found < routings.length; i++) {
+            int shard = OPERATION_ROUTING.shardId(state, indexName, null, String.valueOf(i)).id();
+            if (routings[shard] == null) {
+                routings[shard] = String.valueOf(i);
+                found++;
+            }
+        }
+        return routings;
+    }
+
+    /**
+     * @return [min lon, min lat, max lon, max lat] from the stored list, null if unknown
+     */
+    static double[] toBoundingBox(Object bbox) {
+        if (!(bbox instanceof List) || ((List<?>) bbox).size() != 4) {
+            return null;
+        }
+
+        double[] coordinates = new double[4];
+        for (int i = 0; i < 4; i++) {
+            coordinates[i] = ((Number) ((List<?>) bbox).get(i)).doubleValue();
+        }
+        return coordinates;
+    }
+
+    private static class Layout {
+        /** the indices behind the photon alias, null if photon does not serve an index split by country */
+        private final List<CountryIndex> countryIndices;
+        /** routing values of the countries, null if the places are not routed by country */
+        private final List<CountryIndex> routedCountries;
+        /** one routing value per shard, null if the places are not routed by country */
+        private final String[] shardRoutings;
+
+        Layout(List<CountryIndex> countryIndices, List<CountryIndex> routedCountries, String[] shardRoutings) {
+            this.countryIndices = countryIndices;
+            this.routedCountries = routedCountries;
+            this.shardRoutings = shardRoutings;
+        }
+    }
+
+    /**
+     * The places of one country: a country index or the routing value of a country.
+     */
+    private static class CountryIndex {
+        /** index name or routing value */
+        private final String name;
+        /** upper case alpha-2 code, null for the places without country */
+        private final String country;
+        private final double[] bbox;
+
+        CountryIndex(String name, String country, double[] bbox) {
+            this.name = name;
+            this.country = country;
+            this.bbox = bbox;
+        }
+
+        boolean intersects(Envelope region) {
+            if (bbox == null) {
+                return true;
+            }
+            if (region.getMinY() > bbox[3] || region.getMaxY() < bbox[1]) {
+                return false;
+            }
+            if (bbox[0] <= bbox[2]) {
+                return region.getMinX() <= bbox[2] && region.getMaxX() >= bbox[0];
+            }
+            // the places of the country span the antimeridian
+            return region.getMaxX() >= bbox[0] || region.getMinX() <= bbox[2];
+        }
+    }
+}
@@ -4,8 +4,13 @@ import de.komoot.photon.CommandLineArgs;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.SystemUtils;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequest;
+import org.elasticsearch.action.admin.indices.alias.IndicesAliasesRequestBuilder;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.client.transport.TransportClient;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.metadata.MetaData;
 import org.elasticsearch.common.settings.Settings;
 import org.elasticsearch.common.transport.InetSocketTransportAddress;
 import org.elasticsearch.common.xcontent.XContentType;
@@ -28,10 +33,8 @@ import java.net.URL;
 import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.LinkedList;
-import java.util.List;
+import java.text.SimpleDateFormat;
+import java.util.*;
 
 /**
  * Helper class to start/stop elasticsearch node and get elasticsearch clients
@@ -40,6 +43,30 @@ import java.util.List;
  */
 @Slf4j
 public class Server {
+    /** the name under which photon serves its current index */
+    public static final String INDEX_ALIAS = "photon";
+    private static final String INDEX_GENERATION_PREFIX = INDEX_ALIAS + "_";
+    private static final String INDEX_GENERATION_FORMAT = "yyyyMMddHHmmssSSS";
+    /** length of the name of an index generation, the indices of a generation built per country append {@code _<country>} to it */
+    private static final int INDEX_GENERATION_LENGTH = INDEX_GENERATION_PREFIX.length() + INDEX_GENERATION_FORMAT.length();
+    /** country part of the name of the country index that holds the places without a country */
+    public static final String NO_COUNTRY = "none";
+
+    /**
+     * Version of the mapping of new indices, stored in the _meta of their mapping. Version 2 indexes the countrycode
+     * as keyword for the countrycode filter, indices without a version have the mapping of version 1.
+     */
+    static final int MAPPING_VERSION = 2;
+    static final String MAPPING_VERSION_META = "mapping_version";
+
+    /** key of the settings an index had before the import in the _meta of its mapping, see {@link #setImportIndexSettings(String)} */
+    static final String SERVING_SETTINGS_META = "serving_settings";
+    /** _meta key of the import profile the places of an index were selected with */
+    static final String IMPORT_PROFILE_META = "import_profile";
+    private static final String INDEX_TYPE = "place";
+    /** the settings that are changed for the import */
+    private static final String[] IMPORT_SETTINGS = {"index.refresh_interval", "index.number_of_replicas", "index.translog.durability", "index.translog.flush_threshold_size"};
+
     private Node esNode;
 
     private Client esClient;
@@ -54,6 +81,16 @@ public class Server {
 
     private Integer shards = null;
 
+    private String indexBufferSize = null;
+
+    private boolean offlineBuild = false;
+
+    /** time the last index generation was activated by this server */
+    private long activatedMillis = 0;
+
+    /** time to keep replaced indices after an activation, searchers still use them until their cached layout expires */
+    private long deleteDelayMillis = IndexRouter.CACHE_MILLIS + 10 * 1000;
+
     private final boolean disableDiscSpaceChecks;
 
     protected static class MyNode extends Node {
@@ -64,6 +101,13 @@ public class Server {
 
     public Server(CommandLineArgs args) {
         this(args.getCluster(), args.getDataDirectory(), args.getLanguages(), args.getTransportAddresses(), args.isDisableDiscSpaceChecks());
+        if (args.isNominatimImport() || args.getJsonImport() != null) {
+            // give the indexing of the bulk import more memory than the default 10% of the heap
+            this.indexBufferSize = "30%";
+        }
+        if (args.isOfflineBuild()) {
+            setOfflineBuild(true);
+        }
     }
 
     public Server(String clusterName, String mainDirectory, String languages, String transportAddresses, boolean disableDiscSpaceChecks) {
@@ -88,6 +132,9 @@ public class Server {
         sBuilder.put("network.host", "0.0.0.0"); // http://stackoverflow.com/a/15509589/1245622
         sBuilder.put("cluster.name", clusterName);
         sBuilder.put("cluster.routing.allocation.disk.threshold_enabled", !disableDiscSpaceChecks);
+        if (indexBufferSize != null) {
+            sBuilder.put("indices.memory.index_buffer_size", indexBufferSize);
+        }
 
         if (transportAddresses != null && !transportAddresses.isEmpty()) {
             TransportClient trClient = new PreBuiltTransportClient(sBuilder.build());
@@ -110,7 +157,14 @@ public class Server {
         } else {
 
             try {
-                sBuilder.put("transport.type", "netty4").put("http.type", "netty4").put("http.enabled", "true");
+                sBuilder.put("transport.type", "netty4").put("http.type", "netty4").put("http.enabled", !offlineBuild);
+                if (offlineBuild) {
+                    // the node only builds the index: it is not reachable from outside, does not look for other
+                    // nodes and lets bulk requests queue up instead of rejecting them
+                    sBuilder.put("network.host", "127.0.0.1")
+                            .put("discovery.type", "single-node")
+                            .put("thread_pool.bulk.queue_size", 1000);
+                }
                 Settings settings = sBuilder.build();
                 Collection<Class<? extends Plugin>> lList = new LinkedList<>();
                 lList.add(Netty4Plugin.class);
@@ -200,9 +254,109 @@ public class Server {
 
     }
 
+    /**
+     * Delete all generations of the photon index and create a new and empty one behind the photon alias.
+     */
     public void recreateIndex() throws IOException {
+        // an index from a previous run may still be recovering, deleting it would miss it
+        this.getClient().admin().cluster().prepareHealth().setWaitForYellowStatus().execute().actionGet();
         deleteIndex();
 
+        switchAlias(Collections.singletonList(createIndexGeneration()), false);
+    }
+
+    /**
+     * Create a new and empty generation of the photon index. The index is not searchable through the photon
+     * alias until it is activated with {@link #activateIndex(String)}, so the current generation keeps
+     * serving requests while the new one is built.
+     *
+     * @return the name of the new index
+     */
+    public String createIndexGeneration() throws IOException {
+        String indexName = newIndexGeneration();
+        createIndex(indexName, shards);
+        log.info("created index " + indexName);
+        return indexName;
+    }
+
+    /**
+     * Get the name for a new generation of the photon index that is built as one index per country. Unlike
+     * {@link #createIndexGeneration()} no index is created, the country indices are added with
+     * {@link #createCountryIndex(String, String)} as their places turn up.
+     */
+    public String newIndexGeneration() {
+        return INDEX_GENERATION_PREFIX + new SimpleDateFormat(INDEX_GENERATION_FORMAT).format(new Date());
+    }
+
+    /**
+     * Create the index for one country of an index generation. Even large countries are small compared to the
+     * planet, so country indices have a single shard.
+     *
+     * @param country ISO 3166 alpha-2 code or {@link #NO_COUNTRY}
+     * @return the name of the new index
+     */
+    public String createCountryIndex(String generation, String country) throws IOException {
+        String indexName = generation + "_" + country.toLowerCase(Locale.ROOT);
+        createIndex(indexName, 1);
+        log.info("created index " + indexName);
+        return indexName;
+    }
+
+    /**
+     * Add the index for a country that turns up in an update to the active indices that are split by country.
+     * The index belongs to the newest active generation and is searchable right away.
+     *
+     * @param country ISO 3166 alpha-2 code or {@link #NO_COUNTRY}
+     * @param bbox    extent of the first places of the index, see {@link CountryIndices#writeBoundingBoxes()}, null if unknown
+     * @return the name of the index, the existing one if it was added in the meantime
+     */
+    public synchronized String addCountryIndex(String country, double[] bbox) throws IOException {
+        for (String active : getActiveIndices()) {
+            if (country.equalsIgnoreCase(getCountry(active))) {
+                return active;
+            }
+        }
+
+        String generation = getNewestActiveGeneration();
+        if (generation == null) {
+            throw new IllegalStateException("photon does not serve an index split by country");
+        }
+        String indexName = generation + "_" + country.toLowerCase(Locale.ROOT);
+        if (!getMetaData().hasIndex(indexName)) {
+            JSONObject meta = new JSONObject().put(IMPORT_PROFILE_META, getImportProfile());
+            createCountryIndex(generation, country);
+            if (bbox != null) {
+                // before the index is visible, so that no search misses its places
+                meta.put(CountryIndices.BBOX_META, CountryRouting.toJson(bbox));
+            }
+            putMeta(this.getClient(), indexName, meta);
+        }
+        this.getClient().admin().indices().prepareAliases().addAlias(indexName, INDEX_ALIAS).execute().actionGet();
+        log.info("added index " + indexName + " for places of a new country");
+        return indexName;
+    }
+
+    /**
+     * @return the generation an index belongs to, the index name itself for an index that is not part of a generation
+     */
+    static String getGeneration(String indexName) {
+        if (indexName.startsWith(INDEX_GENERATION_PREFIX) && indexName.length() > INDEX_GENERATION_LENGTH) {
+            return indexName.substring(0, INDEX_GENERATION_LENGTH);
+        }
+        return indexName;
+    }
+
+    /**
+     * @return the lower case country part of the name of a country index, null for an index that does not belong to a single country
+     */
+    public static String getCountry(String indexName) {
+        if (indexName.startsWith(INDEX_GENERATION_PREFIX) && indexName.length() > INDEX_GENERATION_LENGTH + 1) {
+            return indexName.substring(INDEX_GENERATION_LENGTH + 1);
+        }
+        return null;
+    }
+
+    private void createIndex(String indexName, Integer shards) throws IOException {
         final Client client = this.getClient();
         final InputStream mappings = Thread.currentThread().getContextClassLoader()
                 .getResourceAsStream("mappings.json");
@@ -215,22 +369,478 @@ public class Server {
 
         // add all langs to the mapping
         mappingsJSON = addLangsToMapping(mappingsJSON);
+        mappingsJSON.getJSONObject("place").put("_meta", new JSONObject().put(MAPPING_VERSION_META, MAPPING_VERSION));
 
         JSONObject settings = new JSONObject(IOUtils.toString(index_settings, utf8_charset));
         if (shards != null) {
             settings.put("index", new JSONObject("{ \"number_of_shards\":" + shards + " }"));
         }
-        client.admin().indices().prepareCreate("photon").setSettings(settings.toString(), XContentType.JSON).execute().actionGet();
-        ;
-        client.admin().indices().preparePutMapping("photon").setType("place").setSource(mappingsJSON.toString(), XContentType.JSON).execute().actionGet();
+        client.admin().indices().prepareCreate(indexName).setSettings(settings.toString(), XContentType.JSON).execute().actionGet();
+        client.admin().indices().preparePutMapping(indexName).setType("place").setSource(mappingsJSON.toString(), XContentType.JSON).execute().actionGet();
         log.info("mapping created: " + mappingsJSON.toString());
     }
 
-    public void deleteIndex() {
+    /**
+     * Make a newly built index generation the one that is served under the photon alias. The alias is moved
+     * in a single atomic step, searches either see the old or the new index.
+     *
+     * @throws IllegalStateException if the new index does not contain any document, the current one is kept then
+     */
+    public void activateIndex(String generation) {
+        activateIndex(generation, false, -1);
+    }
+
+    /**
+     * Same as {@link #activateIndex(String)}, for a generation that was built per country the active indices of
+     * all other countries may be kept. This way single countries can be rebuilt without a planet-wide import.
+     *
+     * @param keepOtherCountries only replace the active indices of the countries contained in the new generation
+     * @throws IllegalStateException if the new generation does not contain any document or if only some countries
+     *                               should be replaced, but the active index is not split by country
+     */
+    public void activateIndex(String generation, boolean keepOtherCountries) {
+        activateIndex(generation, keepOtherCountries, -1);
+    }
+
+    /**
+     * Same as {@link #activateIndex(String, boolean)}, the new generation must contain exactly the documents the
+     * import wrote to it.
+     *
+     * @param expectedDocuments the number of documents of the import, -1 if unknown
+     * @throws IllegalStateException if the new generation is empty or does not contain the expected number of documents
+     */
+    public void activateIndex(String generation, boolean keepOtherCountries, long expectedDocuments) {
+        final Client client = this.getClient();
+        List<String> indices = getGenerationIndices(generation);
+        if (indices.isEmpty()) {
+            throw new IllegalStateException("index " + generation + " does not exist, photon keeps serving " + getActiveIndices());
+        }
+
+        final String[] indexNames = indices.toArray(new String[indices.size()]);
+        client.admin().cluster().prepareHealth(indexNames).setWaitForYellowStatus().execute().actionGet();
+        client.admin().indices().prepareRefresh(indexNames).execute().actionGet();
+
+        long documents = client.prepareSearch(indexNames).setSize(0).execute().actionGet().getHits().getTotalHits();
+        if (documents == 0) {
+            throw new IllegalStateException("index " + generation + " is empty, photon keeps serving " + getActiveIndices());
+        }
+        if (expectedDocuments >= 0 && documents != expectedDocuments) {
+            throw new IllegalStateException(String.format("index %s contains %d documents instead of %d, photon keeps serving %s",
+                    generation, documents, expectedDocuments, getActiveIndices()));
+        }
+
+        switchAlias(indices, keepOtherCountries);
+        activatedMillis = System.currentTimeMillis();
+        log.info(String.format("photon now serves index %s with %d documents in %d indices", generation, documents, indices.size()));
+    }
+
+    private void switchAlias(List<String> indexNames, boolean keepOtherCountries) {
+        Set<String> countries = new HashSet<>();
+        for (String indexName : indexNames) {
+            String country = getCountry(indexName);
+            if (keepOtherCountries && country == null) {
+                throw new IllegalArgumentException("index " + indexName + " is not split by country, it replaces all active indices");
+            }
+            countries.add(country);
+        }
+
+        MetaData metaData = getMetaData();
+        IndicesAliasesRequestBuilder request = this.getClient().admin().indices().prepareAliases();
+        for (IndexMetaData index : metaData.getIndices().values().toArray(IndexMetaData.class)) {
+            String name = index.getIndex().getName();
+            if (!index.getAliases().containsKey(INDEX_ALIAS) || indexNames.contains(name)) {
+                continue;
+            }
+            if (keepOtherCountries) {
+                if (getCountry(name) == null) {
+                    throw new IllegalStateException("active index " + name + " is not split by country, only a full import can replace it");
+                }
+                if (!countries.contains(getCountry(name))) {
+                    continue;
+                }
+            }
+            request.removeAlias(name, INDEX_ALIAS);
+        }
+        if (metaData.getIndices().containsKey(INDEX_ALIAS)) {
+            if (keepOtherCountries) {
+                throw new IllegalStateException("active index " + INDEX_ALIAS + " is not split by country, only a full import can replace it");
+            }
+            // an index from before photon used index generations, it is in the way of the alias
+            request.addAliasAction(IndicesAliasesRequest.AliasActions.removeIndex().index(INDEX_ALIAS));
+        }
+        for (String indexName : indexNames) {
+            request.addAlias(indexName, INDEX_ALIAS);
+        }
+        request.execute().actionGet();
+    }
+
+    /**
+     * @return the index behind the photon alias, null if there is none. For an index split by country it is one of the country indices.
+     */
+    public String getActiveIndex() {
+        List<String> active = getActiveIndices();
+        return active.isEmpty() ? null : active.get(0);
+    }
+
+    /**
+     * @return all indices behind the photon alias
+     */
+    public List<String> getActiveIndices() {
+        List<String> active = new ArrayList<>();
+        for (IndexMetaData index : getMetaData().getIndices().values().toArray(IndexMetaData.class)) {
+            if (index.getAliases().containsKey(INDEX_ALIAS)) {
+                active.add(index.getIndex().getName());
+            }
+        }
+        Collections.sort(active);
+        return active;
+    }
+
+    /**
+     * Check whether all indices behind the photon alias have the current mapping. Older indices can still be
+     * searched, but they lack fields that newer filters rely on, e.g. the countrycode filter finds nothing in them.
+     *
+     * @return false if an index was created with an older mapping, a warning naming it has been logged then
+     */
+    public boolean hasCurrentMapping() {
+        List<String> outdated = new ArrayList<>();
+        for (IndexMetaData index : getIndexMetaData(INDEX_ALIAS)) {
+            Object version = getMeta(index).get(MAPPING_VERSION_META);
+            if (!(version instanceof Number) || ((Number) version).intValue() < MAPPING_VERSION) {
+                outdated.add(index.getIndex().getName());
+            }
+        }
+
+        if (outdated.isEmpty()) {
+            return true;
+        }
+
+        Collections.sort(outdated);
+        log.warn("the photon indices " + outdated + " were created by an older version of photon with an outdated mapping,"
+                + " the countrycode filter is disabled until the data is imported again with -nominatim-import or -json-import");
+        return false;
+    }
+
+    /**
+     * Record the import profile the places of an import were selected with, so that updates select the same places.
+     *
+     * @param indexName index, alias or pattern of the imported indices
+     * @param profile   the json of the profile, empty for an import of all places
+     */
+    public void setImportProfile(String indexName, JSONObject profile) {
+        for (IndexMetaData index : getIndexMetaData(indexName)) {
+            putMeta(this.getClient(), index, new JSONObject().put(IMPORT_PROFILE_META, profile));
+        }
+    }
+
+    /**
+     * @return the import profile of the indices behind the photon alias, empty if they contain all places
+     * @throws IllegalStateException if the indices were imported with different profiles
+     */
+    public JSONObject getImportProfile() {
+        JSONObject profile = null;
+        for (IndexMetaData index : getIndexMetaData(INDEX_ALIAS)) {
+            Object stored = getMeta(index).get(IMPORT_PROFILE_META);
+            JSONObject indexProfile = stored instanceof Map ? new JSONObject((Map<?, ?>) stored) : new JSONObject();
+            if (profile == null) {
+                profile = indexProfile;
+            } else if (!profile.similar(indexProfile)) {
+                throw new IllegalStateException("the photon indices were imported with different import profiles, "
+                        + "updates cannot select the same places for all of them");
+            }
+        }
+        return profile == null ? new JSONObject() : profile;
+    }
+
+    /**
+     * @param generation     the index generation of an unfinished import
+     * @param splitByCountry the generation consists of country indices, which are only created as their places turn up
+     * @return true if the import can continue to write to the generation: it was created after the active one and,
+     * unless it is split by country, it is a single existing index
+     */
+    public boolean isPendingGeneration(String generation, boolean splitByCountry) {
+        if (generation == null || !generation.startsWith(INDEX_GENERATION_PREFIX) || generation.length() != INDEX_GENERATION_LENGTH) {
+            return false;
+        }
+
+        String active = getNewestActiveGeneration();
+        if (active != null && generation.compareTo(active) <= 0) {
+            return false;
+        }
+        return getMetaData().hasIndex(generation) != splitByCountry;
+    }
+
+    private String getNewestActiveGeneration() {
+        String newest = null;
+        for (String index : getActiveIndices()) {
+            String generation = getGeneration(index);
+            if (newest == null || generation.compareTo(newest) > 0) {
+                newest = generation;
+            }
+        }
+        return newest;
+    }
+
+    /**
+     * Delete the index generations that were replaced by the active one. Country indices are deleted when another
+     * generation took over their country.
+     *
+     * <p>
+     * Right after an activation, {@link IndexRouter} may still send searches to the replaced indices, the
+     * deletion waits until every router has reloaded the index layout.
+     *
+     * @param keep number of the most recent replaced generations to keep, e.g. to be able to go back to them
+     */
+    public void deleteOldIndices(int keep) {
+        String active = getNewestActiveGeneration();
+        if (active == null) {
+            return;
+        }
+
+        List<String> activeIndices = getActiveIndices();
+        TreeMap<String, List<String>> old = new TreeMap<>();
+        for (String index : getIndexGenerations()) {
+            String generation = getGeneration(index);
+            if (generation.compareTo(active) < 0 && !activeIndices.contains(index)) {
+                old.computeIfAbsent(generation, g -> new ArrayList<>()).add(index);
+            }
+        }
+
+        List<String> generations = new ArrayList<>(old.keySet());
+        List<String> obsolete = new ArrayList<>();
+        for (String generation : generations.subList(0, Math.max(0, generations.size() - keep))) {
+            obsolete.addAll(old.get(generation));
+        }
+        if (!obsolete.isEmpty()) {
+            waitForRouters();
+            this.getClient().admin().indices().prepareDelete(obsolete.toArray(new String[obsolete.size()])).execute().actionGet();
+            log.info("deleted old indices " + obsolete);
+        }
+    }
+
+    private void waitForRouters() {
+        long waitMillis = activatedMillis + deleteDelayMillis - System.currentTimeMillis();
+        if (activatedMillis == 0 || waitMillis <= 0) {
+            return;
+        }
+
+        log.info(String.format("waiting %d seconds for searches to move to the new index before deleting the old ones", waitMillis / 1000));
+        try {
+            Thread.sleep(waitMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("interrupted while waiting to delete old indices", e);
+        }
+    }
+
+    /**
+     * Set how long replaced indices are kept after an activation before {@link #deleteOldIndices(int)} deletes them.
+     */
+    Server setDeleteDelay(long millis) {
+        this.deleteDelayMillis = millis;
+        return this;
+    }
+
+    /**
+     * @return the indices that belong to a generation: the generation itself or its country indices
+     */
+    private List<String> getGenerationIndices(String generation) {
+        List<String> indices = new ArrayList<>();
+        for (String index : getIndexGenerations()) {
+            if (getGeneration(index).equals(generation)) {
+                indices.add(index);
+            }
+        }
+        return indices;
+    }
+
+    /**
+     * @return the names of all indices of all generations of the photon index, oldest first
+     */
+    List<String> getIndexGenerations() {
+        List<String> generations = new ArrayList<>();
+        for (String index : getMetaData().getConcreteAllIndices()) {
+            if (index.startsWith(INDEX_GENERATION_PREFIX)) {
+                generations.add(index);
+            }
+        }
+        Collections.sort(generations);
+        return generations;
+    }
+
+    private MetaData getMetaData() {
+        return this.getClient().admin().cluster().prepareState().setMetaData(true).execute().actionGet().getState().getMetaData();
+    }
+
+    /**
+     * Switch the photon index to settings for a fast bulk import: no refreshes, no replicas and
+     * a translog that is only synced from time to time. Documents are not searchable until
+     * {@link #restoreIndexSettings(int)} is called after the import.
+     */
+    public void setImportIndexSettings() {
+        setImportIndexSettings(INDEX_ALIAS);
+    }
+
+    /**
+     * Same as {@link #setImportIndexSettings()} for the given index, alias or pattern.
+     * <p>
+     * The settings the indices had before are stored in the _meta of their mappings, so that they are restored
+     * even if the import is resumed by another process. Indices that still have stored settings keep them.
+     */
+    public void setImportIndexSettings(String indexName) {
+        final Client client = this.getClient();
+        for (IndexMetaData index : getIndexMetaData(indexName)) {
+            final String name = index.getIndex().getName();
+            if (!getMeta(index).containsKey(SERVING_SETTINGS_META)) {
+                JSONObject serving = new JSONObject();
+                for (String key : IMPORT_SETTINGS) {
+                    String value = index.getSettings().get(key);
+                    serving.put(key, value == null ? JSONObject.NULL : value);
+                }
+                putMeta(client, index, new JSONObject().put(SERVING_SETTINGS_META, serving));
+            }
+
+            client.admin().indices().prepareUpdateSettings(name).setSettings(Settings.builder()
+                    .put("index.refresh_interval", "-1")
+                    .put("index.number_of_replicas", 0)
+                    .put("index.translog.durability", "async")
+                    .put("index.translog.flush_threshold_size", "1gb")
+            ).execute().actionGet();
+            log.info("switched " + name + " index to import settings");
+        }
+    }
+
+    /**
+     * Return the photon index to the settings it had before {@link #setImportIndexSettings()}.
+     *
+     * @param maxSegments merge the index down to this number of segments per shard, 0 to skip merging
+     */
+    public void restoreIndexSettings(int maxSegments) {
+        restoreIndexSettings(INDEX_ALIAS, maxSegments);
+    }
+
+    /**
+     * Same as {@link #restoreIndexSettings(int)} for the given index, alias or pattern. Settings that were not
+     * set explicitly before the import go back to their defaults.
+     */
+    @SuppressWarnings("unchecked")
+    public void restoreIndexSettings(String indexName, int maxSegments) {
+        final Client client = this.getClient();
+        List<IndexMetaData> indices = getIndexMetaData(indexName);
+        for (IndexMetaData index : indices) {
+            final String name = index.getIndex().getName();
+            Object stored = getMeta(index).get(SERVING_SETTINGS_META);
+            if (!(stored instanceof Map)) {
+                log.info("index " + name + " has no stored serving settings, keeping its settings");
+                continue;
+            }
+
+            Map<String, Object> serving = (Map<String, Object>) stored;
+            Settings.Builder settings = Settings.builder();
+            for (String key : IMPORT_SETTINGS) {
+                Object value = serving.get(key);
+                if (value != null) {
+                    settings.put(key, value.toString());
+                } else if (key.equals("index.number_of_replicas")) {
+                    // the number of replicas cannot be reset, it goes back to the default
+                    settings.put(key, IndexMetaData.INDEX_NUMBER_OF_REPLICAS_SETTING.getDefault(Settings.EMPTY));
+                } else {
+                    settings.putNull(key);
+                }
+            }
+            client.admin().indices().prepareUpdateSettings(name).setSettings(settings).execute().actionGet();
+            putMeta(client, index, new JSONObject().put(SERVING_SETTINGS_META, JSONObject.NULL));
+            log.info("restored serving settings of " + name + " index");
+        }
+        if (indices.isEmpty()) {
+            return;
+        }
+
+        if (maxSegments > 0) {
+            final long startMillis = System.currentTimeMillis();
+            client.admin().indices().prepareForceMerge(indexName).setMaxNumSegments(maxSegments).execute().actionGet();
+            log.info(String.format("merged %s index to %d segments in %d seconds", indexName, maxSegments, (System.currentTimeMillis() - startMillis) / 1000));
+        } else {
+            client.admin().indices().prepareFlush(indexName).execute().actionGet();
+        }
+        client.admin().indices().prepareRefresh(indexName).execute().actionGet();
+    }
+
+    /**
+     * @return the concrete indices matching an index name, alias or pattern
+     */
+    private List<IndexMetaData> getIndexMetaData(String indexName) {
+        MetaData metaData = this.getClient().admin().cluster().prepareState().setMetaData(true).setIndices(indexName)
+                .execute().actionGet().getState().getMetaData();
+        return Arrays.asList(metaData.getIndices().values().toArray(IndexMetaData.class));
+    }
+
+    /**
+     * @return the _meta of the mapping of an index, empty if there is none
+     */
+    @SuppressWarnings("unchecked")
+    static Map<String, Object> getMeta(IndexMetaData index) {
+        MappingMetaData mapping = index.mapping(INDEX_TYPE);
+        if (mapping == null) {
+            return Collections.emptyMap();
+        }
+
         try {
-            this.getClient().admin().indices().prepareDelete("photon").execute().actionGet();
-        } catch (IndexNotFoundException e) {
-            // ignore
+            Object meta = mapping.getSourceAsMap().get("_meta");
+            return meta instanceof Map ? (Map<String, Object>) meta : Collections.<String, Object>emptyMap();
+        } catch (IOException e) {
+            log.warn("cannot read the mapping of index " + index.getIndex().getName(), e);
+            return Collections.emptyMap();
+        }
+    }
+
+    /**
+     * Change some entries of the _meta of the mapping of an index. Elasticsearch replaces the _meta as a whole,
+     * the other entries are written again.
+     *
+     * @param values the new entries, {@link JSONObject#NULL} to remove an entry
+     */
+    static void putMeta(Client client, IndexMetaData index, JSONObject values) {
+        JSONObject meta = new JSONObject(getMeta(index));
+        for (String key : values.keySet()) {
+            if (values.isNull(key)) {
+                meta.remove(key);
+            } else {
+                meta.put(key, values.get(key));
+            }
+        }
+
+        JSONObject mapping = new JSONObject().put(INDEX_TYPE, new JSONObject().put("_meta", meta));
+        client.admin().indices().preparePutMapping(index.getIndex().getName()).setType(INDEX_TYPE)
+                .setSource(mapping.toString(), XContentType.JSON).execute().actionGet();
+    }
+
+    /**
+     * Same as {@link #putMeta(Client, IndexMetaData, JSONObject)} for an index given by name.
+     */
+    static void putMeta(Client client, String indexName, JSONObject values) {
+        IndexMetaData index = client.admin().cluster().prepareState().setMetaData(true).setIndices(indexName)
+                .execute().actionGet().getState().getMetaData().index(indexName);
+        if (index == null) {
+            throw new IndexNotFoundException(indexName);
+        }
+        putMeta(client, index, values);
+    }
+
+    /**
+     * Delete all generations of the photon index.
+     */
+    public void deleteIndex() {
+        List<String> indices = getIndexGenerations();
+        if (getMetaData().getIndices().containsKey(INDEX_ALIAS)) {
+            indices.add(INDEX_ALIAS);
+        }
+        if (!indices.isEmpty()) {
+            try {
+                this.getClient().admin().indices().prepareDelete(indices.toArray(new String[indices.size()])).execute().actionGet();
+            } catch (IndexNotFoundException e) {
+                // ignore
+            }
         }
     }
 
@@ -301,6 +911,29 @@ public class Server {
         return properties;
     }
 
+    /**
+     * Run the embedded node only for building the index, see {@link #start()}. The node uses half of the heap
+     * for indexing buffers instead of the usual 10%. The index is written to the normal data directory and is
+     * opened by the next regular start of photon.
+     * <p>
+     * This only tunes the node, the documents still go through elasticsearch. Writing the shards with plain
+     * Lucene is not feasible with elasticsearch 5.5: a shard also holds the index UUID, the shard state and the
+     * translog checkpoints, and its documents are built by the mapper service (_uid, _source, copy_to fields and
+     * the analyzers of the index settings), all of which would have to be reimplemented.
+     *
+     * @return this Server instance for chaining
+     */
+    public Server setOfflineBuild(boolean offlineBuild) {
+        if (offlineBuild && transportAddresses != null && !transportAddresses.isEmpty()) {
+            throw new IllegalArgumentException("an offline build needs the embedded elasticsearch node, it cannot use transport addresses");
+        }
+        this.offlineBuild = offlineBuild;
+        if (offlineBuild) {
+            this.indexBufferSize = "50%";
+        }
+        return this;
+    }
+
     /**
      * Set the maximum number of shards for the embedded node
      * This typically only makes sense for testing
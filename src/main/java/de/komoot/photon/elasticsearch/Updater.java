@@ -1,74 +1,315 @@
 package de.komoot.photon.elasticsearch;
 
+import com.neovisionaries.i18n.CountryCode;
 import de.komoot.photon.PhotonDoc;
-import de.komoot.photon.Utils;
+import de.komoot.photon.DocumentSerializer;
 import lombok.extern.slf4j.Slf4j;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
-import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.index.get.GetField;
+import org.elasticsearch.search.fetch.subphase.FetchSourceContext;
+import org.json.JSONObject;
 
 import java.io.IOException;
+import java.util.*;
 
 /**
  * Updater for elasticsearch
+ * <p>
+ * Changes are sent in bulks by a {@link BulkSender} while the update is running, so that the memory needed does
+ * not depend on the size of the change set. {@link #finish()} waits until all of them are stored.
+ * <p>
+ * When photon serves an index split by country, the updater keeps the layout of {@link CountryIndices} intact:
+ * places of a country without index get a new one, places outside the stored extent of their index widen it
+ * and places that move to another country are removed from the index of their old one. The extents of the
+ * countries of an index routed by country ({@link CountryRouting}) are kept up to date the same way.
  *
  * @author felix
  */
 @Slf4j
 public class Updater implements de.komoot.photon.Updater {
     private final Client esClient;
-    private BulkRequestBuilder bulkRequest;
-    private final String[] languages;
+    /** creates missing country indices, null if places of such countries go to the index of places without country */
+    private final Server server;
+    private final BulkSender bulkSender;
+    private final DocumentSerializer serializer;
+    private final IndexRouter indexRouter;
+    /** number of changes since the last finish */
+    private long changes = 0;
+    /**
+     * Deletes of the last deleted place. Bulks may be stored in parallel, so they are held back until it is known
+     * whether the place is written again right away: a delete in one bulk must not overtake the write in the next.
+     */
+    private final List<DeleteRequest> pendingDeletes = new ArrayList<>();
+    private long pendingDeleteId = -1;
+    /**
+     * Deletes that remove the places looked up by {@link #prefetch(Collection)} from wherever they are stored, by
+     * place id. Only used when the index is split or routed by country.
+     */
+    private final Map<Long, List<DeleteRequest>> storedPlaces = new HashMap<>();
+    /**
+     * [lon, lat] of written places outside the stored extent of their country, by country index or by routing value
+     * for an index routed by country
+     */
+    private final Map<String, List<double[]>> outliers = new HashMap<>();
 
     public Updater(Client esClient, String languages) {
+        this(esClient, languages, new BulkSender(esClient));
+    }
+
+    public Updater(Client esClient, String languages, BulkSender bulkSender) {
+        this(esClient, null, languages, bulkSender);
+    }
+
+    /**
+     * Updater that creates the index of a country whose first place turns up in the update.
+     */
+    public Updater(Server server, String languages, BulkSender bulkSender) {
+        this(server.getClient(), server, languages, bulkSender);
+    }
+
+    private Updater(Client esClient, Server server, String languages, BulkSender bulkSender) {
         this.esClient = esClient;
-        this.bulkRequest = esClient.prepareBulk();
-        this.languages = languages.split(",");
+        this.server = server;
+        this.indexRouter = new IndexRouter(esClient);
+        this.bulkSender = bulkSender;
+        this.serializer = new DocumentSerializer(languages.split(","), XContentType.SMILE);
     }
 
     public void finish() {
         this.updateDocuments();
+        // pick up a newly activated index generation with the next update
+        this.indexRouter.reset();
     }
 
+    /**
+     * Places are written to the index or the shard of their country when photon serves an index split or routed
+     * by country. A place that moves to another country is removed from the index or shard of its old country.
+     * <p>
+     * The document is always serialized completely, so it is indexed by its id whether it exists or not instead of
+     * asking elasticsearch first. This also drops fields that the place does not have anymore.
+     */
     @Override
     public void updateOrCreate(PhotonDoc updatedDoc) {
-        final boolean exists = this.esClient.get(this.esClient.prepareGet("photon", "place", String.valueOf(updatedDoc.getPlaceId())).request()).actionGet().isExists();
-        if (exists) {
-            this.update(updatedDoc);
-        } else {
-            this.create(updatedDoc);
+        if (indexRouter.isSplit() || indexRouter.isRouted()) {
+            // the delete is dropped if the place stays in the index or shard of its country
+            this.delete(updatedDoc.getPlaceId());
         }
+        this.create(updatedDoc);
     }
 
     public void create(PhotonDoc doc) {
         try {
-            this.bulkRequest.add(this.esClient.prepareIndex("photon", "place").setSource(Utils.convert(doc, this.languages)).setId(String.valueOf(doc.getPlaceId())));
+            String index = getIndex(doc);
+            String routing = indexRouter.getRouting(doc.getCountryCode());
+            // the new document replaces the deleted one anyway
+            sendPendingDeletes(doc.getPlaceId(), index, routing);
+            this.bulkSender.add(this.esClient.prepareIndex(index, "place").setSource(serializer.serialize(doc), serializer.getType()).setId(String.valueOf(doc.getPlaceId())).setRouting(routing).request());
+            ++changes;
+
+            if (doc.getCentroid() != null && !indexRouter.covers(index, routing, doc.getCentroid().getX(), doc.getCentroid().getY())) {
+                outliers.computeIfAbsent(routing != null ? routing : index, k -> new ArrayList<>())
+                        .add(new double[]{doc.getCentroid().getX(), doc.getCentroid().getY()});
+            }
         } catch (IOException e) {
             log.error(String.format("creation of new doc [%s] failed", doc), e);
         }
     }
 
+    /**
+     * @return the index to write the place to, for the first place of a country the index of the country is added
+     */
+    private String getIndex(PhotonDoc doc) throws IOException {
+        CountryCode countryCode = doc.getCountryCode();
+        if (server != null && indexRouter.isMissingIndex(countryCode)) {
+            double[] bbox = doc.getCentroid() == null ? null
+                    : new double[]{doc.getCentroid().getX(), doc.getCentroid().getY(), doc.getCentroid().getX(), doc.getCentroid().getY()};
+            server.addCountryIndex(CountryRouting.getRouting(countryCode), bbox);
+            indexRouter.reset();
+        }
+        return indexRouter.getIndex(countryCode);
+    }
+
     public void update(PhotonDoc doc) {
         try {
-            this.bulkRequest.add(this.esClient.prepareUpdate("photon", "place", String.valueOf(doc.getPlaceId())).setDoc(Utils.convert(doc, this.languages)));
+            sendPendingDeletes(-1, null, null);
+            this.bulkSender.add(this.esClient.prepareUpdate(indexRouter.getIndex(doc.getCountryCode()), "place", String.valueOf(doc.getPlaceId())).setDoc(serializer.serialize(doc), serializer.getType()).setRouting(indexRouter.getRouting(doc.getCountryCode())).request());
+            ++changes;
         } catch (IOException e) {
             log.error(String.format("update of new doc [%s] failed", doc), e);
         }
     }
 
     public void delete(Long id) {
-        this.bulkRequest.add(this.esClient.prepareDelete("photon", "place", String.valueOf(id)));
+        sendPendingDeletes(-1, null, null);
+        pendingDeleteId = id;
+        ++changes;
+
+        if (indexRouter.isSplit() || indexRouter.isRouted()) {
+            // the index or shard of a deleted place depends on its country, which is unknown here
+            List<DeleteRequest> deletes = storedPlaces.remove(id);
+            pendingDeletes.addAll(deletes != null ? deletes : locate(Collections.singleton(id)).get(id));
+            return;
+        }
+
+        pendingDeletes.add(this.esClient.prepareDelete(Server.INDEX_ALIAS, "place", String.valueOf(id)).request());
     }
 
-    private void updateDocuments() {
-        if (this.bulkRequest.numberOfActions() == 0) {
-            log.warn("Update empty");
+    /**
+     * When the index is split or routed by country, the places of a batch are looked up in one request instead of
+     * one request per deleted or replaced place.
+     */
+    @Override
+    public void prefetch(Collection<Long> placeIds) {
+        storedPlaces.clear();
+        if (indexRouter.isSplit() || indexRouter.isRouted()) {
+            storedPlaces.putAll(locate(placeIds));
+        }
+    }
+
+    /**
+     * Look the places up in every country index or, for an index routed by country, in every shard. Unlike a
+     * search, realtime gets also find places that were written since the last refresh.
+     *
+     * @return the deletes that remove the places from wherever they are stored, by place id
+     */
+    private Map<Long, List<DeleteRequest>> locate(Collection<Long> placeIds) {
+        Map<Long, List<DeleteRequest>> deletes = new HashMap<>();
+        if (placeIds.isEmpty()) {
+            return deletes;
+        }
+
+        boolean split = indexRouter.isSplit();
+        String[] targets = split ? indexRouter.getIndices() : indexRouter.getShardRoutings();
+        List<Long> ids = new ArrayList<>(placeIds);
+        MultiGetRequestBuilder request = this.esClient.prepareMultiGet().setRealtime(true);
+        for (Long id : ids) {
+            deletes.put(id, new ArrayList<>());
+            for (String target : targets) {
+                // routed places are in a single index, they are looked up and deleted through the alias like the writes
+                MultiGetRequest.Item item = split ? new MultiGetRequest.Item(target, "place", String.valueOf(id))
+                        : new MultiGetRequest.Item(Server.INDEX_ALIAS, "place", String.valueOf(id)).routing(target);
+                request.add(item.fetchSourceContext(FetchSourceContext.DO_NOT_FETCH_SOURCE));
+            }
+        }
+
+        MultiGetItemResponse[] responses = request.execute().actionGet().getResponses();
+        for (int i = 0; i < responses.length; i++) {
+            Long id = ids.get(i / targets.length);
+            if (responses[i].isFailed()) {
+                throw new IllegalStateException("cannot look up place " + id + " in " + responses[i].getIndex(), responses[i].getFailure().getFailure());
+            }
+
+            GetResponse response = responses[i].getResponse();
+            if (response.isExists()) {
+                GetField routing = response.getField("_routing");
+                deletes.get(id).add(this.esClient.prepareDelete(split ? response.getIndex() : Server.INDEX_ALIAS, "place", response.getId())
+                        .setRouting(routing == null ? null : (String) routing.getValue()).request());
+            }
+        }
+        return deletes;
+    }
+
+    /**
+     * Send the held back deletes, except the one that the document written next replaces.
+     */
+    private void sendPendingDeletes(long placeId, String index, String routing) {
+        for (DeleteRequest delete : pendingDeletes) {
+            boolean replaced = pendingDeleteId == placeId && delete.index().equals(index) && Objects.equals(delete.routing(), routing);
+            if (!replaced) {
+                this.bulkSender.add(delete);
+            }
+        }
+        pendingDeletes.clear();
+        pendingDeleteId = -1;
+    }
+
+    @Override
+    public boolean flush() {
+        sendPendingDeletes(-1, null, null);
+        storedPlaces.clear();
+        boolean success = bulkSender.flush();
+        writeExtents();
+        return success;
+    }
+
+    /**
+     * Widen the stored extents of the countries to the places that were written outside of them, so that searches
+     * restricted to a region keep finding them.
+     */
+    private void writeExtents() {
+        if (outliers.isEmpty()) {
             return;
         }
-        BulkResponse bulkResponse = bulkRequest.execute().actionGet();
-        if (bulkResponse.hasFailures()) {
-            log.error("error while bulk update: " + bulkResponse.buildFailureMessage());
+
+        // the updaters of parallel sectors may change the same mapping
+        synchronized (Updater.class) {
+            if (indexRouter.isRouted()) {
+                writeRoutedExtents();
+            } else {
+                writeIndexExtents();
+            }
+        }
+        outliers.clear();
+        indexRouter.reset();
+    }
+
+    private void writeIndexExtents() {
+        for (Map.Entry<String, List<double[]>> entry : outliers.entrySet()) {
+            IndexMetaData index = esClient.admin().cluster().prepareState().setMetaData(true).setIndices(entry.getKey())
+                    .execute().actionGet().getState().getMetaData().index(entry.getKey());
+            double[] bbox = index == null ? null : IndexRouter.toBoundingBox(Server.getMeta(index).get(CountryIndices.BBOX_META));
+            if (bbox == null) {
+                // without a stored extent the index is always searched
+                continue;
+            }
+
+            Server.putMeta(esClient, index, new JSONObject().put(CountryIndices.BBOX_META, CountryRouting.toJson(extend(bbox, entry.getValue()))));
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void writeRoutedExtents() {
+        // a routed index is a single index behind the alias
+        for (IndexMetaData index : esClient.admin().cluster().prepareState().setMetaData(true).setIndices(Server.INDEX_ALIAS)
+                .execute().actionGet().getState().getMetaData().getIndices().values().toArray(IndexMetaData.class)) {
+            Object stored = Server.getMeta(index).get(CountryRouting.COUNTRIES_META);
+            Map<String, Object> countries = stored instanceof Map ? (Map<String, Object>) stored : Collections.<String, Object>emptyMap();
+
+            JSONObject extents = new JSONObject(countries);
+            for (Map.Entry<String, List<double[]>> entry : outliers.entrySet()) {
+                double[] bbox = IndexRouter.toBoundingBox(countries.get(entry.getKey()));
+                if (bbox == null) {
+                    // the first places of a country
+                    double[] first = entry.getValue().get(0);
+                    bbox = new double[]{first[0], first[1], first[0], first[1]};
+                }
+                extents.put(entry.getKey(), CountryRouting.toJson(extend(bbox, entry.getValue())));
+            }
+            Server.putMeta(esClient, index, new JSONObject().put(CountryRouting.COUNTRIES_META, extents));
+        }
+    }
+
+    private static double[] extend(double[] bbox, List<double[]> locations) {
+        for (double[] location : locations) {
+            bbox = IndexRouter.extend(bbox, location[0], location[1]);
+        }
+        return bbox;
+    }
+
+    private void updateDocuments() {
+        if (!flush()) {
+            log.error("not all changes could be stored, see the bulk errors above");
+        }
+        if (changes == 0) {
+            log.warn("Update empty");
         }
-        this.bulkRequest = this.esClient.prepareBulk();
+        changes = 0;
     }
 }
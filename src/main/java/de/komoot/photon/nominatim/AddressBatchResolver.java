@@ -0,0 +1,73 @@
+package de.komoot.photon.nominatim;
+
+import de.komoot.photon.PhotonDoc;
+import de.komoot.photon.nominatim.model.AddressRow;
+
+import java.util.*;
+
+/**
+ * Looks up the address hierarchy of many documents at once, with a single round trip
+ * when the addresses come from the database.
+ * <p>
+ * The rows for each document are ordered exactly like they were when the addresses were
+ * queried document by document: first the parent place (for POIs) or the document itself,
+ * followed by the address lines with decreasing address rank.
+ */
+class AddressBatchResolver {
+    private final AddressSource source;
+
+    AddressBatchResolver(AddressSource source) {
+        this.source = source;
+    }
+
+    /**
+     * Get the address rows for the given documents.
+     *
+     * @param docs documents to look up, may contain documents with the same parent
+     * @return one list of address rows per document, in the same order as the input
+     */
+    List<List<AddressRow>> getAddresses(List<PhotonDoc> docs) {
+        Set<Long> addressPlaceIds = new HashSet<>();
+        Set<Long> parentPlaceIds = new HashSet<>();
+        for (PhotonDoc doc : docs) {
+            if (isPoi(doc)) {
+                parentPlaceIds.add(doc.getParentPlaceId());
+                addressPlaceIds.add(doc.getParentPlaceId());
+            } else {
+                addressPlaceIds.add(doc.getPlaceId());
+            }
+        }
+
+        Map<Long, List<AddressRow>> addressLines = source.getAddressLines(addressPlaceIds);
+        Map<Long, AddressRow> parents = source.getPlaces(parentPlaceIds);
+
+        List<List<AddressRow>> result = new ArrayList<>(docs.size());
+        for (PhotonDoc doc : docs) {
+            final boolean isPoi = isPoi(doc);
+            final long placeId = isPoi ? doc.getParentPlaceId() : doc.getPlaceId();
+
+            List<AddressRow> lines = addressLines.get(placeId);
+            List<AddressRow> terms = new ArrayList<>(lines == null ? 1 : lines.size() + 1);
+            if (isPoi) {
+                // need to add the term for the parent place ID itself
+                AddressRow parent = parents.get(placeId);
+                if (parent != null) {
+                    terms.add(parent);
+                }
+            } else {
+                // we have to add information from current doc to have full address information (entry presented with range 0, eg. - https://nominatim.openstreetmap.org/ui/details.html?osmtype=W&osmid=334911186&class=highway)
+                terms.add(doc.asAddress());
+            }
+            if (lines != null) {
+                terms.addAll(lines);
+            }
+            result.add(terms);
+        }
+
+        return result;
+    }
+
+    static boolean isPoi(PhotonDoc doc) {
+        return doc.getRankAddress() > 28;
+    }
+}
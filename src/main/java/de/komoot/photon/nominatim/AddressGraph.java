@@ -0,0 +1,316 @@
+package de.komoot.photon.nominatim;
+
+import de.komoot.photon.nominatim.model.AddressRow;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * In-memory copy of the address hierarchy of a nominatim database.
+ * <p>
+ * Holds all places that may appear in an address (rank_address 1 to 27) together with
+ * the address lines of all places up to rank 28. Everything is kept in arrays sorted by
+ * place id, so that lookups are binary searches and memory use stays close to the raw data.
+ * Strings that repeat a lot (class, type and the keys of the name maps) are interned. The name maps of
+ * the returned address rows are views on the graph arrays, so lookups do not copy any names.
+ * <p>
+ * Places that are not part of the graph, like parents of POIs with an unusual rank or address
+ * places of another rank or outside the imported countries, are looked up in the fallback source.
+ */
+@Slf4j
+class AddressGraph implements AddressSource {
+    static final int MAX_PLACE_RANK = 27;
+    static final int MAX_LINE_OWNER_RANK = 28;
+
+    /** rough heap use of a place without its names, used for the estimate before loading */
+    private static final long BYTES_PER_PLACE = 8 + 1 + 2 * 4 + 4 + 16;
+    /** rough heap use of one name entry (key shared, value string with ~10 characters) */
+    private static final long BYTES_PER_PLACE_NAMES = 3 * 4 + 16 + 3 * 56;
+    private static final long BYTES_PER_LINE = 8;
+    private static final long BYTES_PER_LINE_OWNER = 8 + 4;
+
+    private final AddressSource fallback;
+
+    // places, sorted by place id
+    private long[] placeIds = new long[1024];
+    private byte[] placeRanks = new byte[1024];
+    private String[] placeClasses = new String[1024];
+    private String[] placeTypes = new String[1024];
+    private String[][] placeNames = new String[1024][];
+    private int placeCount = 0;
+
+    // address lines, lineOwners is sorted by place id,
+    // the lines of lineOwners[i] are lineTargets[lineOffsets[i]] to lineTargets[lineOffsets[i + 1] - 1]
+    private long[] lineOwners = new long[1024];
+    private int[] lineOffsets = new int[1025];
+    private long[] lineTargets = new long[1024];
+    private int lineOwnerCount = 0;
+    private int lineCount = 0;
+
+    private long fallbackLookups = 0;
+
+    AddressGraph(AddressSource fallback) {
+        this.fallback = fallback;
+    }
+
+    /**
+     * Load the address graph from the database.
+     *
+     * @param template        template to run the loading queries with
+     * @param andCountryCodes additional SQL condition restricting places to certain countries, may be empty
+     * @param fallback        source for places that are not in the graph
+     */
+    static AddressGraph load(JdbcTemplate template, String andCountryCodes, AddressSource fallback) {
+        final long startMillis = System.currentTimeMillis();
+
+        String placeCondition = "rank_address BETWEEN 1 AND " + MAX_PLACE_RANK + " " + andCountryCodes;
+        String ownerCondition = "rank_address <= " + MAX_LINE_OWNER_RANK + " " + andCountryCodes;
+
+        long expectedPlaces = template.queryForObject("SELECT count(*) FROM placex WHERE " + placeCondition, Long.class);
+        Long expectedLines = template.queryForObject("SELECT reltuples::bigint FROM pg_class WHERE relname = 'place_addressline'", Long.class);
+        if (expectedLines == null || expectedLines < 0) {
+            expectedLines = 0L;
+        }
+        log.info(String.format("loading address graph with %d places and up to %d address lines, this needs about %d MB of heap (%d MB available)",
+                expectedPlaces, expectedLines,
+                (expectedPlaces * (BYTES_PER_PLACE + BYTES_PER_PLACE_NAMES) + expectedLines * (BYTES_PER_LINE + BYTES_PER_LINE_OWNER)) >> 20,
+                Runtime.getRuntime().maxMemory() >> 20));
+
+        final AddressGraph graph = new AddressGraph(fallback);
+
+        template.query("SELECT place_id, name, class, type, rank_address FROM placex WHERE " + placeCondition + " ORDER BY place_id",
+                new RowCallbackHandler() {
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        graph.addPlace(rs.getLong("place_id"), DBUtils.getMap(rs, "name"),
+                                rs.getString("class"), rs.getString("type"), rs.getInt("rank_address"));
+                    }
+                });
+
+        log.info(String.format("loaded %d places into address graph", graph.placeCount));
+
+        template.query("SELECT pa.place_id, pa.address_place_id FROM place_addressline pa, placex p" +
+                        " WHERE p.place_id = pa.address_place_id and pa.cached_rank_address > 4" +
+                        " and pa.address_place_id != pa.place_id and pa.isaddress" +
+                        " and pa.place_id IN (SELECT place_id FROM placex WHERE " + ownerCondition + ")" +
+                        " ORDER BY pa.place_id, p.rank_address desc, pa.fromarea desc, pa.distance asc, p.rank_search desc",
+                new RowCallbackHandler() {
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        graph.addLine(rs.getLong("place_id"), rs.getLong("address_place_id"));
+                    }
+                });
+        graph.finishLines();
+
+        log.info(String.format("loaded %d address lines for %d places into address graph in %d seconds, graph uses about %d MB",
+                graph.lineCount, graph.lineOwnerCount, (System.currentTimeMillis() - startMillis) / 1000, graph.estimateBytes() >> 20));
+
+        return graph;
+    }
+
+    void addPlace(long placeId, Map<String, String> name, String osmKey, String osmValue, int rankAddress) {
+        if (placeCount > 0 && placeIds[placeCount - 1] >= placeId) {
+            throw new IllegalArgumentException("places must be added ordered by place id");
+        }
+
+        if (placeCount == placeIds.length) {
+            int size = placeCount + (placeCount >> 1);
+            placeIds = Arrays.copyOf(placeIds, size);
+            placeRanks = Arrays.copyOf(placeRanks, size);
+            placeClasses = Arrays.copyOf(placeClasses, size);
+            placeTypes = Arrays.copyOf(placeTypes, size);
+            placeNames = Arrays.copyOf(placeNames, size);
+        }
+
+        placeIds[placeCount] = placeId;
+        placeRanks[placeCount] = (byte) rankAddress;
+        placeClasses[placeCount] = intern(osmKey);
+        placeTypes[placeCount] = intern(osmValue);
+        placeNames[placeCount] = compactNames(name);
+        ++placeCount;
+    }
+
+    void addLine(long placeId, long addressPlaceId) {
+        if (lineOwnerCount == 0 || lineOwners[lineOwnerCount - 1] != placeId) {
+            if (lineOwnerCount > 0 && lineOwners[lineOwnerCount - 1] > placeId) {
+                throw new IllegalArgumentException("address lines must be added ordered by place id");
+            }
+            if (lineOwnerCount == lineOwners.length) {
+                lineOwners = Arrays.copyOf(lineOwners, lineOwnerCount + (lineOwnerCount >> 1));
+                lineOffsets = Arrays.copyOf(lineOffsets, lineOwners.length + 1);
+            }
+            lineOwners[lineOwnerCount] = placeId;
+            lineOffsets[lineOwnerCount] = lineCount;
+            ++lineOwnerCount;
+        }
+
+        if (lineCount == lineTargets.length) {
+            lineTargets = Arrays.copyOf(lineTargets, lineCount + (lineCount >> 1));
+        }
+        lineTargets[lineCount++] = addressPlaceId;
+    }
+
+    /**
+     * Close the list of address lines and release unused array space.
+     */
+    void finishLines() {
+        lineOwners = Arrays.copyOf(lineOwners, lineOwnerCount);
+        lineOffsets = Arrays.copyOf(lineOffsets, lineOwnerCount + 1);
+        lineOffsets[lineOwnerCount] = lineCount;
+        lineTargets = Arrays.copyOf(lineTargets, lineCount);
+
+        placeIds = Arrays.copyOf(placeIds, placeCount);
+        placeRanks = Arrays.copyOf(placeRanks, placeCount);
+        placeClasses = Arrays.copyOf(placeClasses, placeCount);
+        placeTypes = Arrays.copyOf(placeTypes, placeCount);
+        placeNames = Arrays.copyOf(placeNames, placeCount);
+    }
+
+    @Override
+    public Map<Long, List<AddressRow>> getAddressLines(Collection<Long> placeIds) {
+        Map<Long, List<AddressRow>> result = new HashMap<>();
+        List<Long> missing = null;
+        // owners with address places outside the graph and those places
+        List<Integer> incompleteOwners = null;
+        Set<Long> missingTargets = null;
+        for (Long placeId : placeIds) {
+            int owner = Arrays.binarySearch(lineOwners, 0, lineOwnerCount, placeId);
+            if (owner < 0) {
+                // Places of the graph without lines simply have no address. Anything else
+                // may be a parent with a rank outside the graph and needs to be looked up.
+                if (placeId > 0 && Arrays.binarySearch(this.placeIds, 0, placeCount, placeId) < 0) {
+                    if (missing == null) {
+                        missing = new ArrayList<>();
+                    }
+                    missing.add(placeId);
+                }
+                continue;
+            }
+
+            List<AddressRow> rows = new ArrayList<>(lineOffsets[owner + 1] - lineOffsets[owner]);
+            for (int i = lineOffsets[owner]; i < lineOffsets[owner + 1]; i++) {
+                AddressRow row = getPlace(lineTargets[i]);
+                if (row != null) {
+                    rows.add(row);
+                } else {
+                    if (missingTargets == null) {
+                        missingTargets = new HashSet<>();
+                        incompleteOwners = new ArrayList<>();
+                    }
+                    if (incompleteOwners.isEmpty() || incompleteOwners.get(incompleteOwners.size() - 1) != owner) {
+                        incompleteOwners.add(owner);
+                    }
+                    missingTargets.add(lineTargets[i]);
+                }
+            }
+            result.put(placeId, rows);
+        }
+
+        if (missingTargets != null) {
+            Map<Long, AddressRow> targets = getFallbackPlaces(missingTargets);
+            for (int owner : incompleteOwners) {
+                // lines again in their order, with the places from the fallback
+                List<AddressRow> rows = result.get(lineOwners[owner]);
+                rows.clear();
+                for (int i = lineOffsets[owner]; i < lineOffsets[owner + 1]; i++) {
+                    AddressRow row = getPlace(lineTargets[i]);
+                    if (row == null) {
+                        row = targets.get(lineTargets[i]);
+                    }
+                    if (row != null) {
+                        rows.add(row);
+                    }
+                }
+            }
+        }
+
+        if (missing != null && fallback != null) {
+            synchronized (this) {
+                fallbackLookups += missing.size();
+            }
+            result.putAll(fallback.getAddressLines(missing));
+        }
+
+        return result;
+    }
+
+    @Override
+    public Map<Long, AddressRow> getPlaces(Collection<Long> placeIds) {
+        Map<Long, AddressRow> result = new HashMap<>();
+        List<Long> missing = null;
+        for (Long placeId : placeIds) {
+            AddressRow row = getPlace(placeId);
+            if (row != null) {
+                result.put(placeId, row);
+            } else if (placeId > 0) {
+                if (missing == null) {
+                    missing = new ArrayList<>();
+                }
+                missing.add(placeId);
+            }
+        }
+
+        if (missing != null) {
+            result.putAll(getFallbackPlaces(missing));
+        }
+
+        return result;
+    }
+
+    private Map<Long, AddressRow> getFallbackPlaces(Collection<Long> placeIds) {
+        if (fallback == null) {
+            return Collections.emptyMap();
+        }
+        synchronized (this) {
+            fallbackLookups += placeIds.size();
+        }
+        return fallback.getPlaces(placeIds);
+    }
+
+    /**
+     * @return the number of lookups that had to go to the fallback source so far
+     */
+    synchronized long getFallbackLookups() {
+        return fallbackLookups;
+    }
+
+    private AddressRow getPlace(long placeId) {
+        int idx = Arrays.binarySearch(placeIds, 0, placeCount, placeId);
+        if (idx < 0) {
+            return null;
+        }
+
+        return new AddressRow(placeId, CompactMap.wrap(placeNames[idx]), placeClasses[idx], placeTypes[idx], placeRanks[idx]);
+    }
+
+    private static String intern(String value) {
+        return CompactMap.intern(value);
+    }
+
+    private static String[] compactNames(Map<String, String> names) {
+        String[] compact = new String[2 * names.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry : names.entrySet()) {
+            compact[i++] = intern(entry.getKey());
+            compact[i++] = entry.getValue();
+        }
+        return compact;
+    }
+
+    long estimateBytes() {
+        long bytes = (long) placeIds.length * BYTES_PER_PLACE
+                + (long) lineOwners.length * BYTES_PER_LINE_OWNER
+                + (long) lineTargets.length * BYTES_PER_LINE;
+        for (int i = 0; i < placeCount; i++) {
+            bytes += 16 + 4 * placeNames[i].length;
+            for (int j = 1; j < placeNames[i].length; j += 2) {
+                bytes += 40 + 2 * placeNames[i][j].length();
+            }
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,27 @@
+package de.komoot.photon.nominatim;
+
+import de.komoot.photon.nominatim.model.AddressRow;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Source for the raw address information of places.
+ */
+interface AddressSource {
+    /**
+     * Get the address lines of all given places as found in place_addressline.
+     *
+     * @return address rows grouped by the place they belong to, ordered by importance for the address.
+     *         Places without address lines may be missing from the result.
+     */
+    Map<Long, List<AddressRow>> getAddressLines(Collection<Long> placeIds);
+
+    /**
+     * Get the address information of the given places themselves.
+     *
+     * @return address rows by place id. Unknown places are missing from the result.
+     */
+    Map<Long, AddressRow> getPlaces(Collection<Long> placeIds);
+}
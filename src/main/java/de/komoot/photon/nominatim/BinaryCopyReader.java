@@ -0,0 +1,129 @@
+package de.komoot.photon.nominatim;
+
+import javax.annotation.Nullable;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Decodes the output of postgres' {@code COPY ... TO STDOUT (FORMAT binary)}.
+ * <p>
+ * Rows are read with {@link #nextRow()}, then the fields of the row in the order of the query
+ * with the read method matching the type of the column. The column types must match exactly,
+ * so the query should cast columns where the type may differ between database versions:
+ * bigint for {@link #readLong(long)}, integer for {@link #readInt(int)}, double precision for
+ * {@link #readDouble()}, text types for {@link #readString()} and hstore for {@link #readHstore()}.
+ * Geometries are not decoded, the query selects the coordinates it needs as plain numbers.
+ */
+class BinaryCopyReader {
+    private static final byte[] SIGNATURE = {'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0};
+
+    private final DataInputStream input;
+    private byte[] buffer = new byte[256];
+    private int remainingFields = 0;
+
+    BinaryCopyReader(InputStream input) throws IOException {
+        this.input = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+
+        byte[] signature = new byte[SIGNATURE.length];
+        this.input.readFully(signature);
+        if (!Arrays.equals(signature, SIGNATURE)) {
+            throw new IOException("input is not in binary copy format");
+        }
+        this.input.readInt(); // flags
+        skip(this.input.readInt()); // header extension
+    }
+
+    /**
+     * Move on to the next row. All fields of the previous row must have been read.
+     *
+     * @return false when there are no more rows
+     */
+    boolean nextRow() throws IOException {
+        if (remainingFields != 0) {
+            throw new IllegalStateException(remainingFields + " fields of the previous row were not read");
+        }
+
+        short fields = input.readShort();
+        if (fields == -1) {
+            return false;
+        }
+
+        remainingFields = fields;
+        return true;
+    }
+
+    long readLong(long ifNull) throws IOException {
+        return nextField() < 0 ? ifNull : input.readLong();
+    }
+
+    int readInt(int ifNull) throws IOException {
+        return nextField() < 0 ? ifNull : input.readInt();
+    }
+
+    @Nullable
+    Double readDouble() throws IOException {
+        return nextField() < 0 ? null : input.readDouble();
+    }
+
+    @Nullable
+    String readString() throws IOException {
+        int length = nextField();
+        return length < 0 ? null : readString(length);
+    }
+
+    /**
+     * @return the content of the hstore as immutable {@link CompactMap}, an empty map for null like {@link DBUtils#getMap}
+     */
+    Map<String, String> readHstore() throws IOException {
+        if (nextField() < 0) {
+            return CompactMap.empty();
+        }
+
+        String[] entries = new String[2 * input.readInt()];
+        for (int i = 0; i < entries.length; i += 2) {
+            entries[i] = readString(input.readInt());
+            int valueLength = input.readInt();
+            entries[i + 1] = valueLength < 0 ? null : readString(valueLength);
+        }
+        return CompactMap.ofEntries(entries);
+    }
+
+    /**
+     * Skip a field of the current row.
+     */
+    void skipField() throws IOException {
+        int length = nextField();
+        if (length > 0) {
+            skip(length);
+        }
+    }
+
+    private int nextField() throws IOException {
+        if (remainingFields <= 0) {
+            throw new IllegalStateException("no more fields in row");
+        }
+        --remainingFields;
+
+        return input.readInt();
+    }
+
+    private String readString(int length) throws IOException {
+        if (buffer.length < length) {
+            buffer = new byte[Math.max(length, 2 * buffer.length)];
+        }
+        input.readFully(buffer, 0, length);
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private void skip(int length) throws IOException {
+        while (length > 0) {
+            int skipped = input.skipBytes(length);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            length -= skipped;
+        }
+    }
+}
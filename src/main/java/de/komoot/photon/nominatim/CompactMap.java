@@ -0,0 +1,143 @@
+package de.komoot.photon.nominatim;
+
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.util.*;
+
+/**
+ * Immutable string map for the small tag maps (names, address, extratags) of places during import.
+ * <p>
+ * Keys and values are kept in a single array of alternating entries, so that a map costs two objects
+ * instead of one object per entry plus a hash table. Lookups are linear scans, which is as fast as
+ * hashing for the handful of entries a place usually has. Keys repeat across millions of places and
+ * are interned, as are other short strings passed through {@link #intern(String)}.
+ */
+final class CompactMap extends AbstractMap<String, String> {
+    private static final Interner<String> INTERNER = Interners.newWeakInterner();
+    private static final CompactMap EMPTY = new CompactMap(new String[0]);
+
+    /** keys at even, values at odd positions */
+    private final String[] entries;
+
+    private CompactMap(String[] entries) {
+        this.entries = entries;
+    }
+
+    static CompactMap empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Create a map from alternating keys and values. The array is taken over and must not be changed afterwards.
+     * Keys must be unique and are interned.
+     */
+    static CompactMap ofEntries(String[] entries) {
+        if (entries.length == 0) {
+            return EMPTY;
+        }
+
+        for (int i = 0; i < entries.length; i += 2) {
+            entries[i] = intern(entries[i]);
+        }
+        return new CompactMap(entries);
+    }
+
+    /**
+     * Same as {@link #ofEntries(String[])} for entries whose keys need no interning, because they
+     * already went through {@link #intern(String)} or are constants.
+     */
+    static CompactMap wrap(String[] entries) {
+        return entries.length == 0 ? EMPTY : new CompactMap(entries);
+    }
+
+    /**
+     * @return a compact copy of the given map, the empty map for null
+     */
+    static CompactMap copyOf(Map<String, String> map) {
+        if (map == null || map.isEmpty()) {
+            return EMPTY;
+        }
+        if (map instanceof CompactMap) {
+            return (CompactMap) map;
+        }
+
+        String[] entries = new String[2 * map.size()];
+        int i = 0;
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            entries[i++] = entry.getKey();
+            entries[i++] = entry.getValue();
+        }
+        return ofEntries(entries);
+    }
+
+    /**
+     * @return the canonical instance of a string that repeats a lot, like tag keys, osm classes or postcodes
+     */
+    static String intern(String value) {
+        return value == null ? null : INTERNER.intern(value);
+    }
+
+    @Override
+    public int size() {
+        return entries.length / 2;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return entries.length == 0;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public String get(Object key) {
+        int idx = indexOf(key);
+        return idx < 0 ? null : entries[idx + 1];
+    }
+
+    private int indexOf(Object key) {
+        for (int i = 0; i < entries.length; i += 2) {
+            // interned keys mostly match by identity
+            if (entries[i] == key || entries[i].equals(key)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public Set<Entry<String, String>> entrySet() {
+        return new AbstractSet<Entry<String, String>>() {
+            @Override
+            public Iterator<Entry<String, String>> iterator() {
+                return new Iterator<Entry<String, String>>() {
+                    private int next = 0;
+
+                    @Override
+                    public boolean hasNext() {
+                        return next < entries.length;
+                    }
+
+                    @Override
+                    public Entry<String, String> next() {
+                        if (next >= entries.length) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, String> entry = new SimpleImmutableEntry<>(entries[next], entries[next + 1]);
+                        next += 2;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return entries.length / 2;
+            }
+        };
+    }
+}
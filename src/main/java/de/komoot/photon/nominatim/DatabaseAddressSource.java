@@ -0,0 +1,99 @@
+package de.komoot.photon.nominatim;
+
+import de.komoot.photon.nominatim.model.AddressRow;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.jdbc.core.RowCallbackHandler;
+
+import java.sql.Array;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.*;
+
+/**
+ * Queries the address information of places from the nominatim database, many places per query.
+ */
+class DatabaseAddressSource implements AddressSource {
+    private static final String SELECT_COLS_ADDRESS = "p.place_id, p.name, p.class, p.type, p.rank_address";
+
+    private final JdbcTemplate template;
+
+    DatabaseAddressSource(JdbcTemplate template) {
+        this.template = template;
+    }
+
+    @Override
+    public Map<Long, List<AddressRow>> getAddressLines(Collection<Long> placeIds) {
+        final Map<Long, List<AddressRow>> lines = new HashMap<>();
+        if (placeIds.isEmpty()) {
+            return lines;
+        }
+
+        template.query("SELECT pa.place_id AS for_place_id, " + SELECT_COLS_ADDRESS +
+                        " FROM placex p, place_addressline pa" +
+                        " WHERE p.place_id = pa.address_place_id and pa.place_id = ANY(?) and pa.cached_rank_address > 4" +
+                        " and pa.address_place_id != pa.place_id and pa.isaddress" +
+                        " order by pa.place_id, p.rank_address desc, pa.fromarea desc, pa.distance asc, p.rank_search desc",
+                new PlaceIdArraySetter(placeIds), new RowCallbackHandler() {
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        long forPlaceId = rs.getLong("for_place_id");
+                        List<AddressRow> rows = lines.get(forPlaceId);
+                        if (rows == null) {
+                            rows = new ArrayList<>();
+                            lines.put(forPlaceId, rows);
+                        }
+                        rows.add(mapAddressRow(rs));
+                    }
+                });
+
+        return lines;
+    }
+
+    @Override
+    public Map<Long, AddressRow> getPlaces(Collection<Long> placeIds) {
+        final Map<Long, AddressRow> places = new HashMap<>();
+        if (placeIds.isEmpty()) {
+            return places;
+        }
+
+        template.query("SELECT " + SELECT_COLS_ADDRESS + " FROM placex p WHERE p.place_id = ANY(?)",
+                new PlaceIdArraySetter(placeIds), new RowCallbackHandler() {
+                    @Override
+                    public void processRow(ResultSet rs) throws SQLException {
+                        AddressRow row = mapAddressRow(rs);
+                        places.put(row.getPlaceId(), row);
+                    }
+                });
+
+        return places;
+    }
+
+    static AddressRow mapAddressRow(ResultSet rs) throws SQLException {
+        return new AddressRow(
+                rs.getLong("place_id"),
+                CompactMap.copyOf(DBUtils.getMap(rs, "name")),
+                CompactMap.intern(rs.getString("class")),
+                CompactMap.intern(rs.getString("type")),
+                rs.getInt("rank_address")
+        );
+    }
+
+    /**
+     * Binds a collection of place ids as a bigint array to the first parameter of a statement.
+     */
+    static class PlaceIdArraySetter implements PreparedStatementSetter {
+        private final Long[] placeIds;
+
+        PlaceIdArraySetter(Collection<Long> placeIds) {
+            this.placeIds = placeIds.toArray(new Long[0]);
+        }
+
+        @Override
+        public void setValues(PreparedStatement ps) throws SQLException {
+            Array array = ps.getConnection().createArrayOf("bigint", placeIds);
+            ps.setArray(1, array);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package de.komoot.photon.nominatim;
+
+import lombok.extern.slf4j.Slf4j;
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * Progress of a full import that survives a crash of the importer.
+ * <p>
+ * The checkpoint remembers how the place tables were split into partitions and which of these
+ * partitions are completely stored in the index. A resumed import reads the same partitions and
+ * skips those that are already done. Partitions that were in progress are read again; documents
+ * have stable ids, so writing them a second time simply replaces the earlier copy. The checkpoint also
+ * names the index the import writes to, a resumed import continues exactly that index.
+ * <p>
+ * The file is replaced atomically on every update, it is either the old or the new state.
+ */
+@Slf4j
+class ImportCheckpoint {
+    private final File file;
+    private final String indexName;
+    private final String countryCodes;
+    private final List<ScanPartition> partitions;
+    private final Set<String> completed = new HashSet<>();
+    private long documentCount = 0;
+
+    private ImportCheckpoint(File file, String indexName, String countryCodes, List<ScanPartition> partitions) {
+        this.file = file;
+        this.indexName = indexName;
+        this.countryCodes = countryCodes;
+        this.partitions = Collections.unmodifiableList(new ArrayList<>(partitions));
+    }
+
+    /**
+     * Start a new checkpoint, replacing any previous one in the same file.
+     */
+    static ImportCheckpoint create(File file, String indexName, String countryCodes, List<ScanPartition> partitions) {
+        ImportCheckpoint checkpoint = new ImportCheckpoint(file, indexName, countryCodes, partitions);
+        checkpoint.save();
+        return checkpoint;
+    }
+
+    /**
+     * Read the checkpoint of an earlier import.
+     */
+    static ImportCheckpoint load(File file) throws IOException {
+        JSONObject json = new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8));
+
+        List<ScanPartition> partitions = new ArrayList<>();
+        JSONArray jsonPartitions = json.getJSONArray("partitions");
+        for (int i = 0; i < jsonPartitions.length(); i++) {
+            partitions.add(ScanPartition.fromString(jsonPartitions.getString(i)));
+        }
+
+        // checkpoints of older versions do not name the index, they cannot be resumed safely
+        ImportCheckpoint checkpoint = new ImportCheckpoint(file, json.optString("index", null), json.getString("country_codes"), partitions);
+        JSONArray jsonCompleted = json.getJSONArray("completed");
+        for (int i = 0; i < jsonCompleted.length(); i++) {
+            checkpoint.completed.add(jsonCompleted.getString(i));
+        }
+        checkpoint.documentCount = json.getLong("documents");
+
+        return checkpoint;
+    }
+
+    /**
+     * @return the index or index generation the import writes to, null if the checkpoint does not name it
+     */
+    String getIndexName() {
+        return indexName;
+    }
+
+    String getCountryCodes() {
+        return countryCodes;
+    }
+
+    List<ScanPartition> getPartitions() {
+        return partitions;
+    }
+
+    synchronized boolean isCompleted(ScanPartition partition) {
+        return completed.contains(partition.toString());
+    }
+
+    synchronized int getCompletedCount() {
+        return completed.size();
+    }
+
+    synchronized long getDocumentCount() {
+        return documentCount;
+    }
+
+    /**
+     * Record partitions whose documents have all been acknowledged by the index.
+     *
+     * @param done      newly completed partitions
+     * @param documents number of documents of the completed partitions
+     */
+    synchronized void markCompleted(Collection<ScanPartition> done, long documents) {
+        for (ScanPartition partition : done) {
+            completed.add(partition.toString());
+        }
+        documentCount += documents;
+        save();
+        log.info(String.format("checkpoint: %d of %d partitions imported", completed.size(), partitions.size()));
+    }
+
+    private void save() {
+        JSONArray jsonPartitions = new JSONArray();
+        for (ScanPartition partition : partitions) {
+            jsonPartitions.put(partition.toString());
+        }
+
+        JSONObject json = new JSONObject();
+        json.put("index", indexName);
+        json.put("country_codes", countryCodes);
+        json.put("partitions", jsonPartitions);
+        json.put("completed", new JSONArray(completed));
+        json.put("documents", documentCount);
+
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            Files.write(tmpFile.toPath(), json.toString().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new RuntimeException("cannot write import checkpoint " + file, e);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package de.komoot.photon.nominatim;
+
+import de.komoot.photon.DocumentSerializer;
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.regex.Pattern;
+
+/**
+ * Restricts which places a nominatim import reads, see {@code -import-profile}.
+ * <p>
+ * A profile is a json file like
+ * <pre>
+ * {
+ *   "include": ["place", "highway:residential"],
+ *   "exclude": ["place:house"],
+ *   "min_rank": 4,
+ *   "max_rank": 26,
+ *   "min_importance": 0.0,
+ *   "name_variants": ["alt", "old"]
+ * }
+ * </pre>
+ * Entries of include and exclude are an osm class or class:type. Places must match one of the included entries
+ * (all places if there are none) and none of the excluded ones. The rank range applies to the search rank, the
+ * importance is the one photon computes. All keys are optional. Of the name variants (alt, int, loc, old, reg,
+ * housename) only the listed ones are indexed, all if the key is missing.
+ * <p>
+ * The restrictions become part of the queries of the import, places and names that are not wanted are not even
+ * read from the database. The profile is stored with the imported indices, updates apply it to the changed places.
+ */
+public class ImportProfile {
+    /** the profile of an import without restrictions */
+    public static final ImportProfile ALL = new ImportProfile();
+
+    /** interpolated house numbers are documents of this class and type with search rank 30 and no importance */
+    private static final String INTERPOLATION_CLASS = "place";
+    private static final String INTERPOLATION_TYPE = "house_number";
+    private static final int INTERPOLATION_RANK = 30;
+    /** osm classes and types go into the queries as they are */
+    private static final Pattern OSM_TAG_PATTERN = Pattern.compile("[A-Za-z0-9_:\\-]+");
+    private static final Set<String> KEYS = new HashSet<>(Arrays.asList("include", "exclude", "min_rank", "max_rank", "min_importance", "name_variants"));
+
+    private final List<String[]> include = new ArrayList<>();
+    private final List<String[]> exclude = new ArrayList<>();
+    private int minRank = 0;
+    private int maxRank = 30;
+    private double minImportance = Double.NEGATIVE_INFINITY;
+    /** osm tags of the name variants that are not indexed */
+    private final List<String> excludedNameTags = new ArrayList<>();
+    /** the profile as it was given */
+    private JSONObject json = new JSONObject();
+
+    private ImportProfile() {
+    }
+
+    public static ImportProfile load(File file) throws IOException {
+        try {
+            return parse(new JSONObject(new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8)));
+        } catch (JSONException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("invalid import profile " + file + ": " + e.getMessage(), e);
+        }
+    }
+
+    public static ImportProfile parse(JSONObject json) {
+        for (String key : json.keySet()) {
+            if (!KEYS.contains(key)) {
+                throw new IllegalArgumentException("unknown key '" + key + "', allowed keys are " + KEYS);
+            }
+        }
+
+        ImportProfile profile = new ImportProfile();
+        profile.json = new JSONObject(json.toString());
+        parseTags(json.optJSONArray("include"), profile.include);
+        parseTags(json.optJSONArray("exclude"), profile.exclude);
+        profile.minRank = json.optInt("min_rank", profile.minRank);
+        profile.maxRank = json.optInt("max_rank", profile.maxRank);
+        if (profile.minRank > profile.maxRank) {
+            throw new IllegalArgumentException("min_rank " + profile.minRank + " is greater than max_rank " + profile.maxRank);
+        }
+        if (json.has("min_importance")) {
+            profile.minImportance = json.getDouble("min_importance");
+        }
+
+        JSONArray variants = json.optJSONArray("name_variants");
+        if (variants != null) {
+            Set<String> indexed = new HashSet<>();
+            for (int i = 0; i < variants.length(); i++) {
+                String variant = variants.getString(i);
+                if (DocumentSerializer.getNameVariantTag(variant) == null) {
+                    throw new IllegalArgumentException("unknown name variant '" + variant + "'");
+                }
+                indexed.add(variant);
+            }
+            for (String variant : DocumentSerializer.getNameVariants()) {
+                if (!indexed.contains(variant)) {
+                    profile.excludedNameTags.add(DocumentSerializer.getNameVariantTag(variant));
+                }
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * @return the json of the profile, which {@link #parse(JSONObject)} reads again
+     */
+    public JSONObject toJson() {
+        return new JSONObject(json.toString());
+    }
+
+    private static void parseTags(JSONArray tags, List<String[]> target) {
+        if (tags == null) {
+            return;
+        }
+        for (int i = 0; i < tags.length(); i++) {
+            String tag = tags.getString(i);
+            if (!OSM_TAG_PATTERN.matcher(tag).matches()) {
+                throw new IllegalArgumentException("invalid osm class or class:type '" + tag + "'");
+            }
+            int colon = tag.indexOf(':');
+            target.add(colon < 0 ? new String[]{tag} : new String[]{tag.substring(0, colon), tag.substring(colon + 1)});
+        }
+    }
+
+    /**
+     * @return condition on placex rows to append to a where clause, empty if the profile takes all places
+     */
+    String getPlacexCondition() {
+        StringBuilder condition = new StringBuilder();
+        if (!include.isEmpty()) {
+            condition.append(" AND ").append(matchTags(include));
+        }
+        if (!exclude.isEmpty()) {
+            condition.append(" AND NOT ").append(matchTags(exclude));
+        }
+        if (minRank > 0 || maxRank < 30) {
+            condition.append(" AND rank_search BETWEEN ").append(minRank).append(" AND ").append(maxRank);
+        }
+        if (minImportance != Double.NEGATIVE_INFINITY) {
+            // places without importance get the one computed from their rank by the import
+            condition.append(" AND coalesce(importance, 0.75 - rank_search / 40.0) >= ").append(minImportance);
+        }
+        return condition.toString();
+    }
+
+    private static String matchTags(List<String[]> tags) {
+        StringBuilder match = new StringBuilder("(");
+        for (String[] tag : tags) {
+            if (match.length() > 1) {
+                match.append(" OR ");
+            }
+            if (tag.length > 1) {
+                match.append("(class = '").append(tag[0]).append("' AND type = '").append(tag[1]).append("')");
+            } else {
+                match.append("class = '").append(tag[0]).append("'");
+            }
+        }
+        return match.append(")").toString();
+    }
+
+    /**
+     * @return the select expression for the names of a place, without the name variants that are not indexed
+     */
+    String getNameColumn() {
+        if (excludedNameTags.isEmpty()) {
+            return "name";
+        }
+
+        StringBuilder column = new StringBuilder("(name - ARRAY[");
+        for (int i = 0; i < excludedNameTags.size(); i++) {
+            column.append(i == 0 ? "'" : ", '").append(excludedNameTags.get(i)).append("'");
+        }
+        return column.append("]) AS name").toString();
+    }
+
+    /**
+     * @return true if the interpolated house numbers of location_property_osmline are part of the profile
+     */
+    boolean includesInterpolations() {
+        return matches(include, true) && !matches(exclude, false)
+                && minRank <= INTERPOLATION_RANK && INTERPOLATION_RANK <= maxRank && minImportance <= 0;
+    }
+
+    private static boolean matches(List<String[]> tags, boolean matchesEmpty) {
+        if (tags.isEmpty()) {
+            return matchesEmpty;
+        }
+        for (String[] tag : tags) {
+            if (tag[0].equals(INTERPOLATION_CLASS) && (tag.length == 1 || tag[1].equals(INTERPOLATION_TYPE))) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
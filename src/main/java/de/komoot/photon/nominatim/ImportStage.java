@@ -0,0 +1,120 @@
+package de.komoot.photon.nominatim;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Metrics of one stage of the import pipeline.
+ * <p>
+ * The workers of a stage take their input through {@link #take(BlockingQueue)} and hand their
+ * output to the next stage with {@link #put(BlockingQueue, Object)}. Time spent waiting for input
+ * counts as idle, time spent waiting for room in the next queue as stalled. The remaining time
+ * of the workers is spent on the work of the stage itself. A stage that is busy most of the time
+ * while the stages before it are stalled is the bottleneck of the import.
+ */
+@Slf4j
+class ImportStage {
+    private final String name;
+    private final String unit;
+    private final int workers;
+    private final BlockingQueue<?> input;
+
+    private final AtomicLong items = new AtomicLong();
+    private final AtomicLong idleNanos = new AtomicLong();
+    private final AtomicLong stallNanos = new AtomicLong();
+
+    private long lastReportNanos = System.nanoTime();
+    private long lastItems = 0;
+    private long lastIdleNanos = 0;
+    private long lastStallNanos = 0;
+
+    /**
+     * @param name    name of the stage for the progress log
+     * @param unit    what the items of the stage are, e.g. 'rows'
+     * @param workers number of threads working in the stage
+     * @param input   queue the stage takes its work from, null for the first stage
+     */
+    ImportStage(String name, String unit, int workers, BlockingQueue<?> input) {
+        this.name = name;
+        this.unit = unit;
+        this.workers = workers;
+        this.input = input;
+    }
+
+    int getWorkers() {
+        return workers;
+    }
+
+    /**
+     * Wait for the next input of this stage.
+     */
+    <T> T take(BlockingQueue<T> queue) {
+        final long start = System.nanoTime();
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    log.info("interrupted exception ", e);
+                }
+            }
+        } finally {
+            idleNanos.addAndGet(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Hand a result of this stage to the next one, waiting while the next stage is full.
+     */
+    <T> void put(BlockingQueue<T> queue, T element) {
+        final long start = System.nanoTime();
+        while (true) {
+            try {
+                queue.put(element);
+                break;
+            } catch (InterruptedException e) {
+                log.warn("Thread interrupted while placing document in queue.");
+            }
+        }
+        stallNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    void processed(long count) {
+        items.addAndGet(count);
+    }
+
+    long getItems() {
+        return items.get();
+    }
+
+    /**
+     * Describe throughput, queue depth and use of the workers since the last report.
+     */
+    synchronized String report() {
+        final long now = System.nanoTime();
+        final long elapsed = Math.max(1, now - lastReportNanos);
+        final long currentItems = items.get();
+        final long currentIdle = idleNanos.get();
+        final long currentStall = stallNanos.get();
+
+        final double capacity = (double) elapsed * workers;
+        final double idle = Math.min(1d, (currentIdle - lastIdleNanos) / capacity);
+        final double stalled = Math.min(1d - idle, (currentStall - lastStallNanos) / capacity);
+
+        StringBuilder report = new StringBuilder(name)
+                .append(String.format(" [%d thread(s)]: %.0f %s/second", workers, 1e9 * (currentItems - lastItems) / elapsed, unit));
+        if (input != null) {
+            report.append(String.format(", queue %d/%d", input.size(), input.size() + input.remainingCapacity()));
+        }
+        report.append(String.format(", busy %.0f%%, idle %.0f%%, stalled %.0f%%", 100 * (1 - idle - stalled), 100 * idle, 100 * stalled));
+
+        lastReportNanos = now;
+        lastItems = currentItems;
+        lastIdleNanos = currentIdle;
+        lastStallNanos = currentStall;
+
+        return report.toString();
+    }
+}
@@ -1,28 +1,50 @@
 package de.komoot.photon.nominatim;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
+import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.GeometryFactory;
 import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.PrecisionModel;
 import com.vividsolutions.jts.linearref.LengthIndexedLine;
 import de.komoot.photon.Importer;
 import de.komoot.photon.PhotonDoc;
+import de.komoot.photon.nominatim.model.AddressHierarchy;
 import de.komoot.photon.nominatim.model.AddressRow;
+import de.komoot.photon.nominatim.model.UpdateRow;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.postgis.jts.JtsWrapper;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyInputStream;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.jdbc.core.RowCallbackHandler;
 import org.springframework.jdbc.core.RowMapper;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
 
 /**
  * A Nominatim result consisting of the basic PhotonDoc for the object
@@ -37,10 +59,19 @@ class NominatimResult {
         housenumbers = null;
     }
 
+    NominatimResult(PhotonDoc baseobj, Map<String, Point> housenumbers) {
+        doc = baseobj;
+        this.housenumbers = housenumbers;
+    }
+
     PhotonDoc getBaseDoc() {
         return doc;
     }
 
+    Map<String, Point> getHousenumbers() {
+        return housenumbers;
+    }
+
     boolean isUsefulForIndex() {
         return (housenumbers != null && !housenumbers.isEmpty()) || doc.isUsefulForIndex();
     }
@@ -124,8 +155,37 @@ class NominatimResult {
  */
 @Slf4j
 public class NominatimConnector {
+    private final String database;
+    private final String username;
+    private final String password;
+    private final BasicDataSource dataSource;
     private final JdbcTemplate template;
-    private Map<String, Map<String, String>> countryNames;
+    private final List<BasicDataSource> replicaDataSources = new ArrayList<>();
+    private final List<JdbcTemplate> replicaTemplates = new ArrayList<>();
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory(new PrecisionModel(), 4326);
+
+    private volatile Map<String, Map<String, String>> countryNames;
+    private final DatabaseAddressSource addressSource;
+    private final AddressBatchResolver addressResolver;
+    private int completionThreads = 1;
+    private int completionBatchSize = 100;
+    private int addressCacheSize = 10000;
+    private boolean useAddressGraph = false;
+    private int scanThreads = 1;
+    private int expandThreads = 1;
+    private int serializeThreads = 1;
+    private boolean useBinaryCopy = false;
+    private volatile ImportProfile importProfile = ImportProfile.ALL;
+    private File checkpointFile = null;
+    private String checkpointIndex = null;
+    private boolean resume = false;
+
+    /** number of partitions per place table when checkpoints are written */
+    private static final int CHECKPOINT_PARTITIONS = 256;
+    /** maximum number of changed places handed to the updater at once, larger sectors are split */
+    private static final int CHANGE_BATCH_SIZE = 10000;
+    /** addresses of POIs by their parent during an update, many changed POIs share them */
+    private volatile Cache<Long, AddressHierarchy> changeAddressCache = null;
     /**
      * Maps a row from location_property_osmline (address interpolation lines) to a photon doc.
      */
@@ -206,24 +266,125 @@ public class NominatimConnector {
             return result;
         }
     };
-    private final String selectColsPlaceX = "place_id, osm_type, osm_id, class, type, name, housenumber, postcode, address, extratags, ST_Envelope(geometry) AS bbox, parent_place_id, linked_place_id, rank_address, rank_search, importance, country_code, centroid";
+    /**
+     * maps a row of {@link #selectColsPlaceXLean(String)} to a photon doc, same as {@link #placeRowMapper}
+     */
+    private final RowMapper<NominatimResult> leanPlaceRowMapper = new RowMapper<NominatimResult>() {
+        @Override
+        public NominatimResult mapRow(ResultSet rs, int rowNum) throws SQLException {
+            Double importance = rs.getDouble("importance");
+            if (rs.wasNull()) {
+                // https://github.com/komoot/photon/issues/12
+                importance = 0.75 - rs.getInt("rank_search") / 40d;
+            }
+
+            PhotonDoc doc = new PhotonDoc(
+                    rs.getLong("place_id"),
+                    CompactMap.intern(rs.getString("osm_type")),
+                    rs.getLong("osm_id"),
+                    CompactMap.intern(rs.getString("class")),
+                    CompactMap.intern(rs.getString("type")),
+                    CompactMap.copyOf(DBUtils.getMap(rs, "name")),
+                    (String) null,
+                    CompactMap.copyOf(DBUtils.getMap(rs, "address")),
+                    getPlaceExtratags(rs.getString("extra_place"), rs.getString("extra_linked_place")),
+                    getEnvelope(getDouble(rs, "bbox_xmin"), getDouble(rs, "bbox_ymin"), getDouble(rs, "bbox_xmax"), getDouble(rs, "bbox_ymax")),
+                    rs.getLong("parent_place_id"),
+                    importance,
+                    rs.getString("country_code"),
+                    getPoint(getDouble(rs, "centroid_x"), getDouble(rs, "centroid_y")),
+                    rs.getLong("linked_place_id"),
+                    rs.getInt("rank_address")
+            );
+
+            doc.setPostcode(CompactMap.intern(rs.getString("postcode")));
+            doc.setCountry(getCountryNames(rs.getString("country_code")));
+
+            NominatimResult result = new NominatimResult(doc);
+            result.addHousenumbersFromString(rs.getString("housenumber"));
+
+            return result;
+        }
+    };
+
+    private static Double getDouble(ResultSet rs, String columnName) throws SQLException {
+        double value = rs.getDouble(columnName);
+        return rs.wasNull() ? null : value;
+    }
+
+    static Map<String, String> getPlaceExtratags(String place, String linkedPlace) {
+        if (place == null && linkedPlace == null) {
+            return CompactMap.empty();
+        }
+        if (linkedPlace == null) {
+            return CompactMap.wrap(new String[]{"place", CompactMap.intern(place)});
+        }
+        if (place == null) {
+            return CompactMap.wrap(new String[]{"linked_place", CompactMap.intern(linkedPlace)});
+        }
+        return CompactMap.wrap(new String[]{"place", CompactMap.intern(place), "linked_place", CompactMap.intern(linkedPlace)});
+    }
+
+    static Envelope getEnvelope(Double xmin, Double ymin, Double xmax, Double ymax) {
+        if (xmin == null || ymin == null || xmax == null || ymax == null) {
+            return null;
+        }
+        return new Envelope(xmin, xmax, ymin, ymax);
+    }
+
+    static Point getPoint(Double x, Double y) {
+        if (x == null || y == null) {
+            return null;
+        }
+        return GEOMETRY_FACTORY.createPoint(new Coordinate(x, y));
+    }
+
+    /**
+     * @param nameColumn select expression of the names, see {@link ImportProfile#getNameColumn()}
+     */
+    private static String selectColsPlaceX(String nameColumn) {
+        return "place_id, osm_type, osm_id, class, type, " + nameColumn + ", housenumber, postcode, address, extratags, ST_Envelope(geometry) AS bbox,"
+                + " parent_place_id, linked_place_id, rank_address, rank_search, importance, country_code, centroid";
+    }
+
+    /**
+     * placex columns for the full import. Geometries are only needed for their coordinates and of
+     * the extratags only the place type is used, so postgres hands out just these plain values.
+     * The columns are cast to the exact types expected by {@link #readPlace(BinaryCopyReader)}.
+     *
+     * @param nameColumn select expression of the names, see {@link ImportProfile#getNameColumn()}
+     */
+    private static String selectColsPlaceXLean(String nameColumn) {
+        return "place_id::bigint, osm_type::text, osm_id::bigint, class::text, type::text, " + nameColumn + ", housenumber::text, postcode::text, address,"
+                + " (extratags -> 'place') AS extra_place, (extratags -> 'linked_place') AS extra_linked_place,"
+                + " ST_XMin(geometry)::float8 AS bbox_xmin, ST_YMin(geometry)::float8 AS bbox_ymin, ST_XMax(geometry)::float8 AS bbox_xmax, ST_YMax(geometry)::float8 AS bbox_ymax,"
+                + " parent_place_id::bigint, linked_place_id::bigint, rank_address::int, rank_search::int, importance::float8, country_code::text,"
+                + " ST_X(centroid)::float8 AS centroid_x, ST_Y(centroid)::float8 AS centroid_y";
+    }
+
     private final String selectColsOsmline = "place_id, osm_id, parent_place_id, startnumber, endnumber, interpolationtype, postcode, country_code, linegeo";
-    private final String selectColsAddress = "p.place_id, p.name, p.class, p.type, p.rank_address";
     private Importer importer;
 
     private Map<String, String> getCountryNames(String countrycode) {
         if (countryNames == null) {
-            countryNames = new HashMap<String, Map<String, String>>();
+            loadCountryNames();
+        }
+
+        return countryNames.get(countrycode);
+    }
+
+    private synchronized void loadCountryNames() {
+        if (countryNames == null) {
+            final Map<String, Map<String, String>> names = new HashMap<String, Map<String, String>>();
             template.query("SELECT country_code, name FROM country_name;", new RowCallbackHandler() {
                         @Override
                         public void processRow(ResultSet rs) throws SQLException {
-                            countryNames.put(rs.getString("country_code"), DBUtils.getMap(rs, "name"));
+                            names.put(rs.getString("country_code"), DBUtils.getMap(rs, "name"));
                         }
                     }
             );
+            countryNames = names;
         }
-
-        return countryNames.get(countrycode);
     }
 
     /**
@@ -234,10 +395,15 @@ public class NominatimConnector {
      * @param password db username's password
      */
     public NominatimConnector(String host, int port, String database, String username, String password) {
-        BasicDataSource dataSource = buildDataSource(host, port, database, username, password, false);
+        this.database = database;
+        this.username = username;
+        this.password = password;
+        dataSource = buildDataSource(host, port, database, username, password, false);
 
         template = new JdbcTemplate(dataSource);
         template.setFetchSize(10000);
+        addressSource = new DatabaseAddressSource(template);
+        addressResolver = new AddressBatchResolver(addressSource);
     }
 
     static BasicDataSource buildDataSource(String host, int port, String database, String username, String password, boolean autocommit) {
@@ -255,8 +421,180 @@ public class NominatimConnector {
         this.importer = importer;
     }
 
+    /**
+     * Set the number of threads that complete the address information of documents
+     * during a full import or an update. Every thread uses its own database connection
+     * in addition to the one used for reading the place tables.
+     *
+     * @param completionThreads number of completion threads, must be at least 1
+     */
+    public void setCompletionThreads(int completionThreads) {
+        if (completionThreads < 1)
+            throw new IllegalArgumentException("number of completion threads must be at least 1");
+
+        this.completionThreads = completionThreads;
+        updatePoolSizes();
+    }
+
+    /**
+     * Set the number of threads that read the place tables during a full import.
+     * With more than one thread, the tables are split into ranges of geometry sectors
+     * which are read in parallel, each over its own connection.
+     *
+     * @param scanThreads number of reading threads, must be at least 1
+     */
+    public void setScanThreads(int scanThreads) {
+        if (scanThreads < 1)
+            throw new IllegalArgumentException("number of scan threads must be at least 1");
+
+        this.scanThreads = scanThreads;
+        updatePoolSizes();
+    }
+
+    /**
+     * Add another database server with the same nominatim database, usually a read replica.
+     * Reading the place tables and completing addresses during a full import is spread
+     * evenly over the main database and all replicas.
+     *
+     * @param host database host of the replica
+     * @param port database port of the replica
+     */
+    public void addReplica(String host, int port) {
+        BasicDataSource replicaDataSource = buildDataSource(host, port, database, username, password, false);
+        JdbcTemplate replicaTemplate = new JdbcTemplate(replicaDataSource);
+        replicaTemplate.setFetchSize(10000);
+
+        replicaDataSources.add(replicaDataSource);
+        replicaTemplates.add(replicaTemplate);
+        updatePoolSizes();
+    }
+
+    private void updatePoolSizes() {
+        // worst case: all threads end up on the same server
+        int connections = Math.max(GenericObjectPoolConfig.DEFAULT_MAX_TOTAL, completionThreads + scanThreads + 1);
+        dataSource.setMaxTotal(connections);
+        for (BasicDataSource replicaDataSource : replicaDataSources) {
+            replicaDataSource.setMaxTotal(connections);
+        }
+    }
+
+    private List<JdbcTemplate> getTemplates() {
+        List<JdbcTemplate> templates = new ArrayList<>(replicaTemplates.size() + 1);
+        templates.add(template);
+        templates.addAll(replicaTemplates);
+        return templates;
+    }
+
+    /**
+     * Set the number of threads that turn completed places into one document per house number during a full import.
+     *
+     * @param expandThreads number of threads, must be at least 1
+     */
+    public void setExpandThreads(int expandThreads) {
+        if (expandThreads < 1)
+            throw new IllegalArgumentException("number of expand threads must be at least 1");
+
+        this.expandThreads = expandThreads;
+    }
+
+    /**
+     * Set the number of threads that serialize documents and hand them to the importer during a full import.
+     * The importer must accept documents from several threads at once.
+     *
+     * @param serializeThreads number of threads, must be at least 1
+     */
+    public void setSerializeThreads(int serializeThreads) {
+        if (serializeThreads < 1)
+            throw new IllegalArgumentException("number of serialize threads must be at least 1");
+
+        this.serializeThreads = serializeThreads;
+    }
+
+    /**
+     * Set the number of documents whose address information is looked up together
+     * in a single query during a full import.
+     *
+     * @param completionBatchSize number of documents per query, must be at least 1
+     */
+    public void setCompletionBatchSize(int completionBatchSize) {
+        if (completionBatchSize < 1)
+            throw new IllegalArgumentException("completion batch size must be at least 1");
+
+        this.completionBatchSize = completionBatchSize;
+    }
+
+    /**
+     * Set the maximum number of address hierarchies that are kept in memory during a
+     * full import or an update. The address of POIs and house numbers only depends on their parent place,
+     * so neighbouring places can reuse the address of the parent without querying the database.
+     *
+     * @param addressCacheSize maximum number of cached parents, 0 disables the cache
+     */
+    public void setAddressCacheSize(int addressCacheSize) {
+        if (addressCacheSize < 0)
+            throw new IllegalArgumentException("address cache size must not be negative");
+
+        this.addressCacheSize = addressCacheSize;
+    }
+
+    /**
+     * Load the complete address hierarchy into memory before a full import,
+     * so that the address of documents can be completed without any further queries.
+     * Needs enough heap for all places up to rank 27 and their address lines,
+     * the expected size is logged before loading.
+     *
+     * @param useAddressGraph
+     */
+    public void setUseAddressGraph(boolean useAddressGraph) {
+        this.useAddressGraph = useAddressGraph;
+    }
+
+    /**
+     * Record the progress of a full import in a checkpoint file, so that an import that was
+     * aborted can be continued where it stopped.
+     *
+     * @param checkpointFile file for the checkpoint
+     * @param indexName      the index or index generation the import writes to
+     * @param resume         continue the import recorded in the file instead of starting a new one
+     */
+    public void setCheckpoint(File checkpointFile, String indexName, boolean resume) {
+        this.checkpointFile = checkpointFile;
+        this.checkpointIndex = indexName;
+        this.resume = resume;
+    }
+
+    /**
+     * @return the index or index generation the import recorded in a checkpoint file writes to, null if the
+     * checkpoint does not name one
+     */
+    public static String getCheckpointIndex(File checkpointFile) throws IOException {
+        return ImportCheckpoint.load(checkpointFile).getIndexName();
+    }
+
+    /**
+     * Only import the places and names of the given profile.
+     *
+     * @param importProfile
+     */
+    public void setImportProfile(ImportProfile importProfile) {
+        this.importProfile = importProfile;
+    }
+
+    public ImportProfile getImportProfile() {
+        return importProfile;
+    }
+
+    /**
+     * Read placex during a full import with postgres' binary COPY instead of a JDBC result set.
+     *
+     * @param useBinaryCopy
+     */
+    public void setUseBinaryCopy(boolean useBinaryCopy) {
+        this.useBinaryCopy = useBinaryCopy;
+    }
+
     public List<PhotonDoc> getByPlaceId(long placeId) {
-        NominatimResult result = template.queryForObject("SELECT " + selectColsPlaceX + " FROM placex WHERE place_id = ?", new Object[] { placeId }, placeRowMapper);
+        NominatimResult result = template.queryForObject("SELECT " + selectColsPlaceX(importProfile.getNameColumn()) + " FROM placex WHERE place_id = ?", new Object[] { placeId }, placeRowMapper);
         completePlace(result.getBaseDoc());
         return result.getDocsWithHousenumber();
     }
@@ -267,59 +605,708 @@ public class NominatimConnector {
         return result.getDocsWithHousenumber();
     }
 
-    List<AddressRow> getAddresses(PhotonDoc doc) {
-        RowMapper<AddressRow> rowMapper = new RowMapper<AddressRow>() {
-            @Override
-            public AddressRow mapRow(ResultSet rs, int rowNum) throws SQLException {
-                return new AddressRow(
-                        rs.getLong("place_id"),
-                        DBUtils.getMap(rs, "name"),
-                        rs.getString("class"),
-                        rs.getString("type"),
-                        rs.getInt("rank_address")
-                );
+    /**
+     * Read the places of placex that nominatim marked for indexing with a single query, ordered by search rank and
+     * geometry sector like nominatim indexes them. The consumer gets the places sector by sector, sectors with many
+     * changes in several parts. The documents of the places are only available after their addresses were
+     * completed with {@link #completeChangedPlaces(List)}. Places outside the import profile come without documents like
+     * deleted ones, they may have been part of it before they changed.
+     *
+     * @param minRank        lowest search rank to read
+     * @param maxRank        highest search rank to read
+     * @param sectorConsumer receives the changed places of one sector after the other
+     */
+    public void readChangedPlaces(int minRank, int maxRank, Consumer<List<UpdateRow>> sectorConsumer) {
+        // addresses may have changed since the last update
+        changeAddressCache = addressCacheSize > 0 ? CacheBuilder.newBuilder().maximumSize(addressCacheSize).<Long, AddressHierarchy>build() : null;
+        ChangeSetRowHandler handler = new ChangeSetRowHandler(placeRowMapper, sectorConsumer);
+        template.query("SELECT indexed_status, geometry_sector, (true" + importProfile.getPlacexCondition() + ") AS in_profile, "
+                        + selectColsPlaceX(importProfile.getNameColumn()) + " FROM placex"
+                        + " WHERE indexed_status > 0 AND rank_search BETWEEN ? AND ? ORDER BY rank_search, geometry_sector",
+                new Object[] { minRank, maxRank }, handler);
+        handler.flush();
+    }
+
+    /**
+     * Read the interpolation lines that nominatim marked for indexing, see {@link #readChangedPlaces(int, int, Consumer)}.
+     * Their search rank is always 30. If the import profile excludes interpolations, none of them has documents.
+     */
+    public void readChangedInterpolations(Consumer<List<UpdateRow>> sectorConsumer) {
+        ChangeSetRowHandler handler = new ChangeSetRowHandler(osmlineRowMapper, sectorConsumer);
+        template.query("SELECT indexed_status, geometry_sector, 30 AS rank_search, " + importProfile.includesInterpolations() + " AS in_profile, " + selectColsOsmline + " FROM location_property_osmline"
+                + " WHERE indexed_status > 0 ORDER BY geometry_sector", handler);
+        handler.flush();
+    }
+
+    /**
+     * Complete the addresses of changed places in batches and expand them to one document per house number.
+     * Every place is completed once, its house numbers share the address. Several threads may complete
+     * places at the same time, each borrows its own connection.
+     *
+     * @param places places from {@link #readChangedPlaces(int, int, Consumer)} or {@link #readChangedInterpolations(Consumer)}
+     */
+    public void completeChangedPlaces(List<UpdateRow> places) {
+        List<PhotonDoc> docs = new ArrayList<>();
+        for (UpdateRow place : places) {
+            if (place.getBaseDoc() != null) {
+                docs.add(place.getBaseDoc());
             }
-        };
+        }
 
-        boolean isPoi = doc.getRankAddress() > 28;
-        long placeId = (isPoi) ? doc.getParentPlaceId() : doc.getPlaceId();
+        for (int start = 0; start < docs.size(); start += completionBatchSize) {
+            completeDocs(docs.subList(start, Math.min(start + completionBatchSize, docs.size())), addressResolver, changeAddressCache);
+        }
 
-        List<AddressRow> terms = template.query("SELECT " + selectColsAddress + " FROM placex p, place_addressline pa WHERE p.place_id = pa.address_place_id and pa.place_id = ? and pa.cached_rank_address > 4 and pa.address_place_id != ? and pa.isaddress order by rank_address desc,fromarea desc,distance asc,rank_search desc", new Object[]{placeId, placeId}, rowMapper);
+        for (UpdateRow place : places) {
+            if (place.getBaseDoc() != null) {
+                place.setDocs(new NominatimResult(place.getBaseDoc(), place.getHousenumbers()).getDocsWithHousenumber());
+            }
+        }
+    }
 
-        if (isPoi) {
-            // need to add the term for the parent place ID itself
-            terms.addAll(0, template.query("SELECT " + selectColsAddress + " FROM placex p WHERE p.place_id = ?", new Object[]{placeId}, rowMapper));
-        } else {
-            // we have to add information from current doc to have full address information (entry presented with range 0, eg. - https://nominatim.openstreetmap.org/ui/details.html?osmtype=W&osmid=334911186&class=highway)
-            terms.add(0, doc.asAddress());
+    List<AddressRow> getAddresses(PhotonDoc doc) {
+        return addressResolver.getAddresses(Collections.singletonList(doc)).get(0);
+    }
+
+    /**
+     * Results or documents that were read together from one partition of a place table.
+     */
+    private static class Batch<T> {
+        private final ScanPartition partition;
+        private final List<T> items;
+
+        Batch(ScanPartition partition, List<T> items) {
+            this.partition = partition;
+            this.items = items;
         }
+    }
+
+    private static final Batch<PhotonDoc> FINAL_DOCUMENTS = new Batch<>(null, Collections.<PhotonDoc>emptyList());
+    private static final Batch<NominatimResult> FINAL_BATCH = new Batch<>(null, Collections.<NominatimResult>emptyList());
 
-        return terms;
+    /**
+     * Keeps track of the workers of a stage that are still running. The last of them to finish tells all workers
+     * of the next stage that no more input is coming, however it finished, so that no stage waits forever.
+     */
+    private static class StageEnd<T> {
+        private final AtomicInteger running;
+        private final BlockingQueue<T> next;
+        private final T endOfInput;
+        private final int nextWorkers;
+
+        /**
+         * @param workers     number of workers of the stage
+         * @param next        input of the next stage, null for the last stage
+         * @param endOfInput  marker that ends the input of the next stage
+         * @param nextWorkers number of workers of the next stage
+         */
+        StageEnd(int workers, BlockingQueue<T> next, T endOfInput, int nextWorkers) {
+            this.running = new AtomicInteger(workers);
+            this.next = next;
+            this.endOfInput = endOfInput;
+            this.nextWorkers = nextWorkers;
+        }
+
+        void workerFinished() {
+            if (running.decrementAndGet() == 0 && next != null) {
+                for (int i = 0; i < nextWorkers; i++) {
+                    enqueue(next, endOfInput);
+                }
+            }
+        }
     }
 
-    private static final PhotonDoc FINAL_DOCUMENT = new PhotonDoc(0, null, 0, null, null, null, null, null, null, null, 0, 0, null, null, 0, 0);
+    /**
+     * The first failure of any worker of the import pipeline. After a failure the scan stops and the other stages
+     * drop their input until it ends, then the import fails with it.
+     */
+    private static class PipelineFailure {
+        private final AtomicReference<Throwable> failure = new AtomicReference<>();
 
-    private class ImportThread implements Runnable {
-        private final BlockingQueue<PhotonDoc> documents;
+        void failed(Throwable e) {
+            failure.compareAndSet(null, e);
+        }
+
+        boolean hasFailed() {
+            return failure.get() != null;
+        }
 
-        public ImportThread(BlockingQueue<PhotonDoc> documents) {
+        void rethrow() {
+            Throwable e = failure.get();
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            }
+            if (e instanceof Error) {
+                throw (Error) e;
+            }
+            if (e != null) {
+                throw new IllegalStateException("import failed", e);
+            }
+        }
+    }
+
+    /**
+     * Last stage of the pipeline: serializes the documents and hands them to the importer,
+     * which sends them to the index in bulks. Several of these workers may run in parallel.
+     */
+    private class SerializeWorker implements Runnable {
+        private final ImportStage stage;
+        private final BlockingQueue<Batch<PhotonDoc>> documents;
+        private final CheckpointWriter checkpointWriter;
+        private final ImportProgress progress;
+        private final StageEnd<Batch<PhotonDoc>> end;
+        private final PipelineFailure failure;
+
+        public SerializeWorker(ImportStage stage, BlockingQueue<Batch<PhotonDoc>> documents, CheckpointWriter checkpointWriter, ImportProgress progress,
+                               StageEnd<Batch<PhotonDoc>> end, PipelineFailure failure) {
+            this.stage = stage;
             this.documents = documents;
+            this.checkpointWriter = checkpointWriter;
+            this.progress = progress;
+            this.end = end;
+            this.failure = failure;
         }
 
         @Override
         public void run() {
-            while (true) {
-                PhotonDoc doc;
+            try {
+                while (true) {
+                    Batch<PhotonDoc> batch = stage.take(documents);
+                    if (batch == FINAL_DOCUMENTS)
+                        break;
+                    if (failure.hasFailed())
+                        continue;
+
+                    try {
+                        int added = 0;
+                        for (PhotonDoc doc : batch.items) {
+                            if (importer.add(doc)) {
+                                ++added;
+                            }
+                        }
+                        stage.processed(batch.items.size());
+                        checkpointWriter.batchAdded(batch, added);
+                        progress.documentsAdded(added, batch.items.size() - added);
+                    } catch (Throwable e) {
+                        log.error("could not import " + batch.items.size() + " documents", e);
+                        failure.failed(e);
+                    }
+                }
+            } finally {
+                end.workerFinished();
+            }
+        }
+    }
+
+    /**
+     * Advances the import checkpoint when partitions have been completely handed to the importer.
+     */
+    private class CheckpointWriter {
+        private final PartitionTracker tracker;
+        private final ImportCheckpoint checkpoint;
+        /** only one thread flushes the importer and writes the checkpoint at a time */
+        private final ReentrantLock writeLock = new ReentrantLock();
+        // guarded by this, completed partitions with their number of documents
+        private final Map<ScanPartition, Long> completed = new LinkedHashMap<>();
+        private boolean checkpointFailed = false;
+
+        CheckpointWriter(PartitionTracker tracker, ImportCheckpoint checkpoint) {
+            this.tracker = tracker;
+            this.checkpoint = checkpoint;
+        }
+
+        /**
+         * Count a batch that was handed to the importer. If its partition is complete now, the checkpoint is
+         * written, unless another worker is writing already. That one writes the partition as well.
+         *
+         * @param added number of documents of the batch the importer took
+         */
+        void batchAdded(Batch<PhotonDoc> batch, int added) {
+            Map<ScanPartition, Long> done = tracker.batchAdded(batch.partition, added);
+            if (checkpoint == null)
+                return;
+
+            synchronized (this) {
+                completed.putAll(done);
+            }
+            write(false);
+        }
+
+        /**
+         * Record the partitions that are still outstanding after all workers are done.
+         */
+        void finish() {
+            if (checkpoint == null)
+                return;
+
+            synchronized (this) {
+                completed.putAll(tracker.getCompletedPartitions());
+            }
+            write(true);
+        }
+
+        private void write(boolean wait) {
+            do {
+                if (wait) {
+                    writeLock.lock();
+                } else if (!writeLock.tryLock()) {
+                    return;
+                }
                 try {
-                    doc = documents.take();
-                    if (doc == FINAL_DOCUMENT)
+                    writeCompleted();
+                } finally {
+                    writeLock.unlock();
+                }
+            } while (hasCompleted());
+        }
+
+        private synchronized boolean hasCompleted() {
+            return !completed.isEmpty() && !checkpointFailed;
+        }
+
+        /**
+         * Checkpoints may only advance once the index has confirmed that it stored all documents
+         * of the completed partitions. After the first failure the checkpoint stays where it is,
+         * so that a resumed import reads everything that may be missing again. The flush and the
+         * file are written without holding the lock the other workers need to count their batches.
+         * <p>
+         * Only the documents of the completed partitions are counted. Those of partitions in progress
+         * are read again by a resumed import, they would be counted twice.
+         */
+        private void writeCompleted() {
+            final List<ScanPartition> done;
+            long documents = 0;
+            synchronized (this) {
+                if (completed.isEmpty() || checkpointFailed)
+                    return;
+                done = new ArrayList<>(completed.keySet());
+                for (Long partitionDocuments : completed.values()) {
+                    documents += partitionDocuments;
+                }
+                completed.clear();
+            }
+
+            if (importer.flush()) {
+                checkpoint.markCompleted(done, documents);
+            } else {
+                log.error("documents could not be stored, import checkpoint will not be updated anymore");
+                synchronized (this) {
+                    checkpointFailed = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps track of the batches of all partitions on their way through the import pipeline.
+     * A partition is complete when it has been read and all of its batches were handed to the importer.
+     * Batches that fail on the way, or are dropped after a failure, are never added, so their partitions
+     * are never complete. The documents the importer took are counted per partition.
+     */
+    static class PartitionTracker {
+        /** batches on their way and documents added so far */
+        private final Map<ScanPartition, long[]> pending = new HashMap<>();
+        private final Set<ScanPartition> scanned = new HashSet<>();
+
+        synchronized void batchSent(ScanPartition partition) {
+            long[] count = pending.get(partition);
+            if (count == null) {
+                count = new long[2];
+                pending.put(partition, count);
+            }
+            ++count[0];
+        }
+
+        synchronized void scanFinished(ScanPartition partition) {
+            scanned.add(partition);
+        }
+
+        /**
+         * @param documents number of documents of the batch the importer took
+         * @return partitions that became complete since the last call, see {@link #getCompletedPartitions()}
+         */
+        synchronized Map<ScanPartition, Long> batchAdded(ScanPartition partition, int documents) {
+            long[] count = pending.get(partition);
+            --count[0];
+            count[1] += documents;
+            return getCompletedPartitions();
+        }
+
+        /**
+         * @return partitions that became complete since the last call with their number of documents
+         */
+        synchronized Map<ScanPartition, Long> getCompletedPartitions() {
+            Map<ScanPartition, Long> done = new LinkedHashMap<>();
+            for (Iterator<ScanPartition> it = scanned.iterator(); it.hasNext(); ) {
+                ScanPartition partition = it.next();
+                long[] count = pending.get(partition);
+                if (count == null || count[0] == 0) {
+                    done.put(partition, count == null ? 0 : count[1]);
+                    pending.remove(partition);
+                    it.remove();
+                }
+            }
+            return done;
+        }
+    }
+
+    /**
+     * Completes the address information of batches of raw placex/osmline results. Several of
+     * these workers may run in parallel, each of them borrowing its own connection from the pool.
+     */
+    private class CompletionWorker implements Runnable {
+        private final ImportStage stage;
+        private final BlockingQueue<Batch<NominatimResult>> results;
+        private final BlockingQueue<Batch<NominatimResult>> completed;
+        private final AddressBatchResolver resolver;
+        private final Cache<Long, AddressHierarchy> addressCache;
+        private final StageEnd<Batch<NominatimResult>> end;
+        private final PipelineFailure failure;
+
+        public CompletionWorker(ImportStage stage, BlockingQueue<Batch<NominatimResult>> results, BlockingQueue<Batch<NominatimResult>> completed,
+                                AddressBatchResolver resolver, Cache<Long, AddressHierarchy> addressCache,
+                                StageEnd<Batch<NominatimResult>> end, PipelineFailure failure) {
+            this.stage = stage;
+            this.results = results;
+            this.completed = completed;
+            this.resolver = resolver;
+            this.addressCache = addressCache;
+            this.end = end;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Batch<NominatimResult> batch = stage.take(results);
+                    if (batch == FINAL_BATCH)
+                        break;
+                    if (failure.hasFailed())
+                        continue;
+
+                    try {
+                        // finalize documents by taking into account the higher level placex rows assigned to the rows
+                        completePlaces(batch.items, resolver, addressCache);
+                    } catch (Throwable e) {
+                        log.error("could not complete address of " + batch.items.size() + " places starting with place "
+                                + batch.items.get(0).getBaseDoc().getPlaceId(), e);
+                        failure.failed(e);
+                        // the batch is never added, so its partition is not checkpointed and read again on resume
+                        continue;
+                    }
+
+                    stage.processed(batch.items.size());
+                    stage.put(completed, batch);
+                }
+            } finally {
+                end.workerFinished();
+            }
+        }
+    }
+
+    /**
+     * Turns completed results into documents, one for each house number of a result.
+     */
+    private static class ExpandWorker implements Runnable {
+        private final ImportStage stage;
+        private final BlockingQueue<Batch<NominatimResult>> completed;
+        private final BlockingQueue<Batch<PhotonDoc>> documents;
+        private final StageEnd<Batch<PhotonDoc>> end;
+        private final PipelineFailure failure;
+
+        ExpandWorker(ImportStage stage, BlockingQueue<Batch<NominatimResult>> completed, BlockingQueue<Batch<PhotonDoc>> documents,
+                     StageEnd<Batch<PhotonDoc>> end, PipelineFailure failure) {
+            this.stage = stage;
+            this.completed = completed;
+            this.documents = documents;
+            this.end = end;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Batch<NominatimResult> batch = stage.take(completed);
+                    if (batch == FINAL_BATCH)
                         break;
-                    importer.add(doc);
-                } catch (InterruptedException e) {
-                    log.info("interrupted exception ", e);
+                    if (failure.hasFailed())
+                        continue;
+
+                    List<PhotonDoc> docs = new ArrayList<>(batch.items.size());
+                    try {
+                        for (NominatimResult result : batch.items) {
+                            docs.addAll(result.getDocsWithHousenumber());
+                        }
+                    } catch (Throwable e) {
+                        log.error("could not create the documents of " + batch.items.size() + " places", e);
+                        failure.failed(e);
+                        continue;
+                    }
+
+                    stage.processed(docs.size());
+                    stage.put(documents, new Batch<>(batch.partition, docs));
                 }
+            } finally {
+                end.workerFinished();
             }
-            importer.finish();
+        }
+    }
+
+    /**
+     * Collects useful results from a scan over a place table into batches for the completion workers.
+     */
+    private class BatchingRowHandler implements RowCallbackHandler {
+        private final ImportStage stage;
+        private final ScanPartition partition;
+        private final RowMapper<NominatimResult> rowMapper;
+        private final BlockingQueue<Batch<NominatimResult>> results;
+        private final PartitionTracker tracker;
+        private List<NominatimResult> batch;
+
+        BatchingRowHandler(ImportStage stage, ScanPartition partition, RowMapper<NominatimResult> rowMapper,
+                           BlockingQueue<Batch<NominatimResult>> results, PartitionTracker tracker) {
+            this.stage = stage;
+            this.partition = partition;
+            this.rowMapper = rowMapper;
+            this.results = results;
+            this.tracker = tracker;
+            this.batch = new ArrayList<>(completionBatchSize);
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            // turns a row into a photon document that gathers all de-normalised information
+            add(rowMapper.mapRow(rs, 0));
+        }
+
+        void add(NominatimResult docs) {
+            stage.processed(1);
+            if (!docs.isUsefulForIndex()) return; // do not import document
+
+            batch.add(docs);
+            if (batch.size() >= completionBatchSize) {
+                flush();
+            }
+        }
+
+        void flush() {
+            if (!batch.isEmpty()) {
+                tracker.batchSent(partition);
+                stage.put(results, new Batch<>(partition, batch));
+                batch = new ArrayList<>(completionBatchSize);
+            }
+        }
+    }
+
+    /**
+     * Collects the changed places of a sector, completes their documents and hands them on.
+     */
+    private class ChangeSetRowHandler implements RowCallbackHandler {
+        private final RowMapper<NominatimResult> rowMapper;
+        private final Consumer<List<UpdateRow>> sectorConsumer;
+        private List<UpdateRow> rows = new ArrayList<>();
+
+        ChangeSetRowHandler(RowMapper<NominatimResult> rowMapper, Consumer<List<UpdateRow>> sectorConsumer) {
+            this.rowMapper = rowMapper;
+            this.sectorConsumer = sectorConsumer;
+        }
+
+        @Override
+        public void processRow(ResultSet rs) throws SQLException {
+            UpdateRow row = new UpdateRow();
+            row.setPlaceId(rs.getLong("place_id"));
+            row.setIndexdStatus(rs.getInt("indexed_status"));
+            row.setRankSearch(rs.getInt("rank_search"));
+            row.setGeometrySector(rs.getInt("geometry_sector"));
+
+            if (!rows.isEmpty()) {
+                UpdateRow last = rows.get(rows.size() - 1);
+                if (!last.getRankSearch().equals(row.getRankSearch()) || !last.getGeometrySector().equals(row.getGeometrySector())
+                        || rows.size() >= CHANGE_BATCH_SIZE) {
+                    flush();
+                }
+            }
+
+            if (row.getIndexdStatus() != NominatimUpdater.DELETE && rs.getBoolean("in_profile")) {
+                NominatimResult result = rowMapper.mapRow(rs, 0);
+                row.setBaseDoc(result.getBaseDoc());
+                row.setHousenumbers(result.getHousenumbers());
+            }
+            rows.add(row);
+        }
+
+        void flush() {
+            if (!rows.isEmpty()) {
+                List<UpdateRow> sector = rows;
+                rows = new ArrayList<>();
+                sectorConsumer.accept(sector);
+            }
+        }
+    }
+
+    /**
+     * Reads partitions of the place tables until there are none left.
+     */
+    private class ScanWorker implements Runnable {
+        private final ImportStage stage;
+        private final JdbcTemplate template;
+        private final BlockingQueue<ScanPartition> partitions;
+        private final BlockingQueue<Batch<NominatimResult>> results;
+        private final PartitionTracker tracker;
+        private final String andCountryCodeStr;
+        private final StageEnd<Batch<NominatimResult>> end;
+        private final PipelineFailure failure;
+
+        ScanWorker(ImportStage stage, JdbcTemplate template, BlockingQueue<ScanPartition> partitions, BlockingQueue<Batch<NominatimResult>> results,
+                   PartitionTracker tracker, String andCountryCodeStr, StageEnd<Batch<NominatimResult>> end, PipelineFailure failure) {
+            this.stage = stage;
+            this.template = template;
+            this.partitions = partitions;
+            this.results = results;
+            this.tracker = tracker;
+            this.andCountryCodeStr = andCountryCodeStr;
+            this.end = end;
+            this.failure = failure;
+        }
+
+        @Override
+        public void run() {
+            try {
+                scan();
+            } catch (Throwable e) {
+                log.error("scan worker failed", e);
+                failure.failed(e);
+            } finally {
+                end.workerFinished();
+            }
+        }
+
+        private void scan() {
+            ScanPartition partition;
+            while (!failure.hasFailed() && (partition = partitions.poll()) != null) {
+                RowMapper<NominatimResult> rowMapper = partition.getTable() == ScanPartition.Table.PLACEX ? leanPlaceRowMapper : osmlineRowMapper;
+                BatchingRowHandler handler = new BatchingRowHandler(stage, partition, rowMapper, results, tracker);
+                try {
+                    if (partition.getTable() == ScanPartition.Table.OSMLINE) {
+                        template.query(getPartitionQuery(partition, andCountryCodeStr), handler);
+                    } else if (useBinaryCopy) {
+                        copyPlaces(template, getPartitionQuery(partition, andCountryCodeStr), handler);
+                    } else {
+                        template.query(getPartitionQuery(partition, andCountryCodeStr), handler);
+                    }
+                } catch (RuntimeException e) {
+                    log.error("could not read " + partition, e);
+                    failure.failed(e);
+                    return;
+                }
+                handler.flush();
+                tracker.scanFinished(partition);
+                log.debug("finished reading " + partition);
+            }
+        }
+    }
+
+    /**
+     * Thread-safe counter for the number of documents handed to the importer,
+     * logs the progress of all stages of the import from time to time.
+     */
+    private static class ImportProgress {
+        private static final int PROGRESS_INTERVAL = 50000;
+
+        private final long startMillis = System.currentTimeMillis();
+        private final AtomicLong counter = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final Cache<Long, AddressHierarchy> addressCache;
+        private final List<ImportStage> stages;
+        private final Importer importer;
+        private final long expectedRows;
+
+        /**
+         * @param importer     importer behind the last stage, reports how the index keeps up
+         * @param expectedRows estimated number of rows the first stage is going to read, 0 if unknown
+         */
+        ImportProgress(Cache<Long, AddressHierarchy> addressCache, List<ImportStage> stages, Importer importer, long expectedRows) {
+            this.addressCache = addressCache;
+            this.stages = stages;
+            this.importer = importer;
+            this.expectedRows = expectedRows;
+        }
+
+        /**
+         * @param added   number of documents the importer took
+         * @param dropped number of documents the importer could not serialize, they are not part of the count
+         */
+        void documentsAdded(int added, int dropped) {
+            if (dropped > 0) {
+                this.dropped.addAndGet(dropped);
+            }
+            final long count = counter.addAndGet(added);
+            if (count / PROGRESS_INTERVAL != (count - added) / PROGRESS_INTERVAL) {
+                final long elapsedMillis = Math.max(1, System.currentTimeMillis() - startMillis);
+                final double documentsPerSecond = 1000d * count / elapsedMillis;
+                log.info(String.format("imported %s documents [%.1f/second]%s%s", MessageFormat.format("{0}", count), documentsPerSecond,
+                        estimatedTimeLeft(elapsedMillis), cacheStatistics()));
+                for (ImportStage stage : stages) {
+                    log.info("  " + stage.report());
+                }
+                String importerReport = importer.report();
+                if (importerReport != null) {
+                    log.info("  " + importerReport);
+                }
+            }
+        }
+
+        private String estimatedTimeLeft(long elapsedMillis) {
+            final long rows = stages.get(0).getItems();
+            if (expectedRows <= 0 || rows <= 0) {
+                return "";
+            }
+
+            final long secondsLeft = Math.max(0, expectedRows - rows) * elapsedMillis / rows / 1000;
+            return String.format(", about %d:%02d:%02d left", secondsLeft / 3600, (secondsLeft / 60) % 60, secondsLeft % 60);
+        }
+
+        String cacheStatistics() {
+            if (addressCache == null) {
+                return "";
+            }
+
+            CacheStats stats = addressCache.stats();
+            return String.format(", address cache hits: %d, misses: %d (%.1f%% hit rate)", stats.hitCount(), stats.missCount(), 100d * stats.hitRate());
+        }
+
+        long getCount() {
+            return counter.longValue();
+        }
+
+        long getDropped() {
+            return dropped.longValue();
+        }
+    }
+
+    private static <T> void enqueue(BlockingQueue<T> queue, T element) {
+        while (true) {
+            try {
+                queue.put(element);
+            } catch (InterruptedException e) {
+                log.warn("Thread interrupted while placing document in queue.");
+                continue;
+            }
+            break;
+        }
+    }
+
+    private static void joinThread(Thread thread) {
+        while (true) {
+            try {
+                thread.join();
+            } catch (InterruptedException e) {
+                log.warn("Thread interrupted while waiting for import thread.");
+                continue;
+            }
+            break;
         }
     }
 
@@ -340,99 +1327,296 @@ public class NominatimConnector {
 
     /**
      * parses every relevant row in placex, creates a corresponding document and calls the {@link #importer} for every document
+     *
+     * @return the number of documents the import handed to the importer, including those of a resumed import that
+     * were stored before
      */
-    public void readEntireDatabase(String... countryCodes) {
-        final int progressInterval = 50000;
-        final long startMillis = System.currentTimeMillis();
-
-        String andCountryCodeStr = "", whereCountryCodeStr = "";
+    public long readEntireDatabase(String... countryCodes) {
+        String andCountryCodeStr = "";
         String countryCodeStr = convertCountryCode(countryCodes);
         if (!countryCodeStr.isEmpty()) {
             andCountryCodeStr = "AND country_code in (" + countryCodeStr + ")";
-            whereCountryCodeStr = "WHERE country_code in (" + countryCodeStr + ")";
         }
 
         log.info("start importing documents from nominatim (" + (countryCodeStr.isEmpty() ? "global" : countryCodeStr) + ")");
 
-        final BlockingQueue<PhotonDoc> documents = new LinkedBlockingDeque<>(20);
-        Thread importThread = new Thread(new ImportThread(documents));
-        importThread.start();
-        final AtomicLong counter = new AtomicLong();
-        template.query("SELECT " + selectColsPlaceX +
-                " FROM placex " +
-                " WHERE linked_place_id IS NULL AND centroid IS NOT NULL " + andCountryCodeStr +
-                " ORDER BY geometry_sector; ", new RowCallbackHandler() {
-            @Override
-            public void processRow(ResultSet rs) throws SQLException {
-                // turns a placex row into a photon document that gathers all de-normalised information
-
-                NominatimResult docs = placeRowMapper.mapRow(rs, 0);
+        final List<JdbcTemplate> templates = getTemplates();
+        loadCountryNames();
 
-                if (!docs.isUsefulForIndex()) return; // do not import document
+        AddressGraph addressGraph = null;
+        List<AddressBatchResolver> resolvers = new ArrayList<>(templates.size());
+        if (useAddressGraph) {
+            addressGraph = AddressGraph.load(template, andCountryCodeStr, addressSource);
+            resolvers.add(new AddressBatchResolver(addressGraph));
+        } else {
+            resolvers.add(addressResolver);
+            for (JdbcTemplate replicaTemplate : replicaTemplates) {
+                resolvers.add(new AddressBatchResolver(new DatabaseAddressSource(replicaTemplate)));
+            }
+        }
 
-                // finalize document by taking into account the higher level placex rows assigned to this row
-                completePlace(docs.getBaseDoc());
+        Cache<Long, AddressHierarchy> addressCache = null;
+        if (addressCacheSize > 0) {
+            addressCache = CacheBuilder.newBuilder()
+                    .maximumSize(addressCacheSize)
+                    .concurrencyLevel(completionThreads)
+                    .recordStats()
+                    .build();
+        }
 
-                for (PhotonDoc doc : docs.getDocsWithHousenumber()) {
-                    while (true) {
-                        try {
-                            documents.put(doc);
-                        } catch (InterruptedException e) {
-                            log.warn("Thread interrupted while placing document in queue.");
-                            continue;
-                        }
-                        break;
-                    }
-                    if (counter.incrementAndGet() % progressInterval == 0) {
-                        final double documentsPerSecond = 1000d * counter.longValue() / (System.currentTimeMillis() - startMillis);
-                        log.info(String.format("imported %s documents [%.1f/second]", MessageFormat.format("{0}", counter.longValue()), documentsPerSecond));
-                    }
+        ImportCheckpoint checkpoint = null;
+        long resumedDocuments = 0;
+        List<ScanPartition> partitions;
+        if (checkpointFile != null && resume) {
+            checkpoint = loadCheckpoint(countryCodeStr);
+            resumedDocuments = checkpoint.getDocumentCount();
+            partitions = new ArrayList<>();
+            for (ScanPartition partition : checkpoint.getPartitions()) {
+                if (!checkpoint.isCompleted(partition) && (partition.getTable() == ScanPartition.Table.PLACEX || importProfile.includesInterpolations())) {
+                    partitions.add(partition);
                 }
             }
-        });
+            log.info(String.format("resuming import, %d of %d partitions with %d documents were already imported",
+                    checkpoint.getCompletedCount(), checkpoint.getPartitions().size(), checkpoint.getDocumentCount()));
+        } else {
+            int partitionCount = scanThreads == 1 ? 1 : 8 * scanThreads;
+            if (checkpointFile != null) {
+                partitionCount = Math.max(partitionCount, CHECKPOINT_PARTITIONS);
+            }
+            partitions = new ArrayList<>();
+            partitions.addAll(computePartitions(ScanPartition.Table.PLACEX, andCountryCodeStr, partitionCount));
+            if (importProfile.includesInterpolations()) {
+                partitions.addAll(computePartitions(ScanPartition.Table.OSMLINE, andCountryCodeStr, partitionCount));
+            } else {
+                log.info("the import profile leaves out interpolated house numbers");
+            }
+            if (checkpointFile != null) {
+                checkpoint = ImportCheckpoint.create(checkpointFile, checkpointIndex, countryCodeStr, partitions);
+            }
+        }
 
-        template.query("SELECT place_id, osm_id, parent_place_id, startnumber, endnumber, interpolationtype, postcode, country_code, linegeo " +
-                " FROM location_property_osmline " +
-                whereCountryCodeStr +
-                " ORDER BY geometry_sector; ", new RowCallbackHandler() {
-            @Override
-            public void processRow(ResultSet rs) throws SQLException {
-                NominatimResult docs = osmlineRowMapper.mapRow(rs, 0);
+        final PartitionTracker tracker = new PartitionTracker();
+        final BlockingQueue<Batch<NominatimResult>> results = new LinkedBlockingDeque<>(2 * completionThreads);
+        final BlockingQueue<Batch<NominatimResult>> completed = new LinkedBlockingDeque<>(2 * expandThreads);
+        final BlockingQueue<Batch<PhotonDoc>> documents = new LinkedBlockingDeque<>(2 * serializeThreads);
+
+        final ImportStage scanStage = new ImportStage("scan", "rows", scanThreads, null);
+        final ImportStage completeStage = new ImportStage("complete", "places", completionThreads, results);
+        final ImportStage expandStage = new ImportStage("expand", "documents", expandThreads, completed);
+        final ImportStage serializeStage = new ImportStage("serialize", "documents", serializeThreads, documents);
+        final ImportProgress progress = new ImportProgress(addressCache, Arrays.asList(scanStage, completeStage, expandStage, serializeStage), importer,
+                estimateRows(countryCodeStr, checkpoint, partitions));
+        final CheckpointWriter checkpointWriter = new CheckpointWriter(tracker, checkpoint);
+
+        final PipelineFailure failure = new PipelineFailure();
+        final StageEnd<Batch<NominatimResult>> scanEnd = new StageEnd<>(scanThreads, results, FINAL_BATCH, completionThreads);
+        final StageEnd<Batch<NominatimResult>> completionEnd = new StageEnd<>(completionThreads, completed, FINAL_BATCH, expandThreads);
+        final StageEnd<Batch<PhotonDoc>> expandEnd = new StageEnd<>(expandThreads, documents, FINAL_DOCUMENTS, serializeThreads);
+        final StageEnd<Batch<PhotonDoc>> serializeEnd = new StageEnd<>(serializeThreads, null, null, 0);
+
+        log.info(String.format("import pipeline: %d scan, %d completion, %d expand and %d serialize thread(s)",
+                scanThreads, completionThreads, expandThreads, serializeThreads));
+
+        List<Thread> serializeWorkers = new ArrayList<>(serializeThreads);
+        for (int i = 0; i < serializeThreads; i++) {
+            Thread worker = new Thread(new SerializeWorker(serializeStage, documents, checkpointWriter, progress, serializeEnd, failure), "serialize-worker-" + i);
+            worker.start();
+            serializeWorkers.add(worker);
+        }
 
-                if (!docs.isUsefulForIndex()) return; // do not import document
+        List<Thread> expandWorkers = new ArrayList<>(expandThreads);
+        for (int i = 0; i < expandThreads; i++) {
+            Thread worker = new Thread(new ExpandWorker(expandStage, completed, documents, expandEnd, failure), "expand-worker-" + i);
+            worker.start();
+            expandWorkers.add(worker);
+        }
 
-                // finalize document by taking into account the higher level placex rows assigned to this row
-                completePlace(docs.getBaseDoc());
+        List<Thread> completionWorkers = new ArrayList<>(completionThreads);
+        for (int i = 0; i < completionThreads; i++) {
+            Thread worker = new Thread(new CompletionWorker(completeStage, results, completed, resolvers.get(i % resolvers.size()), addressCache,
+                    completionEnd, failure), "completion-worker-" + i);
+            worker.start();
+            completionWorkers.add(worker);
+        }
 
-                for (PhotonDoc doc : docs.getDocsWithHousenumber()) {
-                    while (true) {
-                        try {
-                            documents.put(doc);
-                        } catch (InterruptedException e) {
-                            log.warn("Thread interrupted while placing document in queue.");
-                            continue;
-                        }
-                        break;
-                    }
-                    if (counter.incrementAndGet() % progressInterval == 0) {
-                        final double documentsPerSecond = 1000d * counter.longValue() / (System.currentTimeMillis() - startMillis);
-                        log.info(String.format("imported %s documents [%.1f/second]", MessageFormat.format("{0}", counter.longValue()), documentsPerSecond));
+        log.info("reading " + partitions.size() + " partition(s) of the place tables with " + scanThreads + " thread(s) from "
+                + templates.size() + " database(s)");
+
+        final BlockingQueue<ScanPartition> pendingPartitions = new LinkedBlockingQueue<>(partitions);
+        List<Thread> scanWorkers = new ArrayList<>(scanThreads);
+        for (int i = 0; i < scanThreads; i++) {
+            Thread worker = new Thread(new ScanWorker(scanStage, templates.get(i % templates.size()), pendingPartitions, results, tracker,
+                    andCountryCodeStr, scanEnd, failure), "scan-worker-" + i);
+            worker.start();
+            scanWorkers.add(worker);
+        }
+
+        // every stage ends the input of the next one when its last worker is done
+        for (Thread worker : scanWorkers) {
+            joinThread(worker);
+        }
+        for (Thread worker : completionWorkers) {
+            joinThread(worker);
+        }
+        for (Thread worker : expandWorkers) {
+            joinThread(worker);
+        }
+        for (Thread worker : serializeWorkers) {
+            joinThread(worker);
+        }
+
+        checkpointWriter.finish();
+        importer.finish();
+
+        if (failure.hasFailed()) {
+            log.error("import failed, " + progress.getCount() + " documents were imported before");
+            failure.rethrow();
+        }
+
+        log.info(String.format("finished import of %s photon documents%s.", MessageFormat.format("{0}", progress.getCount()), progress.cacheStatistics()));
+        if (progress.getDropped() > 0) {
+            log.warn(String.format("%d documents could not be serialized and were left out.", progress.getDropped()));
+        }
+        if (addressGraph != null) {
+            log.info(String.format("%d address lookups were not covered by the address graph.", addressGraph.getFallbackLookups()));
+        }
+        return resumedDocuments + progress.getCount();
+    }
+
+    /**
+     * Estimate the number of rows the import is going to read from the statistics of postgres.
+     * Only possible for a global import, the statistics know nothing about countries.
+     */
+    private long estimateRows(String countryCodeStr, ImportCheckpoint checkpoint, List<ScanPartition> partitions) {
+        if (!countryCodeStr.isEmpty()) {
+            return 0;
+        }
+
+        Long rows = template.queryForObject("SELECT sum(greatest(reltuples, 0))::bigint FROM pg_class WHERE relname IN ('placex', 'location_property_osmline')", Long.class);
+        if (rows == null) {
+            return 0;
+        }
+        if (checkpoint != null && !checkpoint.getPartitions().isEmpty()) {
+            // partitions already imported are skipped
+            rows = rows * partitions.size() / checkpoint.getPartitions().size();
+        }
+        return rows;
+    }
+
+    /**
+     * Split a place table into partitions of geometry sectors for reading. There should be enough of them
+     * to keep all scan threads busy even when the places are unevenly distributed over the sectors.
+     */
+    private List<ScanPartition> computePartitions(ScanPartition.Table table, String andCountryCodeStr, int count) {
+        if (count == 1) {
+            return ScanPartition.split(table, 0, 0, 1);
+        }
+
+        Map<String, Object> range = template.queryForMap("SELECT min(geometry_sector) AS min_sector, max(geometry_sector) AS max_sector"
+                + " FROM " + table.getTableName() + " WHERE true " + andCountryCodeStr);
+        if (range.get("min_sector") == null) {
+            return ScanPartition.split(table, 0, 0, 1);
+        }
+
+        return ScanPartition.split(table, ((Number) range.get("min_sector")).intValue(), ((Number) range.get("max_sector")).intValue(), count);
+    }
+
+    private ImportCheckpoint loadCheckpoint(String countryCodeStr) {
+        ImportCheckpoint checkpoint;
+        try {
+            checkpoint = ImportCheckpoint.load(checkpointFile);
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException("cannot read import checkpoint " + checkpointFile, e);
+        }
+
+        if (!Objects.equals(checkpoint.getIndexName(), checkpointIndex)) {
+            throw new IllegalArgumentException("import checkpoint was written for index " + checkpoint.getIndexName()
+                    + ", cannot resume with " + checkpointIndex);
+        }
+        if (!checkpoint.getCountryCodes().equals(countryCodeStr)) {
+            throw new IllegalArgumentException("import checkpoint was written for country codes (" + checkpoint.getCountryCodes()
+                    + "), cannot resume with (" + countryCodeStr + ")");
+        }
+
+        return checkpoint;
+    }
+
+    private String getPartitionQuery(ScanPartition partition, String andCountryCodeStr) {
+        if (partition.getTable() == ScanPartition.Table.PLACEX) {
+            return "SELECT " + selectColsPlaceXLean(importProfile.getNameColumn()) +
+                    " FROM placex " +
+                    " WHERE linked_place_id IS NULL AND centroid IS NOT NULL " + andCountryCodeStr + importProfile.getPlacexCondition() + partition.getSectorCondition() +
+                    " ORDER BY geometry_sector";
+        }
+
+        return "SELECT " + selectColsOsmline +
+                " FROM location_property_osmline " +
+                " WHERE true " + andCountryCodeStr + partition.getSectorCondition() +
+                " ORDER BY geometry_sector";
+    }
+
+    /**
+     * Stream the result of a placex query in the binary copy format. This skips the
+     * result set and the conversion of every column to a JDBC object.
+     *
+     * @param query select with the columns of {@link #selectColsPlaceXLean(String)}
+     */
+    private void copyPlaces(JdbcTemplate template, final String query, final BatchingRowHandler handler) {
+        template.execute(new ConnectionCallback<Void>() {
+            @Override
+            public Void doInConnection(Connection con) throws SQLException, DataAccessException {
+                try (InputStream copy = new PGCopyInputStream(con.unwrap(PGConnection.class), "COPY (" + query + ") TO STDOUT (FORMAT binary)")) {
+                    BinaryCopyReader reader = new BinaryCopyReader(copy);
+                    while (reader.nextRow()) {
+                        handler.add(readPlace(reader));
                     }
+                } catch (IOException e) {
+                    throw new DataAccessResourceFailureException("could not read copy data", e);
                 }
+                return null;
             }
         });
+    }
 
-        while (true) {
-            try {
-                documents.put(FINAL_DOCUMENT);
-                importThread.join();
-            } catch (InterruptedException e) {
-                log.warn("Thread interrupted while placing document in queue.");
-                continue;
-            }
-            break;
+    /**
+     * Same as {@link #leanPlaceRowMapper} for a row of binary copy data.
+     */
+    private NominatimResult readPlace(BinaryCopyReader row) throws IOException {
+        final long placeId = row.readLong(0);
+        final String osmType = CompactMap.intern(row.readString());
+        final long osmId = row.readLong(0);
+        final String osmKey = CompactMap.intern(row.readString());
+        final String osmValue = CompactMap.intern(row.readString());
+        final Map<String, String> name = row.readHstore();
+        final String housenumber = row.readString();
+        final String postcode = CompactMap.intern(row.readString());
+        final Map<String, String> address = row.readHstore();
+        final Map<String, String> extratags = getPlaceExtratags(row.readString(), row.readString());
+        final Envelope bbox = getEnvelope(row.readDouble(), row.readDouble(), row.readDouble(), row.readDouble());
+        final long parentPlaceId = row.readLong(0);
+        final long linkedPlaceId = row.readLong(0);
+        final int rankAddress = row.readInt(0);
+        final int rankSearch = row.readInt(0);
+        Double importance = row.readDouble();
+        final String countryCode = row.readString();
+        final Point centroid = getPoint(row.readDouble(), row.readDouble());
+
+        if (importance == null) {
+            // https://github.com/komoot/photon/issues/12
+            importance = 0.75 - rankSearch / 40d;
         }
-        log.info(String.format("finished import of %s photon documents.", MessageFormat.format("{0}", counter.longValue())));
+
+        PhotonDoc doc = new PhotonDoc(placeId, osmType, osmId, osmKey, osmValue, name, (String) null, address, extratags,
+                bbox, parentPlaceId, importance, countryCode, centroid,
+                linkedPlaceId, rankAddress);
+
+        doc.setPostcode(postcode);
+        doc.setCountry(getCountryNames(countryCode));
+
+        NominatimResult result = new NominatimResult(doc);
+        result.addHousenumbersFromString(housenumber);
+
+        return result;
     }
 
     /**
@@ -443,7 +1627,7 @@ public class NominatimConnector {
      * @return
      */
     public List<PhotonDoc> readDocument(long osmId, char osmType) {
-        return template.query("SELECT " + selectColsPlaceX + " FROM placex WHERE osm_id = ? AND osm_type = ?; ", new Object[]{osmId, osmType}, new RowMapper<PhotonDoc>() {
+        return template.query("SELECT " + selectColsPlaceX(importProfile.getNameColumn()) + " FROM placex WHERE osm_id = ? AND osm_type = ?; ", new Object[]{osmId, osmType}, new RowMapper<PhotonDoc>() {
             @Override
             public PhotonDoc mapRow(ResultSet resultSet, int i) throws SQLException {
                 PhotonDoc doc = placeRowMapper.mapRow(resultSet, 0).getBaseDoc();
@@ -459,55 +1643,68 @@ public class NominatimConnector {
      * @param doc
      */
     private void completePlace(PhotonDoc doc) {
-        final List<AddressRow> addresses = getAddresses(doc);
-        int cityNameAddressRank = -1;
-        for (AddressRow address : addresses) {
-            if (address.isCity()) {
-                // if we have village like Białoboki we have to take address name with biggest rank
-                // example of village - https://nominatim.openstreetmap.org/ui/details.html?osmtype=R&osmid=6778130&class=boundary - before this change we got "gmina Gać" as a result
-                if (address.getRankAddress() > cityNameAddressRank) {
-                    cityNameAddressRank = address.getRankAddress();
-                    if (doc.getCity() == null) {
-                        doc.setCity(address.getName());
-                    } else {
-                        doc.getContext().add(address.getName());
-                    }
-                } else {
-                    log.debug("City name, used " + doc.getCity() + " instead of " + address.getName());
+        completePlace(doc, getAddresses(doc));
+    }
+
+    /**
+     * querying nominatim's address hierarchy for many documents at once, see {@link #completePlace(PhotonDoc)}
+     *
+     * @param results
+     * @param resolver     resolver to look up address rows with
+     * @param addressCache cache for the address hierarchies of POIs by their parent place, may be null
+     */
+    private void completePlaces(List<NominatimResult> results, AddressBatchResolver resolver, Cache<Long, AddressHierarchy> addressCache) {
+        List<PhotonDoc> missing = new ArrayList<>(results.size());
+        for (NominatimResult result : results) {
+            PhotonDoc doc = result.getBaseDoc();
+            if (addressCache != null && AddressBatchResolver.isPoi(doc)) {
+                AddressHierarchy hierarchy = addressCache.getIfPresent(doc.getParentPlaceId());
+                if (hierarchy != null) {
+                    completePlace(doc, hierarchy);
+                    continue;
                 }
-                continue;
             }
+            missing.add(doc);
+        }
 
-            if (address.isStreet() && doc.getStreet() == null) {
-                doc.setStreet(address.getName());
-                continue;
-            }
+        if (missing.isEmpty()) {
+            return;
+        }
 
-            if (address.isLocality() && doc.getLocality() == null) {
-                doc.setLocality(address.getName());
-                continue;
+        List<List<AddressRow>> addresses = resolver.getAddresses(missing);
+        for (int i = 0; i < missing.size(); i++) {
+            PhotonDoc doc = missing.get(i);
+            AddressHierarchy hierarchy = AddressHierarchy.fromAddressRows(addresses.get(i));
+            if (addressCache != null && AddressBatchResolver.isPoi(doc)) {
+                // the address of a POI only depends on its parent
+                addressCache.put(doc.getParentPlaceId(), hierarchy);
             }
+            completePlace(doc, hierarchy);
+        }
+    }
 
-            if (address.isDistrict() && doc.getDistrict() == null) {
-                doc.setDistrict(address.getName());
-                continue;
-            }
+    /**
+     * querying nominatim's address hierarchy for many documents at once, see {@link #completePlace(PhotonDoc)}
+     *
+     * @param docs         documents to complete
+     * @param resolver     resolver to look up address rows with
+     * @param addressCache cache for the address hierarchies of POIs by their parent place, may be null
+     */
+    private void completeDocs(List<PhotonDoc> docs, AddressBatchResolver resolver, Cache<Long, AddressHierarchy> addressCache) {
+        List<NominatimResult> results = new ArrayList<>(docs.size());
+        for (PhotonDoc doc : docs) {
+            results.add(new NominatimResult(doc));
+        }
+        completePlaces(results, resolver, addressCache);
+    }
 
-            if (address.isCounty() && doc.getCounty() == null) {
-                doc.setCounty(address.getName());
-                continue;
-            }
+    private void completePlace(PhotonDoc doc, List<AddressRow> addresses) {
+        completePlace(doc, AddressHierarchy.fromAddressRows(addresses));
+    }
 
-            if (address.isState() && doc.getState() == null) {
-                doc.setState(address.getName());
-                continue;
-            }
+    private void completePlace(PhotonDoc doc, AddressHierarchy hierarchy) {
+        hierarchy.applyTo(doc);
 
-            // no specifically handled item, check if useful for context
-            if (address.isUsefulForContext()) {
-                doc.getContext().add(address.getName());
-            }
-        }
         // finally, overwrite gathered information with higher prio
         // address info from nominatim which should have precedence
         doc.completeFromAddress();
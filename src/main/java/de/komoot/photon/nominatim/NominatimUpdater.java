@@ -4,14 +4,14 @@ import de.komoot.photon.PhotonDoc;
 import de.komoot.photon.Updater;
 import de.komoot.photon.nominatim.model.UpdateRow;
 import org.apache.commons.dbcp2.BasicDataSource;
+import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
 import org.postgis.jts.JtsWrapper;
 import org.springframework.jdbc.core.JdbcTemplate;
-import org.springframework.jdbc.core.RowMapper;
 
-import java.sql.ResultSet;
-import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
@@ -25,7 +25,7 @@ public class NominatimUpdater {
 
     private static final int CREATE = 1;
     private static final int UPDATE = 2;
-    private static final int DELETE = 100;
+    static final int DELETE = 100;
 
     private static final int MIN_RANK = 1;
     private static final int MAX_RANK = 30;
@@ -33,105 +33,90 @@ public class NominatimUpdater {
     private final JdbcTemplate       template;
     private final NominatimConnector exporter;
 
-    private Updater updater;
+    private final BasicDataSource dataSource;
+
+    /** one updater per update worker */
+    private List<Updater> updaters;
 
     /**
      * when updating lockout other threads
      */
     private ReentrantLock updateLock = new ReentrantLock();
 
+    /** statistics of the running update */
+    private final AtomicInteger updatedPlaces = new AtomicInteger();
+    private final AtomicInteger deletedPlaces = new AtomicInteger();
+    private final AtomicInteger updatedInterpolations = new AtomicInteger();
+    private final AtomicInteger deletedInterpolations = new AtomicInteger();
+    private final AtomicInteger interpolationDocuments = new AtomicInteger();
+    private int currentRank;
+
     public void setUpdater(Updater updater) {
-        this.updater = updater;
+        setUpdaters(Collections.singletonList(updater));
+    }
+
+    /**
+     * Update the sectors of a rank in parallel, one worker per updater. The ranks are still updated one after
+     * the other. Every worker uses its own database connections and should have its own bulk sender.
+     *
+     * @param updaters one updater per worker
+     */
+    public void setUpdaters(List<Updater> updaters) {
+        if (updaters.isEmpty())
+            throw new IllegalArgumentException("at least one updater is needed");
+
+        this.updaters = updaters;
+        exporter.setCompletionThreads(updaters.size());
+        dataSource.setMaxTotal(Math.max(GenericObjectPoolConfig.DEFAULT_MAX_TOTAL, updaters.size() + 1));
+    }
+
+    /**
+     * Apply the import profile of the index to the changes, see {@link ImportProfile}.
+     *
+     * @param importProfile
+     */
+    public void setImportProfile(ImportProfile importProfile) {
+        exporter.setImportProfile(importProfile);
     }
 
     public void update() {
         if (updateLock.tryLock()) {
             try {
-                int updatedPlaces = 0;
-                int deletedPlaces = 0;
-                for (int rank = MIN_RANK; rank <= MAX_RANK; rank++) {
-                    LOGGER.info(String.format("Starting rank %d", rank));
-                    for (Map<String, Object> sector : getIndexSectors(rank)) {
-                        for (UpdateRow place : getIndexSectorPlaces(rank, (Integer) sector.get("geometry_sector"))) {
-                            long placeId = place.getPlaceId();
-                            template.update("update placex set indexed_status = 0 where place_id = ?;", placeId);
-
-                            Integer indexedStatus = place.getIndexdStatus();
-                            if (indexedStatus == DELETE || (indexedStatus == UPDATE && rank == MAX_RANK)) {
-                                updater.delete(placeId);
-                                if (indexedStatus == DELETE) {
-                                    deletedPlaces++;
-                                    continue;
-                                }
-                                indexedStatus = CREATE; // always create
-                            }
-                            updatedPlaces++;
-
-                            final List<PhotonDoc> updatedDocs = exporter.getByPlaceId(place.getPlaceId());
-                            boolean wasUseful = false;
-                            for (PhotonDoc updatedDoc : updatedDocs) {
-                                switch (indexedStatus) {
-                                case CREATE:
-                                    if (updatedDoc.isUsefulForIndex()) {
-                                        updater.create(updatedDoc);
-                                    }
-                                    break;
-                                case UPDATE:
-                                    if (updatedDoc.isUsefulForIndex()) {
-                                        updater.updateOrCreate(updatedDoc);
-                                        wasUseful = true;
-                                    }
-                                    break;
-                                default:
-                                    LOGGER.error(String.format("Unknown index status %d", indexedStatus));
-                                    break;
-                                }
-                            }
-                            if (indexedStatus == UPDATE && !wasUseful) {
-                                // only true when rank != 30
-                                // if no documents for the place id exist this will likely cause moaning
-                                updater.delete(placeId);
-                                updatedPlaces--;
-                            }
+                updatedPlaces.set(0);
+                deletedPlaces.set(0);
+                currentRank = -1;
+                final SectorWorkerPool workers = new SectorWorkerPool(updaters);
+                try {
+                    exporter.readChangedPlaces(MIN_RANK, MAX_RANK, places -> {
+                        int rank = places.get(0).getRankSearch();
+                        if (rank != currentRank) {
+                            // the places of a rank depend on the ones of lower ranks
+                            workers.await();
+                            LOGGER.info(String.format("Starting rank %d", rank));
+                            currentRank = rank;
                         }
-                    }
-                }
+                        workers.submit(updater -> updatePlaces(places, updater));
+                    });
+                    workers.await();
+                    LOGGER.info(String.format("%d places created or updated, %d deleted", updatedPlaces.get(), deletedPlaces.get()));
 
-                LOGGER.info(String.format("%d places created or updated, %d deleted", updatedPlaces, deletedPlaces));
-
-                // update documents generated from address interpolations
-                // .isUsefulForIndex() should always return true for documents
-                // created from interpolations so no need to check them
-                LOGGER.info("Starting interpolations");
-                int updatedInterpolations = 0;
-                int deletedInterpolations = 0;
-                int interpolationDocuments = 0;
-                for (Map<String, Object> sector : template.queryForList(
-                        "select geometry_sector,count(*) from location_property_osmline where indexed_status > 0 group by geometry_sector order by geometry_sector;")) {
-                    for (UpdateRow place : getIndexSectorInterpolations((Integer) sector.get("geometry_sector"))) {
-                        long placeId = place.getPlaceId();
-                        template.update("update location_property_osmline set indexed_status = 0 where place_id = ?;", placeId);
-
-                        Integer indexedStatus = place.getIndexdStatus();
-                        if (indexedStatus != CREATE) {
-                            updater.delete(placeId);
-                            if (indexedStatus == DELETE) {
-                                deletedInterpolations++;
-                                continue;
-                            }
-                        }
-                        updatedInterpolations++;
-
-                        final List<PhotonDoc> updatedDocs = exporter.getInterpolationsByPlaceId(place.getPlaceId());
-                        for (PhotonDoc updatedDoc : updatedDocs) {
-                            updater.create(updatedDoc);
-                            interpolationDocuments++;
-                        }
-                    }
+                    // update documents generated from address interpolations
+                    // .isUsefulForIndex() should always return true for documents
+                    // created from interpolations so no need to check them
+                    LOGGER.info("Starting interpolations");
+                    updatedInterpolations.set(0);
+                    deletedInterpolations.set(0);
+                    interpolationDocuments.set(0);
+                    exporter.readChangedInterpolations(places -> workers.submit(updater -> updateInterpolations(places, updater)));
+                    workers.await();
+                    LOGGER.info(String.format("%d interpolations created or updated, %d deleted, %d documents added or updated", updatedInterpolations.get(),
+                            deletedInterpolations.get(), interpolationDocuments.get()));
+                } finally {
+                    workers.close();
+                }
+                for (Updater updater : updaters) {
+                    updater.finish();
                 }
-                LOGGER.info(String.format("%d interpolations created or updated, %d deleted, %d documents added or updated", updatedInterpolations,
-                        deletedInterpolations, interpolationDocuments));
-                updater.finish();
                 template.update("update import_status set indexed=true;"); // indicate that we are finished
 
                 LOGGER.info("Finished updating");
@@ -143,35 +128,127 @@ public class NominatimUpdater {
         }
     }
 
-    private List<Map<String, Object>> getIndexSectors(Integer rank) {
-        return template.queryForList("select geometry_sector,count(*) from placex where rank_search = ? "
-                + "and indexed_status > 0 group by geometry_sector order by geometry_sector;", rank);
-    }
+    /**
+     * @param places changed places of placex of one sector
+     */
+    private void updatePlaces(List<UpdateRow> places, Updater updater) {
+        int rank = places.get(0).getRankSearch();
+        exporter.completeChangedPlaces(places);
+        updater.prefetch(getReplacedPlaceIds(places));
+        for (UpdateRow place : places) {
+            long placeId = place.getPlaceId();
 
-    private List<UpdateRow> getIndexSectorPlaces(Integer rank, Integer geometrySector) {
-        return template.query("select place_id, indexed_status from placex where rank_search = ?" + " and geometry_sector = ? and indexed_status > 0;",
-                new Object[] { rank, geometrySector }, new RowMapper<UpdateRow>() {
-                    @Override
-                    public UpdateRow mapRow(ResultSet rs, int rowNum) throws SQLException {
-                        UpdateRow updateRow = new UpdateRow();
-                        updateRow.setPlaceId(rs.getLong("place_id"));
-                        updateRow.setIndexdStatus(rs.getInt("indexed_status"));
-                        return updateRow;
+            if (place.getBaseDoc() == null) {
+                // deleted or no longer part of the import profile
+                updater.delete(placeId);
+                deletedPlaces.incrementAndGet();
+                continue;
+            }
+
+            Integer indexedStatus = place.getIndexdStatus();
+            if (indexedStatus == UPDATE && rank == MAX_RANK) {
+                updater.delete(placeId);
+                indexedStatus = CREATE; // always create
+            }
+            updatedPlaces.incrementAndGet();
+
+            boolean wasUseful = false;
+            for (PhotonDoc updatedDoc : place.getDocs()) {
+                switch (indexedStatus) {
+                case CREATE:
+                    if (updatedDoc.isUsefulForIndex()) {
+                        updater.create(updatedDoc);
+                    }
+                    break;
+                case UPDATE:
+                    if (updatedDoc.isUsefulForIndex()) {
+                        updater.updateOrCreate(updatedDoc);
+                        wasUseful = true;
                     }
-                });
+                    break;
+                default:
+                    LOGGER.error(String.format("Unknown index status %d", indexedStatus));
+                    break;
+                }
+            }
+            if (indexedStatus == UPDATE && !wasUseful) {
+                // only true when rank != 30
+                // if no documents for the place id exist this will likely cause moaning
+                updater.delete(placeId);
+                updatedPlaces.decrementAndGet();
+            }
+        }
+        resetIndexedStatus("placex", places, updater);
     }
 
-    private List<UpdateRow> getIndexSectorInterpolations(Integer geometrySector) {
-        return template.query("select place_id, indexed_status from location_property_osmline where geometry_sector = ? and indexed_status > 0;",
-                new Object[] { geometrySector }, new RowMapper<UpdateRow>() {
-                    @Override
-                    public UpdateRow mapRow(ResultSet rs, int rowNum) throws SQLException {
-                        UpdateRow updateRow = new UpdateRow();
-                        updateRow.setPlaceId(rs.getLong("place_id"));
-                        updateRow.setIndexdStatus(rs.getInt("indexed_status"));
-                        return updateRow;
-                    }
-                });
+    /**
+     * @param places changed interpolation lines of one sector
+     */
+    private void updateInterpolations(List<UpdateRow> places, Updater updater) {
+        exporter.completeChangedPlaces(places);
+        updater.prefetch(getReplacedPlaceIds(places));
+        for (UpdateRow place : places) {
+            long placeId = place.getPlaceId();
+
+            if (place.getBaseDoc() == null) {
+                // deleted or excluded by the import profile
+                updater.delete(placeId);
+                deletedInterpolations.incrementAndGet();
+                continue;
+            }
+            if (place.getIndexdStatus() != CREATE) {
+                updater.delete(placeId);
+            }
+            updatedInterpolations.incrementAndGet();
+
+            for (PhotonDoc updatedDoc : place.getDocs()) {
+                updater.create(updatedDoc);
+                interpolationDocuments.incrementAndGet();
+            }
+        }
+        resetIndexedStatus("location_property_osmline", places, updater);
+    }
+
+    /**
+     * @return the places that may be deleted or replaced, only new places are written without looking at the index
+     */
+    private static List<Long> getReplacedPlaceIds(List<UpdateRow> places) {
+        List<Long> placeIds = new ArrayList<>();
+        for (UpdateRow place : places) {
+            if (place.getBaseDoc() == null || place.getIndexdStatus() != CREATE) {
+                placeIds.add(place.getPlaceId());
+            }
+        }
+        return placeIds;
+    }
+
+    /**
+     * Mark the places of a sector as indexed once their changes are stored in elasticsearch. If they are not, the
+     * places stay marked and are picked up again by the next update. Places that were marked again since they were
+     * read keep their mark as well, their new change is not in the index yet.
+     *
+     * @param table placex or location_property_osmline
+     */
+    private void resetIndexedStatus(String table, List<UpdateRow> places, Updater updater) {
+        if (places.isEmpty()) {
+            return;
+        }
+        if (!updater.flush()) {
+            LOGGER.error(String.format("changes of %d places of %s were not stored, they are updated again next time", places.size(), table));
+            return;
+        }
+
+        final Long[] placeIds = new Long[places.size()];
+        final Integer[] statuses = new Integer[places.size()];
+        for (int i = 0; i < places.size(); i++) {
+            placeIds[i] = places.get(i).getPlaceId();
+            statuses[i] = places.get(i).getIndexdStatus();
+        }
+        template.update("update " + table + " t set indexed_status = 0 from unnest(?::bigint[], ?::int[]) AS changed(place_id, indexed_status)"
+                + " where t.place_id = changed.place_id and t.indexed_status = changed.indexed_status;", ps -> {
+            ps.setArray(1, ps.getConnection().createArrayOf("bigint", placeIds));
+            ps.setArray(2, ps.getConnection().createArrayOf("int", statuses));
+        });
     }
 
     /**
@@ -183,7 +260,7 @@ public class NominatimUpdater {
      * @param password Nominatim database password
      */
     public NominatimUpdater(String host, int port, String database, String username, String password) {
-        BasicDataSource dataSource = NominatimConnector.buildDataSource(host, port, database, username, password, true);
+        dataSource = NominatimConnector.buildDataSource(host, port, database, username, password, true);
 
         exporter = new NominatimConnector(host, port, database, username, password);
         template = new JdbcTemplate(dataSource);
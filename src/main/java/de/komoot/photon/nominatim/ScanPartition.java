@@ -0,0 +1,114 @@
+package de.komoot.photon.nominatim;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A range of geometry sectors of one of the place tables that is read in a single query during import.
+ * <p>
+ * Partitions are half-open intervals [fromSector, toSector). A partition without bounds covers the whole table.
+ * The partition without lower bound also takes the rows without a geometry sector.
+ */
+class ScanPartition {
+    enum Table {
+        PLACEX("placex"),
+        OSMLINE("location_property_osmline");
+
+        private final String tableName;
+
+        Table(String tableName) {
+            this.tableName = tableName;
+        }
+
+        String getTableName() {
+            return tableName;
+        }
+    }
+
+    private final Table table;
+    private final Integer fromSector;
+    private final Integer toSector;
+
+    ScanPartition(Table table, Integer fromSector, Integer toSector) {
+        this.table = table;
+        this.fromSector = fromSector;
+        this.toSector = toSector;
+    }
+
+    /**
+     * Split the sector range [minSector, maxSector] of a table evenly into the given number of partitions.
+     *
+     * @return the partitions in sector order, a single partition for the whole table when count is 1
+     */
+    static List<ScanPartition> split(Table table, int minSector, int maxSector, int count) {
+        if (count <= 1) {
+            return Collections.singletonList(new ScanPartition(table, null, null));
+        }
+
+        long range = (long) maxSector - minSector + 1;
+        int partitions = (int) Math.min(count, range);
+        List<ScanPartition> result = new ArrayList<>(partitions);
+        Integer from = null;
+        for (int i = 1; i < partitions; i++) {
+            int to = (int) (minSector + range * i / partitions);
+            result.add(new ScanPartition(table, from, to));
+            from = to;
+        }
+        result.add(new ScanPartition(table, from, null));
+
+        return result;
+    }
+
+    /**
+     * Parse the string representation of a partition, the inverse of {@link #toString()}.
+     */
+    static ScanPartition fromString(String partition) {
+        int open = partition.indexOf('[');
+        int comma = partition.indexOf(',', open);
+        if (open < 0 || comma < 0 || !partition.endsWith(")")) {
+            throw new IllegalArgumentException("invalid partition " + partition);
+        }
+
+        Table table = null;
+        for (Table candidate : Table.values()) {
+            if (candidate.getTableName().equals(partition.substring(0, open))) {
+                table = candidate;
+            }
+        }
+        if (table == null) {
+            throw new IllegalArgumentException("unknown table in partition " + partition);
+        }
+
+        String from = partition.substring(open + 1, comma);
+        String to = partition.substring(comma + 1, partition.length() - 1);
+        return new ScanPartition(table, from.isEmpty() ? null : Integer.valueOf(from), to.isEmpty() ? null : Integer.valueOf(to));
+    }
+
+    Table getTable() {
+        return table;
+    }
+
+    /**
+     * @return SQL condition restricting rows to this partition, starting with 'AND', or an empty string
+     */
+    String getSectorCondition() {
+        StringBuilder condition = new StringBuilder();
+        if (fromSector != null) {
+            condition.append(" AND geometry_sector >= ").append(fromSector);
+        }
+        if (toSector != null) {
+            if (fromSector == null) {
+                condition.append(" AND (geometry_sector < ").append(toSector).append(" OR geometry_sector IS NULL)");
+            } else {
+                condition.append(" AND geometry_sector < ").append(toSector);
+            }
+        }
+        return condition.toString();
+    }
+
+    @Override
+    public String toString() {
+        return table.getTableName() + "[" + (fromSector == null ? "" : fromSector) + "," + (toSector == null ? "" : toSector) + ")";
+    }
+}
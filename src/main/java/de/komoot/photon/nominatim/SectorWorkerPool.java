@@ -0,0 +1,160 @@
+package de.komoot.photon.nominatim;
+
+import de.komoot.photon.Updater;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.function.Consumer;
+
+/**
+ * Updates the sectors of a rank in parallel during a nominatim update.
+ * <p>
+ * Every worker thread owns one of the given updaters, so the changes of a sector go out through their own bulk
+ * sender, and it borrows its own database connections while working on a sector. {@link #await()} is the barrier
+ * between two ranks: it returns when all submitted sectors are done. With a single updater, sectors are updated
+ * right away on the calling thread.
+ */
+@Slf4j
+class SectorWorkerPool {
+    private static final Consumer<Updater> STOP = updater -> {
+    };
+
+    private final List<Updater> updaters;
+    /** at most one waiting sector per worker, so that the reader does not run ahead */
+    private final BlockingQueue<Consumer<Updater>> tasks;
+    private final List<Thread> workers = new ArrayList<>();
+    private int running = 0;
+    private RuntimeException failure = null;
+
+    /**
+     * @param updaters one updater per worker thread
+     */
+    SectorWorkerPool(List<Updater> updaters) {
+        if (updaters.isEmpty())
+            throw new IllegalArgumentException("at least one updater is needed");
+
+        this.updaters = updaters;
+        this.tasks = new ArrayBlockingQueue<>(updaters.size());
+        if (updaters.size() > 1) {
+            for (int i = 0; i < updaters.size(); i++) {
+                Thread worker = new Thread(new Worker(updaters.get(i)), "update-worker-" + i);
+                worker.start();
+                workers.add(worker);
+            }
+        }
+    }
+
+    /**
+     * Hand the update of a sector to the next free worker, waits while all of them are busy.
+     *
+     * @throws RuntimeException the failure of a sector that was submitted before
+     */
+    void submit(Consumer<Updater> sector) {
+        if (workers.isEmpty()) {
+            sector.accept(updaters.get(0));
+            return;
+        }
+
+        synchronized (this) {
+            throwFailure();
+            ++running;
+        }
+        try {
+            tasks.put(sector);
+        } catch (InterruptedException e) {
+            sectorFinished(new IllegalStateException("interrupted while waiting for a free update worker", e));
+            throwFailure();
+        }
+    }
+
+    /**
+     * Wait until all submitted sectors are updated.
+     *
+     * @throws RuntimeException the failure of one of the sectors
+     */
+    synchronized void await() {
+        while (running > 0) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                log.warn("Thread interrupted while waiting for update workers.");
+            }
+        }
+        throwFailure();
+    }
+
+    /**
+     * Stop the worker threads, the updaters are not finished.
+     */
+    void close() {
+        for (Thread worker : workers) {
+            try {
+                tasks.put(STOP);
+            } catch (InterruptedException e) {
+                log.warn("Thread interrupted while stopping update workers.");
+            }
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                log.warn("Thread interrupted while stopping update workers.");
+            }
+        }
+        workers.clear();
+    }
+
+    private synchronized void sectorFinished(RuntimeException sectorFailure) {
+        --running;
+        if (failure == null && sectorFailure != null) {
+            failure = sectorFailure;
+        }
+        notifyAll();
+    }
+
+    private synchronized void throwFailure() {
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private class Worker implements Runnable {
+        private final Updater updater;
+
+        Worker(Updater updater) {
+            this.updater = updater;
+        }
+
+        @Override
+        public void run() {
+            while (true) {
+                Consumer<Updater> sector;
+                try {
+                    sector = tasks.take();
+                } catch (InterruptedException e) {
+                    log.warn("Thread interrupted while waiting for sectors.");
+                    continue;
+                }
+                if (sector == STOP)
+                    break;
+
+                RuntimeException sectorFailure = null;
+                try {
+                    sector.accept(updater);
+                } catch (RuntimeException e) {
+                    log.error("update of sector failed", e);
+                    sectorFailure = e;
+                } catch (Throwable e) {
+                    // errors are reported as well, the worker stays alive for the next sectors and the barrier
+                    log.error("update of sector failed", e);
+                    sectorFailure = new IllegalStateException("update worker " + Thread.currentThread().getName() + " failed", e);
+                } finally {
+                    sectorFinished(sectorFailure);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package de.komoot.photon.nominatim.model;
+
+import de.komoot.photon.PhotonDoc;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The address parts of a place as derived from its list of address rows.
+ * <p>
+ * Instances are immutable and may be shared between all documents with the same
+ * parent place. The name maps must therefore not be modified by the documents.
+ */
+@Getter
+@Slf4j
+public class AddressHierarchy {
+    private Map<String, String> street;
+    private Map<String, String> locality;
+    private Map<String, String> district;
+    private Map<String, String> city;
+    private Map<String, String> county;
+    private Map<String, String> state;
+    private final Set<Map<String, String>> context;
+
+    private AddressHierarchy(Set<Map<String, String>> context) {
+        this.context = context;
+    }
+
+    /**
+     * Sort address rows into the address parts of a document.
+     *
+     * @param addresses address rows ordered by decreasing address rank as returned by nominatim
+     */
+    public static AddressHierarchy fromAddressRows(List<AddressRow> addresses) {
+        final Set<Map<String, String>> context = new HashSet<>();
+        final AddressHierarchy hierarchy = new AddressHierarchy(Collections.unmodifiableSet(context));
+
+        int cityNameAddressRank = -1;
+        for (AddressRow address : addresses) {
+            if (address.isCity()) {
+                // if we have village like Białoboki we have to take address name with biggest rank
+                // example of village - https://nominatim.openstreetmap.org/ui/details.html?osmtype=R&osmid=6778130&class=boundary - before this change we got "gmina Gać" as a result
+                if (address.getRankAddress() > cityNameAddressRank) {
+                    cityNameAddressRank = address.getRankAddress();
+                    if (hierarchy.city == null) {
+                        hierarchy.city = address.getName();
+                    } else {
+                        context.add(address.getName());
+                    }
+                } else {
+                    log.debug("City name, used " + hierarchy.city + " instead of " + address.getName());
+                }
+                continue;
+            }
+
+            if (address.isStreet() && hierarchy.street == null) {
+                hierarchy.street = address.getName();
+                continue;
+            }
+
+            if (address.isLocality() && hierarchy.locality == null) {
+                hierarchy.locality = address.getName();
+                continue;
+            }
+
+            if (address.isDistrict() && hierarchy.district == null) {
+                hierarchy.district = address.getName();
+                continue;
+            }
+
+            if (address.isCounty() && hierarchy.county == null) {
+                hierarchy.county = address.getName();
+                continue;
+            }
+
+            if (address.isState() && hierarchy.state == null) {
+                hierarchy.state = address.getName();
+                continue;
+            }
+
+            // no specifically handled item, check if useful for context
+            if (address.isUsefulForContext()) {
+                context.add(address.getName());
+            }
+        }
+
+        return hierarchy;
+    }
+
+    /**
+     * Fill the address parts of a document that has not been completed yet.
+     */
+    public void applyTo(PhotonDoc doc) {
+        doc.setStreet(street);
+        doc.setLocality(locality);
+        doc.setDistrict(district);
+        doc.setCity(city);
+        doc.setCounty(county);
+        doc.setState(state);
+        doc.getContext().addAll(context);
+    }
+}
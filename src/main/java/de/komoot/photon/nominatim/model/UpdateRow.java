@@ -1,7 +1,12 @@
 package de.komoot.photon.nominatim.model;
 
+import com.vividsolutions.jts.geom.Point;
+import de.komoot.photon.PhotonDoc;
 import lombok.Data;
 
+import java.util.List;
+import java.util.Map;
+
 /**
  * @author felix
  */
@@ -10,4 +15,12 @@ public class UpdateRow {
 
     public Long placeId;
     public Integer indexdStatus; // 1 - index, 2 - update, 100 - delete
+    public Integer rankSearch;
+    public Integer geometrySector;
+    /** the document of the place as it was read, null for deleted places and places outside the import profile */
+    public PhotonDoc baseDoc;
+    /** the house numbers of the place and their locations, null if there are none */
+    public Map<String, Point> housenumbers;
+    /** the completed documents of the place, one per house number, set once the base document is completed */
+    public List<PhotonDoc> docs;
 }
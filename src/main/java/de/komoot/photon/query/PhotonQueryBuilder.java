@@ -4,6 +4,7 @@ package de.komoot.photon.query;
 import com.google.common.collect.ImmutableSet;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Point;
+import de.komoot.photon.Constants;
 import org.elasticsearch.common.lucene.search.function.CombineFunction;
 import org.elasticsearch.common.lucene.search.function.FiltersFunctionScoreQuery.ScoreMode;
 import org.elasticsearch.common.unit.Fuzziness;
@@ -52,6 +53,8 @@ public class PhotonQueryBuilder implements TagFilterQueryBuilder {
 
     private GeoBoundingBoxQueryBuilder bboxQueryBuilder;
 
+    private TermsQueryBuilder countryCodeQueryBuilder;
+
     private BoolQueryBuilder m_finalQueryBuilder;
 
     protected ArrayList<FilterFunctionBuilder> m_alFilterFunction4QueryBuilder = new ArrayList<>(1);
@@ -170,6 +173,14 @@ public class PhotonQueryBuilder implements TagFilterQueryBuilder {
         return this;
     }
     
+    @Override
+    public TagFilterQueryBuilder withCountryCodes(Set<String> countryCodes) {
+        if (countryCodes == null || countryCodes.isEmpty()) return this;
+        countryCodeQueryBuilder = QueryBuilders.termsQuery(Constants.COUNTRYCODE, countryCodes);
+
+        return this;
+    }
+
      @Override
     public TagFilterQueryBuilder withBoundingBox(Envelope bbox) {
         if (bbox == null) return this;
@@ -365,6 +376,9 @@ public class PhotonQueryBuilder implements TagFilterQueryBuilder {
         if (bboxQueryBuilder != null) 
             m_queryBuilderForTopLevelFilter.filter(bboxQueryBuilder);
 
+        if (countryCodeQueryBuilder != null)
+            m_queryBuilderForTopLevelFilter.filter(countryCodeQueryBuilder);
+
         state = State.FINISHED;
 
         return m_finalQueryBuilder;
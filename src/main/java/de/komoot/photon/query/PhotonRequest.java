@@ -4,6 +4,8 @@ import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Point;
 
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.Set;
 
 /**
  * Created by Sachin Dole on 2/12/2015.
@@ -16,6 +18,7 @@ public class PhotonRequest implements Serializable {
     private String language;
     private final double scale;
     private Envelope bbox;
+    private Set<String> countryCodes = Collections.emptySet();
 
     public PhotonRequest(String query, QueryType queryType, int limit, Envelope bbox, Point locationForBias, double scale, String language) {
         this.query = query;
@@ -54,4 +57,15 @@ public class PhotonRequest implements Serializable {
     public String getLanguage() {
         return language;
     }
+
+    /**
+     * @return upper case ISO 3166 alpha-2 codes of the countries the results have to be in, empty for no restriction
+     */
+    public Set<String> getCountryCodes() {
+        return countryCodes;
+    }
+
+    void countryCodes(Set<String> countryCodes) {
+        this.countryCodes = countryCodes;
+    }
 }
@@ -1,5 +1,6 @@
 package de.komoot.photon.query;
 
+import com.neovisionaries.i18n.CountryCode;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Point;
 import spark.QueryParamsMap;
@@ -18,13 +19,23 @@ public class PhotonRequestFactory {
     private final RequestLanguageResolver languageResolver;
     private final static LocationParamConverter optionalLocationParamConverter = new LocationParamConverter(false);
     private final BoundingBoxParamConverter bboxParamConverter;
+    private final boolean countryCodeFilter;
 
     protected static HashSet<String> m_hsRequestQueryParams = new HashSet<>(Arrays.asList("lang", "q", "lon", "lat",
-            "limit", "osm_tag", "location_bias_scale", "bbox", "debug", "type"));
+            "limit", "osm_tag", "location_bias_scale", "bbox", "debug", "type", "countrycode"));
 
     public PhotonRequestFactory(List<String> supportedLanguages, String defaultLanguage) {
+        this(supportedLanguages, defaultLanguage, true);
+    }
+
+    /**
+     * @param countryCodeFilter false if the index was created with an older mapping that cannot be filtered by country code,
+     *                          requests with a countrycode parameter are refused then
+     */
+    public PhotonRequestFactory(List<String> supportedLanguages, String defaultLanguage, boolean countryCodeFilter) {
         this.languageResolver = new RequestLanguageResolver(supportedLanguages, defaultLanguage);
         this.bboxParamConverter = new BoundingBoxParamConverter();
+        this.countryCodeFilter = countryCodeFilter;
     }
 
     public <R extends PhotonRequest> R create(Request webRequest) throws BadRequestException {
@@ -63,11 +74,16 @@ public class PhotonRequestFactory {
                 throw new BadRequestException(400, "invalid parameter 'location_bias_scale' must be a number");
             }
 
+        Set<String> countryCodes = getCountryCodes(webRequest.queryParams("countrycode"));
+
         QueryParamsMap tagFiltersQueryMap = webRequest.queryMap("osm_tag");
         if (!new CheckIfFilteredRequest().execute(tagFiltersQueryMap)) {
-            return (R) new PhotonRequest(query, queryType, limit, bbox, locationForBias, scale, language);
+            PhotonRequest photonRequest = new PhotonRequest(query, queryType, limit, bbox, locationForBias, scale, language);
+            photonRequest.countryCodes(countryCodes);
+            return (R) photonRequest;
         }
         FilteredPhotonRequest photonRequest = new FilteredPhotonRequest(query, queryType, limit, bbox, locationForBias, scale, language);
+        photonRequest.countryCodes(countryCodes);
         String[] tagFilters = tagFiltersQueryMap.values();
         setUpTagFilters(photonRequest, tagFilters);
 
@@ -76,6 +92,29 @@ public class PhotonRequestFactory {
     }
 
 
+    /**
+     * @param countryCodesParam comma separated ISO 3166 alpha-2 codes, case does not matter
+     * @return the upper case codes, empty if the parameter is missing
+     */
+    private Set<String> getCountryCodes(String countryCodesParam) throws BadRequestException {
+        Set<String> countryCodes = new HashSet<>();
+        if (countryCodesParam == null || countryCodesParam.trim().isEmpty()) {
+            return countryCodes;
+        }
+        if (!countryCodeFilter) {
+            throw new BadRequestException(400, "parameter 'countrycode' is not supported by this index, it has to be imported again with a newer version of photon");
+        }
+
+        for (String code : countryCodesParam.split(",")) {
+            CountryCode countryCode = code.trim().length() == 2 ? CountryCode.getByCode(code.trim(), false) : null;
+            if (countryCode == null) {
+                throw new BadRequestException(400, "invalid parameter 'countrycode' must be a comma separated list of ISO 3166 alpha-2 country codes");
+            }
+            countryCodes.add(countryCode.getAlpha2());
+        }
+        return countryCodes;
+    }
+
     private void setUpTagFilters(FilteredPhotonRequest request, String[] tagFilters) {
         for (String tagFilter : tagFilters) {
             if (tagFilter.contains(":")) {
@@ -41,6 +41,11 @@ public class ReverseQueryBuilder implements TagFilterQueryBuilder {
         throw new RuntimeException(new NoSuchMethodException("this method is not implemented (NOOP)"));
     }
 
+    @Override
+    public TagFilterQueryBuilder withCountryCodes(Set<String> countryCodes) {
+        throw new RuntimeException(new NoSuchMethodException("this method is not implemented (NOOP)"));
+    }
+
     @Override
     public TagFilterQueryBuilder withTags(Map<String, Set<String>> tags) {
         throw new RuntimeException(new NoSuchMethodException("this method is not implemented (NOOP)"));
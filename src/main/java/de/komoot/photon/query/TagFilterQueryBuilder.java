@@ -28,6 +28,13 @@ public interface TagFilterQueryBuilder {
      */
     TagFilterQueryBuilder withLocationBias(Point point, double scale);
 
+    /**
+     * Search results will be filtered to places in one of the given countries.
+     *
+     * @param countryCodes upper case ISO 3166 alpha-2 codes, no filtering if empty
+     */
+    TagFilterQueryBuilder withCountryCodes(Set<String> countryCodes);
+
     /**
      * Search results will be filtered to contain places having tags as provided in the argument. For example, if the argument contains
      * <pre>
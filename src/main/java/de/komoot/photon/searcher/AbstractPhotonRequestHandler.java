@@ -25,9 +25,10 @@ public abstract class AbstractPhotonRequestHandler<R extends PhotonRequest> impl
         // for the case of deduplication we need a bit more results, #300
         int limit = photonRequest.getLimit();
         int extLimit = limit > 1 ? (int) Math.round(photonRequest.getLimit() * 1.5) : 1;
-        SearchResponse results = elasticsearchSearcher.search(queryBuilder.buildQuery(), extLimit);
+        // the location bias only ranks results, it does not restrict the indices to search
+        SearchResponse results = elasticsearchSearcher.search(queryBuilder.buildQuery(), extLimit, photonRequest.getBbox(), photonRequest.getCountryCodes());
         if (results.getHits().getTotalHits() == 0) {
-            results = elasticsearchSearcher.search(queryBuilder.withLenientMatch().buildQuery(), extLimit);
+            results = elasticsearchSearcher.search(queryBuilder.withLenientMatch().buildQuery(), extLimit, photonRequest.getBbox(), photonRequest.getCountryCodes());
         }
         List<JSONObject> resultJsonObjects = new ConvertToJson(photonRequest.getLanguage()).convert(results);
         StreetDupesRemover streetDupesRemover = new StreetDupesRemover(photonRequest.getLanguage());
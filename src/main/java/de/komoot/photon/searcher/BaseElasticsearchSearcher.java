@@ -1,26 +1,37 @@
 package de.komoot.photon.searcher;
 
+import com.vividsolutions.jts.geom.Envelope;
+import de.komoot.photon.elasticsearch.IndexRouter;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.index.query.QueryBuilder;
 
+import java.util.Set;
+
 /**
  * Created by Sachin Dole on 2/12/2015.
  */
 public class BaseElasticsearchSearcher implements ElasticsearchSearcher {
 
     private Client client;
+    private IndexRouter indexRouter;
 
     public BaseElasticsearchSearcher(Client client) {
+        this(client, new IndexRouter(client));
+    }
+
+    public BaseElasticsearchSearcher(Client client, IndexRouter indexRouter) {
         this.client = client;
+        this.indexRouter = indexRouter;
     }
 
     @Override
-    public SearchResponse search(QueryBuilder queryBuilder, Integer limit) {
+    public SearchResponse search(QueryBuilder queryBuilder, Integer limit, Envelope region, Set<String> countryCodes) {
         TimeValue timeout = TimeValue.timeValueSeconds(7);
-        return client.prepareSearch("photon").
+        return client.prepareSearch(indexRouter.getIndices(region, countryCodes)).
+                setRouting(indexRouter.getRouting(region, countryCodes)).
                 setSearchType(SearchType.QUERY_AND_FETCH).
                 setQuery(queryBuilder).
                 setSize(limit).
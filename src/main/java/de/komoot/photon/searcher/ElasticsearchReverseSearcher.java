@@ -8,5 +8,8 @@ import org.elasticsearch.index.query.QueryBuilder;
  * @author svantulden
  */
 public interface ElasticsearchReverseSearcher {
-    SearchResponse search(QueryBuilder queryBuilder, Integer limit, Point location, Boolean locationDistanceSort);
+    /**
+     * @param radius search radius around the location in kilometers, only used to choose the indices to search
+     */
+    SearchResponse search(QueryBuilder queryBuilder, Integer limit, Point location, Double radius, Boolean locationDistanceSort);
 }
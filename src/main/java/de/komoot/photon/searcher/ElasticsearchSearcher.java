@@ -1,13 +1,20 @@
 package de.komoot.photon.searcher;
 
+import com.vividsolutions.jts.geom.Envelope;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.index.query.QueryBuilder;
 
+import java.util.Set;
+
 /**
  * This class handles all search execution that is specific to elastic search.
  * <p/>
  * Created by Sachin Dole on 2/12/2015.
  */
 public interface ElasticsearchSearcher {
-    SearchResponse search(QueryBuilder queryBuilder, Integer limit);
-}
\ No newline at end of file
+    /**
+     * @param region       area the query is restricted to, null if it is not; only used to choose the indices to search
+     * @param countryCodes countries the query is restricted to, empty if it is not; only used to choose the indices to search
+     */
+    SearchResponse search(QueryBuilder queryBuilder, Integer limit, Envelope region, Set<String> countryCodes);
+}
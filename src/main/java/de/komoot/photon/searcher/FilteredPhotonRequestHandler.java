@@ -36,7 +36,8 @@ public class FilteredPhotonRequestHandler extends AbstractPhotonRequestHandler<F
                 withoutValues(excludeValues).
                 withTagsNotValues(excludeTagValues).
                 withLocationBias(photonRequest.getLocationForBias(), photonRequest.getScaleForBias()).
-                withBoundingBox(photonRequest.getBbox());
+                withBoundingBox(photonRequest.getBbox()).
+                withCountryCodes(photonRequest.getCountryCodes());
     }
 
 }
@@ -1,6 +1,7 @@
 package de.komoot.photon.searcher;
 
 import com.vividsolutions.jts.geom.Point;
+import de.komoot.photon.elasticsearch.IndexRouter;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
 import org.elasticsearch.action.search.SearchType;
@@ -16,17 +17,24 @@ import org.elasticsearch.search.sort.SortOrder;
  */
 public class ReverseElasticsearchSearcher implements ElasticsearchReverseSearcher {
     private Client client;
+    private IndexRouter indexRouter;
 
     public ReverseElasticsearchSearcher(Client client) {
+        this(client, new IndexRouter(client));
+    }
+
+    public ReverseElasticsearchSearcher(Client client, IndexRouter indexRouter) {
         this.client = client;
+        this.indexRouter = indexRouter;
     }
 
     @Override
-    public SearchResponse search(QueryBuilder queryBuilder, Integer limit, Point location,
+    public SearchResponse search(QueryBuilder queryBuilder, Integer limit, Point location, Double radius,
                                  Boolean locationDistanceSort) {
         TimeValue timeout = TimeValue.timeValueSeconds(7);
 
-        SearchRequestBuilder builder = client.prepareSearch("photon").setSearchType(SearchType.QUERY_AND_FETCH)
+        SearchRequestBuilder builder = client.prepareSearch(indexRouter.getIndices(location, radius))
+                .setRouting(indexRouter.getRouting(location, radius)).setSearchType(SearchType.QUERY_AND_FETCH)
                 .setQuery(queryBuilder).setSize(limit).setTimeout(timeout);
 
         if (locationDistanceSort)
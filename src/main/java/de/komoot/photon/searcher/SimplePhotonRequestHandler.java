@@ -16,6 +16,7 @@ public class SimplePhotonRequestHandler extends AbstractPhotonRequestHandler<Pho
     public TagFilterQueryBuilder buildQuery(PhotonRequest photonRequest) {
         return PhotonQueryBuilder.builder(photonRequest.getQuery(), photonRequest.getLanguage(), photonRequest.getQueryType()).
                 withLocationBias(photonRequest.getLocationForBias(), photonRequest.getScaleForBias()).
-                withBoundingBox(photonRequest.getBbox());
+                withBoundingBox(photonRequest.getBbox()).
+                withCountryCodes(photonRequest.getCountryCodes());
     }
 }
@@ -0,0 +1,102 @@
+package de.komoot.photon;
+
+import com.google.common.collect.ImmutableMap;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import org.elasticsearch.common.bytes.BytesArray;
+import org.elasticsearch.common.xcontent.XContentHelper;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DocumentSerializerTest {
+
+    private static PhotonDoc createDoc() {
+        PhotonDoc doc = new PhotonDoc(1234, "W", 56, "highway", "residential",
+                ImmutableMap.of("name", "Hauptstraße", "name:en", "Main Street", "alt_name", "Alte Straße", "old_name", "Dorfweg"),
+                "12a", null, null, new Envelope(9.0, 9.1, 47.0, 47.2), 0, 0.5, "de",
+                new GeometryFactory().createPoint(new Coordinate(9.05, 47.1)), 0, 26);
+        doc.setPostcode("79100");
+        doc.setCity(ImmutableMap.of("name", "Freiburg", "name:fr", "Fribourg-en-Brisgau", "name:it", "Friburgo"));
+        doc.getContext().add(ImmutableMap.of("name", "Wiehre", "name:de", "Wiehre"));
+        doc.getContext().add(ImmutableMap.of("name", "Breisgau"));
+        doc.getContext().add(ImmutableMap.of("name", "Wiehre"));
+        return doc;
+    }
+
+    private static Map<String, Object> parse(DocumentSerializer serializer, PhotonDoc doc) throws IOException {
+        return XContentHelper.convertToMap(new BytesArray(serializer.serialize(doc)), false, serializer.getType()).v2();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testContent() throws IOException {
+        Map<String, Object> source = parse(new DocumentSerializer(new String[]{"de", "en", "fr"}, XContentType.SMILE), createDoc());
+
+        assertEquals(56, ((Number) source.get(Constants.OSM_ID)).intValue());
+        assertEquals("W", source.get(Constants.OSM_TYPE));
+        assertEquals("highway", source.get(Constants.OSM_KEY));
+        assertEquals("12a", source.get("housenumber"));
+        assertEquals("79100", source.get("postcode"));
+        assertEquals("DE", source.get(Constants.COUNTRYCODE));
+        assertEquals(ImmutableMap.of("lat", 47.1, "lon", 9.05), source.get("coordinate"));
+
+        assertEquals(ImmutableMap.of("default", "Hauptstraße", "en", "Main Street", "alt", "Alte Straße", "old", "Dorfweg"),
+                source.get("name"));
+        assertEquals(ImmutableMap.of("default", "Freiburg", "fr", "Fribourg-en-Brisgau"), source.get("city"));
+        assertFalse(source.containsKey("street"));
+
+        Map<String, Object> context = (Map<String, Object>) source.get("context");
+        assertEquals(2, context.size());
+        assertEquals("Wiehre", context.get("de"));
+        String defaultContext = (String) context.get("default");
+        assertEquals(2, defaultContext.split(", ").length);
+        assertTrue(defaultContext.contains("Wiehre"));
+        assertTrue(defaultContext.contains("Breisgau"));
+
+        Map<String, Object> extent = (Map<String, Object>) source.get("extent");
+        assertEquals("envelope", extent.get("type"));
+    }
+
+    @Test
+    public void testJsonAndSmileAgree() throws IOException {
+        PhotonDoc doc = createDoc();
+        String[] languages = {"de", "en"};
+
+        Map<String, Object> json = parse(new DocumentSerializer(languages, XContentType.JSON), doc);
+        Map<String, Object> smile = parse(new DocumentSerializer(languages, XContentType.SMILE), doc);
+
+        assertEquals(json, smile);
+        assertEquals(json, XContentHelper.convertToMap(Utils.convert(doc, languages).bytes(), false, XContentType.JSON).v2());
+    }
+
+    @Test
+    public void testBufferIsReused() throws IOException {
+        DocumentSerializer serializer = new DocumentSerializer(new String[]{"de"}, XContentType.JSON);
+        PhotonDoc doc = createDoc();
+
+        byte[] first = serializer.serialize(doc);
+        doc.setPostcode(null);
+        byte[] second = serializer.serialize(doc);
+
+        assertTrue(second.length < first.length);
+        assertFalse(new String(second, "UTF-8").contains("79100"));
+    }
+
+    @Test
+    public void testEmptyNames() throws IOException {
+        PhotonDoc doc = new PhotonDoc(1, "N", 2, "amenity", "bench", ImmutableMap.<String, String>of(), null, null, null,
+                null, 0, 0.1, null, null, 0, 30);
+
+        Map<String, Object> source = parse(new DocumentSerializer(new String[]{"de", "de"}, XContentType.SMILE), doc);
+
+        assertFalse(source.containsKey("name"));
+        assertFalse(source.containsKey("context"));
+        assertFalse(source.containsKey("coordinate"));
+    }
+}
@@ -93,6 +93,14 @@ public class ESBaseTester {
         return server.getClient();
     }
 
+    protected Server getServer() {
+        if (server == null) {
+            throw new RuntimeException("call setUpES before using getServer");
+        }
+
+        return server;
+    }
+
     protected void refresh() {
         getClient().admin().indices().refresh(new RefreshRequest(indexName)).actionGet();
     }
@@ -0,0 +1,112 @@
+package de.komoot.photon;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+import org.json.JSONArray;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.*;
+
+public class JsonDumperTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static PhotonDoc createDoc(long placeId) {
+        return PhotonDoc.create(placeId, "N", placeId, ImmutableMap.of("name", "place " + placeId));
+    }
+
+    private static JSONObject readManifest(String filename) throws IOException {
+        return new JSONObject(new String(Files.readAllBytes(JsonDumper.getManifestFile(filename).toPath()), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testNoWriterIsLeftWhenAFileCannotBeOpened() throws IOException {
+        String filename = new File(folder.getRoot(), "dump.json").getPath();
+        assertTrue(new File(JsonDumper.getShardFileName(filename, 2, 3, false)).mkdir());
+        try {
+            new JsonDumper(filename, "en", 3, false);
+            fail("a directory cannot be opened as shard file");
+        } catch (FileNotFoundException e) {
+            // expected
+        }
+
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            assertFalse(thread.getName(), thread.getName().startsWith("json-dump-"));
+        }
+    }
+
+    @Test
+    public void testSingleFile() throws IOException {
+        String filename = new File(folder.getRoot(), "dump.json").getPath();
+        JsonDumper dumper = new JsonDumper(filename, "en,de");
+        dumper.add(createDoc(1));
+        dumper.add(createDoc(2));
+        assertTrue(dumper.flush());
+        dumper.finish();
+
+        String[] lines = new String(Files.readAllBytes(new File(filename).toPath()), StandardCharsets.UTF_8).split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("{\"index\": {\"_id\": \"1\"}}", lines[0]);
+        assertEquals("place 1", new JSONObject(lines[1]).getJSONObject("name").getString("default"));
+
+        JSONObject manifest = readManifest(filename);
+        assertEquals(2, manifest.getLong("documents"));
+        assertEquals("dump.json", manifest.getJSONArray("files").getJSONObject(0).getString("file"));
+    }
+
+    @Test
+    public void testIdIsEscaped() throws IOException {
+        String filename = new File(folder.getRoot(), "dump.json").getPath();
+        JsonDumper dumper = new JsonDumper(filename, "en");
+        PhotonDoc doc = createDoc(1);
+        doc.setHouseNumber("12\"a\\b");
+        dumper.add(doc);
+        dumper.finish();
+
+        String[] lines = new String(Files.readAllBytes(new File(filename).toPath()), StandardCharsets.UTF_8).split("\n");
+        assertEquals("1.12\"a\\b", new JSONObject(lines[0]).getJSONObject("index").getString("_id"));
+    }
+
+    @Test
+    public void testCompressedShards() throws IOException {
+        String filename = new File(folder.getRoot(), "dump.json").getPath();
+        JsonDumper dumper = new JsonDumper(filename, "en", 3, true);
+        for (int i = 0; i < 10; i++) {
+            dumper.add(createDoc(i));
+        }
+        dumper.finish();
+
+        JSONObject manifest = readManifest(filename);
+        assertEquals("gzip", manifest.getString("compression"));
+        assertEquals(10, manifest.getLong("documents"));
+        assertTrue(manifest.getBoolean("complete"));
+
+        JSONArray files = manifest.getJSONArray("files");
+        assertEquals(3, files.length());
+        long documents = 0;
+        for (int i = 0; i < files.length(); i++) {
+            JSONObject file = files.getJSONObject(i);
+            File shard = new File(folder.getRoot(), file.getString("file"));
+            assertEquals(JsonDumper.getShardFileName("dump.json", i, 3, true), shard.getName());
+
+            byte[] content = Files.readAllBytes(shard.toPath());
+            assertEquals(content.length, file.getLong("bytes"));
+            assertEquals(Hashing.sha256().hashBytes(content).toString(), file.getString("sha256"));
+
+            byte[] json = ByteStreams.toByteArray(new GZIPInputStream(new ByteArrayInputStream(content)));
+            int lines = new String(json, StandardCharsets.UTF_8).split("\n").length;
+            assertEquals(2 * file.getLong("documents"), lines);
+            documents += file.getLong("documents");
+        }
+        assertEquals(10, documents);
+    }
+}
@@ -33,6 +33,22 @@ public class PhotonDocTest {
         Assert.assertThat(doc.getStreet().get("name"), IsEqual.equalTo("test street"));    
     }
 
+    @Test
+    public void testCopyHasItsOwnContext() {
+        HashMap<String, String> address = new HashMap<>();
+        address.put("street", "test street");
+        PhotonDoc doc = createPhotonDocWithAddress(address);
+        PhotonDoc copy = new PhotonDoc(doc);
+
+        HashMap<String, String> streetNames = new HashMap<>();
+        streetNames.put("name", "parent place street");
+        copy.setStreet(streetNames);
+        copy.completeFromAddress();
+
+        Assert.assertEquals(1, copy.getContext().size());
+        Assert.assertTrue(doc.getContext().isEmpty());
+    }
+
     @Test
     public void testAddCountryCode() {
         PhotonDoc doc = new PhotonDoc(1, "W", 2, "highway", "residential", null, "4", null, null, null, 0, 30, "de", null, 0, 30);
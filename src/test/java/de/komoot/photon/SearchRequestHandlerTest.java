@@ -24,7 +24,7 @@ public class SearchRequestHandlerTest {
     @Test
     public void testConstructor() throws IllegalAccessException, NoSuchMethodException, InvocationTargetException {
         Client client = Mockito.mock(Client.class);
-        SearchRequestHandler searchRequestHandler = new SearchRequestHandler("any", client, "en,fr", "en");
+        SearchRequestHandler searchRequestHandler = new SearchRequestHandler("any", client, "en,fr", "en", true);
         String path = ReflectionTestUtil.getFieldValue(searchRequestHandler, RouteImpl.class, "path");
         Assert.assertEquals("any", path);
         PhotonRequestFactory photonRequestFactory = ReflectionTestUtil.getFieldValue(searchRequestHandler, searchRequestHandler.getClass(), "photonRequestFactory");
@@ -37,7 +37,7 @@ public class SearchRequestHandlerTest {
     @Test
     public void testHandle() throws BadRequestException {
         Client client = Mockito.mock(Client.class);
-        SearchRequestHandler searchRequestHandlerUnderTest = new SearchRequestHandler("any", client, "en,fr", "en");
+        SearchRequestHandler searchRequestHandlerUnderTest = new SearchRequestHandler("any", client, "en,fr", "en", true);
         PhotonRequestFactory mockPhotonRequestFactory = Mockito.mock(PhotonRequestFactory.class);
         Request mockWebRequest = Mockito.mock(Request.class);
         ReflectionTestUtil.setFieldValue(searchRequestHandlerUnderTest, SearchRequestHandler.class, "photonRequestFactory", mockPhotonRequestFactory);
@@ -0,0 +1,51 @@
+package de.komoot.photon.elasticsearch;
+
+import de.komoot.photon.ESBaseTester;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class BulkSenderTest extends ESBaseTester {
+
+    private long count() {
+        return getClient().search(Requests.searchRequest("photon").types("place").source(SearchSourceBuilder.searchSource().size(0)))
+                .actionGet().getHits().getTotalHits();
+    }
+
+    @Test
+    public void testFlushWaitsForAllBulks() {
+        final long before = count();
+        BulkSender sender = new BulkSender(getClient(), 2, 5, 1, 0);
+        for (int i = 0; i < 23; i++) {
+            sender.add(getClient().prepareIndex("photon", "place").setId("bulk" + i).setSource("osm_id", i).request());
+        }
+
+        assertTrue(sender.flush());
+        refresh();
+        assertEquals(before + 23, count());
+        String report = sender.report();
+        assertTrue(report, report.startsWith("bulk [2 concurrent request(s)]: "));
+        assertTrue(report, report.contains("in flight 0/2"));
+
+        sender.close();
+        assertEquals(0, sender.getFailedCount());
+    }
+
+    @Test
+    public void testFailuresAreCounted() {
+        BulkSender sender = new BulkSender(getClient(), 1, 10, 1, 0);
+        sender.add(getClient().prepareIndex("photon", "place").setId("good").setSource("osm_id", 1).request());
+        sender.add(getClient().prepareIndex("photon", "place").setId("bad").setSource("coordinate", "not a point").request());
+
+        assertFalse(sender.flush());
+        assertEquals(1, sender.getFailedCount());
+
+        // failures are only reported once
+        sender.add(getClient().prepareIndex("photon", "place").setId("good2").setSource("osm_id", 2).request());
+        assertTrue(sender.flush());
+
+        sender.close();
+    }
+}
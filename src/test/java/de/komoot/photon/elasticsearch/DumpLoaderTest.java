@@ -0,0 +1,82 @@
+package de.komoot.photon.elasticsearch;
+
+import com.google.common.collect.ImmutableMap;
+import de.komoot.photon.ESBaseTester;
+import de.komoot.photon.JsonDumper;
+import de.komoot.photon.PhotonDoc;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class DumpLoaderTest extends ESBaseTester {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private long count() {
+        return getClient().search(Requests.searchRequest("photon").types("place").source(SearchSourceBuilder.searchSource().size(0)))
+                .actionGet().getHits().getTotalHits();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testLoadCompressedShards() throws IOException {
+        String filename = new File(folder.getRoot(), "dump.json").getPath();
+        JsonDumper dumper = new JsonDumper(filename, "en", 3, true);
+        for (int i = 1; i <= 2500; i++) {
+            dumper.add(PhotonDoc.create(i, "N", i, ImmutableMap.of("name", "place " + i)));
+        }
+        dumper.finish();
+
+        List<File> files = DumpLoader.getDumpFiles(JsonDumper.getManifestFile(filename).getPath());
+        assertEquals(3, files.size());
+
+        long loaded = new DumpLoader("photon", new BulkSender(getClient(), 2, 400, 1, 0)).load(files);
+        refresh();
+
+        assertEquals(2500, loaded);
+        assertEquals(2500, count());
+
+        GetResponse response = getClient().prepareGet("photon", "place", "1234").execute().actionGet();
+        assertTrue(response.isExists());
+        assertEquals("place 1234", ((Map<String, Object>) response.getSource().get("name")).get("default"));
+    }
+
+    @Test
+    public void testImportProfileOfTheDump() throws IOException {
+        String filename = new File(folder.getRoot(), "dump.json").getPath();
+        JsonDumper dumper = new JsonDumper(filename, "en");
+        dumper.setImportProfile(new JSONObject().put("max_rank", 26));
+        dumper.finish();
+
+        assertEquals(26, DumpLoader.getImportProfile(JsonDumper.getManifestFile(filename).getPath()).getInt("max_rank"));
+        assertEquals(0, DumpLoader.getImportProfile(filename).length());
+    }
+
+    @Test
+    public void testFailedDocumentsFailTheImport() throws IOException {
+        File file = folder.newFile("broken.json");
+        Files.write(file.toPath(), ("{\"index\": {\"_id\": \"1\"}}\n{\"osm_id\": 1}\n"
+                + "{\"index\": {\"_id\": \"2\"}}\n{\"coordinate\": \"not a point\"}\n").getBytes(StandardCharsets.UTF_8));
+
+        try {
+            new DumpLoader("photon", new BulkSender(getClient())).load(Collections.singletonList(file));
+            fail("a document that cannot be stored must fail the import");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("1 of 2 documents"));
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package de.komoot.photon.elasticsearch;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.neovisionaries.i18n.CountryCode;
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.PrecisionModel;
+import de.komoot.photon.ESBaseTester;
+import de.komoot.photon.PhotonDoc;
+import org.elasticsearch.index.query.QueryBuilders;
+import org.elasticsearch.search.SearchHits;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+public class IndexRouterTest extends ESBaseTester {
+    private final GeometryFactory factory = new GeometryFactory(new PrecisionModel(), 4326);
+
+    private PhotonDoc createDoc(long id, String countryCode, double lon, double lat) {
+        return new PhotonDoc(id, "N", id, "place", "city", ImmutableMap.of("name", "place " + id), null, null, null, null,
+                0, 0.5, countryCode, factory.createPoint(new Coordinate(lon, lat)), 0, 0);
+    }
+
+    private String importCountries(PhotonDoc... docs) {
+        Server server = getServer();
+        CountryIndices countryIndices = new CountryIndices(server, server.newIndexGeneration());
+        Importer importer = new Importer(getClient(), countryIndices, "en", new BulkSender(getClient()));
+        for (PhotonDoc doc : docs) {
+            importer.add(doc);
+        }
+        importer.finish();
+        server.restoreIndexSettings(countryIndices.getPattern(), 0);
+        countryIndices.writeBoundingBoxes();
+        return countryIndices.getGeneration();
+    }
+
+    private Point point(double lon, double lat) {
+        return factory.createPoint(new Coordinate(lon, lat));
+    }
+
+    @Test
+    public void testSingleIndex() {
+        IndexRouter router = new IndexRouter(getClient());
+        assertArrayEquals(new String[]{"photon"}, router.getIndices(new Envelope(13, 14, 52, 53), ImmutableSet.of("DE")));
+        assertArrayEquals(new String[]{"photon"}, router.getIndices(point(13.4, 52.5), 1));
+        assertEquals("photon", router.getIndex(CountryCode.DE));
+    }
+
+    @Test
+    public void testCountryIndices() {
+        String generation = importCountries(createDoc(1, "de", 13.4, 52.5), createDoc(2, "de", 11.6, 48.1),
+                createDoc(3, "fr", 2.35, 48.85), createDoc(4, null, -30, 40));
+        getServer().activateIndex(generation);
+        assertEquals(Arrays.asList(generation + "_de", generation + "_fr", generation + "_none"), getServer().getActiveIndices());
+
+        IndexRouter router = new IndexRouter(getClient());
+        assertArrayEquals(new String[]{"photon"}, router.getIndices(null, Collections.<String>emptySet()));
+        assertArrayEquals(new String[]{generation + "_de"}, router.getIndices(new Envelope(13, 14, 52, 53), null));
+        assertArrayEquals(new String[]{generation + "_fr"}, router.getIndices(null, ImmutableSet.of("FR")));
+        assertArrayEquals(new String[]{generation + "_de", generation + "_fr"}, router.getIndices(new Envelope(0, 15, 45, 55), null));
+        // nothing in the region: all indices are searched
+        assertArrayEquals(new String[]{"photon"}, router.getIndices(new Envelope(100, 101, 0, 1), null));
+        assertArrayEquals(new String[]{generation + "_fr"}, router.getIndices(point(2.3, 48.8), 10));
+
+        assertEquals(generation + "_de", router.getIndex(CountryCode.DE));
+        assertEquals(generation + "_none", router.getIndex(null));
+        assertEquals(generation + "_none", router.getIndex(CountryCode.IT));
+        assertEquals(3, router.getIndices().length);
+    }
+
+    @Test
+    public void testRebuildSingleCountry() {
+        String first = importCountries(createDoc(1, "de", 13.4, 52.5), createDoc(3, "fr", 2.35, 48.85));
+        getServer().activateIndex(first);
+
+        String second = importCountries(createDoc(1, "de", 13.4, 52.5), createDoc(2, "de", 11.6, 48.1));
+        getServer().activateIndex(second, true);
+        assertEquals(Arrays.asList(first + "_fr", second + "_de"), getServer().getActiveIndices());
+
+        getServer().setDeleteDelay(0).deleteOldIndices(0);
+        assertEquals(Arrays.asList(first + "_fr", second + "_de"), getServer().getIndexGenerations());
+        assertEquals(3, getClient().prepareSearch("photon").setSize(0).execute().actionGet().getHits().getTotalHits());
+    }
+
+    @Test
+    public void testUpdaterKeepsCountryIndicesUpToDate() {
+        String generation = importCountries(createDoc(1, "de", 13.4, 52.5), createDoc(3, "fr", 2.35, 48.85));
+        getServer().activateIndex(generation);
+
+        Updater updater = new Updater(getServer(), "en", new BulkSender(getClient()));
+        // first place of a country without index
+        updater.create(createDoc(5, "it", 12.5, 41.9));
+        // place that moves to another country
+        updater.prefetch(Collections.singletonList(1L));
+        updater.updateOrCreate(createDoc(1, "fr", 2.0, 49.0));
+        // place outside the extent of its country
+        updater.create(createDoc(6, "de", 6.0, 51.0));
+        updater.finish();
+        // the place is found before it is searchable
+        updater.prefetch(Collections.singletonList(6L));
+        updater.updateOrCreate(createDoc(6, "fr", 2.1, 49.1));
+        updater.finish();
+        refresh();
+        assertFalse(getClient().prepareGet(generation + "_de", "place", "6").execute().actionGet().isExists());
+
+        assertEquals(Arrays.asList(generation + "_de", generation + "_fr", generation + "_it"), getServer().getActiveIndices());
+        assertFalse(getClient().prepareGet(generation + "_de", "place", "1").execute().actionGet().isExists());
+        assertTrue(getClient().prepareGet(generation + "_fr", "place", "1").execute().actionGet().isExists());
+
+        IndexRouter router = new IndexRouter(getClient());
+        assertArrayEquals(new String[]{generation + "_it"}, router.getIndices(new Envelope(12, 13, 41.5, 42.5), null));
+        assertArrayEquals(new String[]{generation + "_de"}, router.getIndices(new Envelope(5.5, 6.5, 50.5, 51.5), null));
+        assertArrayEquals(new String[]{generation + "_fr"}, router.getIndices(new Envelope(1.9, 2.1, 48.9, 49.1), null));
+    }
+
+    @Test
+    public void testExtendBoundingBox() {
+        double[] bbox = {10, 50, 12, 52};
+        assertSame(bbox, IndexRouter.extend(bbox, 11, 51));
+        assertArrayEquals(new double[]{9, 50, 12, 53}, IndexRouter.extend(bbox, 9, 53), 0);
+        // across the antimeridian the box grows on the closer side
+        assertArrayEquals(new double[]{170, -20, -170, -10}, IndexRouter.extend(new double[]{170, -20, 175, -10}, -170, -15), 0);
+    }
+
+    @Test
+    public void testShardRouting() throws IOException {
+        Server server = getServer();
+        String generation = server.createIndexGeneration();
+        Importer importer = new Importer(getClient(), generation, "en", new BulkSender(getClient()));
+        importer.setCountryRouting(true);
+        importer.add(createDoc(1, "de", 13.4, 52.5));
+        importer.add(createDoc(2, "fr", 2.35, 48.85));
+        importer.add(createDoc(3, null, -30, 40));
+        importer.finish();
+        server.restoreIndexSettings(generation, 0);
+        CountryRouting.writeBoundingBoxes(getClient(), generation);
+        server.activateIndex(generation);
+
+        IndexRouter router = new IndexRouter(getClient());
+        assertTrue(router.isRouted());
+        assertArrayEquals(new String[]{"photon"}, router.getIndices(new Envelope(13, 14, 52, 53), null));
+        assertEquals("de", router.getRouting(new Envelope(13, 14, 52, 53), null));
+        assertEquals("fr", router.getRouting(null, ImmutableSet.of("FR")));
+        assertEquals("fr", router.getRouting(point(2.3, 48.8), 10));
+        assertNull(router.getRouting(null, null));
+        assertEquals("none", router.getRouting((CountryCode) null));
+        assertTrue(getClient().prepareGet("photon", "place", "1").setRouting("de").execute().actionGet().isExists());
+
+        // the updater finds the shard of a deleted place by itself
+        Updater updater = new Updater(getClient(), "en");
+        updater.delete(2L);
+        updater.finish();
+        refresh();
+        assertEquals(2, getClient().prepareSearch("photon").setSize(0).execute().actionGet().getHits().getTotalHits());
+
+        // the extents of the countries follow the updates, a place that changes its country leaves its old shard
+        updater.create(createDoc(5, "it", 12.5, 41.9));
+        updater.updateOrCreate(createDoc(1, "fr", 2.0, 49.0));
+        updater.finish();
+        refresh();
+        router = new IndexRouter(getClient());
+        assertEquals("it", router.getRouting(new Envelope(12, 13, 41.5, 42.5), null));
+        assertEquals("fr", router.getRouting(new Envelope(1.9, 2.1, 48.9, 49.1), null));
+        SearchHits hits = getClient().prepareSearch("photon").setQuery(QueryBuilders.idsQuery().addIds("1")).execute().actionGet().getHits();
+        assertEquals(1, hits.getTotalHits());
+        assertEquals("fr", hits.getAt(0).getField("_routing").getValue());
+
+        // a batch is looked up on all shards at once, also before its places are searchable
+        updater.create(createDoc(6, "de", 13.4, 52.5));
+        updater.finish();
+        updater.prefetch(Arrays.asList(5L, 6L));
+        updater.updateOrCreate(createDoc(6, "fr", 2.0, 49.0));
+        updater.delete(5L);
+        updater.finish();
+        refresh();
+        hits = getClient().prepareSearch("photon").setQuery(QueryBuilders.idsQuery().addIds("5", "6")).execute().actionGet().getHits();
+        assertEquals(1, hits.getTotalHits());
+        assertEquals("fr", hits.getAt(0).getField("_routing").getValue());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testSingleCountryNeedsCountryIndices() {
+        String generation = importCountries(createDoc(1, "de", 13.4, 52.5));
+        // the index of the base tester is not split by country
+        getServer().activateIndex(generation, true);
+    }
+}
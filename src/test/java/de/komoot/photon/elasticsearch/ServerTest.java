@@ -0,0 +1,182 @@
+package de.komoot.photon.elasticsearch;
+
+import de.komoot.photon.ESBaseTester;
+import org.elasticsearch.action.admin.indices.segments.IndexShardSegments;
+import org.elasticsearch.action.admin.indices.segments.ShardSegments;
+import org.elasticsearch.common.settings.Settings;
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ServerTest extends ESBaseTester {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Settings getIndexSettings() {
+        return getClient().admin().indices().prepareGetSettings("photon").execute().actionGet()
+                .getIndexToSettings().get(getServer().getActiveIndex());
+    }
+
+    @Test
+    public void testImportSettingsAreRestored() {
+        getServer().setImportIndexSettings();
+
+        Settings settings = getIndexSettings();
+        assertEquals("-1", settings.get("index.refresh_interval"));
+        assertEquals("0", settings.get("index.number_of_replicas"));
+        assertEquals("async", settings.get("index.translog.durability"));
+
+        getServer().restoreIndexSettings(1);
+
+        settings = getIndexSettings();
+        assertNull(settings.get("index.refresh_interval"));
+        assertEquals("1", settings.get("index.number_of_replicas"));
+        assertNull(settings.get("index.translog.durability"));
+
+        for (IndexShardSegments shard : getClient().admin().indices().prepareSegments("photon").execute().actionGet()
+                .getIndices().get(getServer().getActiveIndex())) {
+            for (ShardSegments segments : shard) {
+                assertEquals(1, segments.getSegments().size());
+            }
+        }
+    }
+
+    @Test
+    public void testPreviousSettingsAreRestored() {
+        getClient().admin().indices().prepareUpdateSettings("photon").setSettings(Settings.builder()
+                .put("index.number_of_replicas", 0)
+                .put("index.refresh_interval", "5s")
+        ).execute().actionGet();
+
+        getServer().setImportIndexSettings();
+        // a second switch, e.g. of a resumed import, must not take the import settings for the previous ones
+        getServer().setImportIndexSettings();
+        getServer().restoreIndexSettings(0);
+
+        Settings settings = getIndexSettings();
+        assertEquals("5s", settings.get("index.refresh_interval"));
+        assertEquals("0", settings.get("index.number_of_replicas"));
+        assertNull(settings.get("index.translog.durability"));
+        assertNull(settings.get("index.translog.flush_threshold_size"));
+    }
+
+    @Test
+    public void testImportProfileIsStored() {
+        Server server = getServer();
+        assertTrue(server.getImportProfile().similar(new JSONObject()));
+
+        JSONObject profile = new JSONObject("{\"include\": [\"place\"], \"min_rank\": 4}");
+        server.setImportProfile(server.getActiveIndex(), profile);
+        assertTrue(server.getImportProfile().similar(profile));
+    }
+
+    @Test
+    public void testOfflineBuildIsOpenedNormally() throws IOException {
+        String dataDirectory = folder.getRoot().getAbsolutePath();
+        Server builder = new Server("photon-offline", dataDirectory, "en", "", false).setMaxShards(1).setOfflineBuild(true).start();
+        try {
+            builder.recreateIndex();
+            builder.getClient().prepareIndex("photon", "place").setId("1").setSource("osm_id", 1).execute().actionGet();
+        } finally {
+            builder.shutdown();
+        }
+
+        Server server = new Server("photon-offline", dataDirectory, "en", "", false).start();
+        try {
+            server.getClient().admin().cluster().prepareHealth("photon").setWaitForYellowStatus().execute().actionGet();
+            assertTrue(server.getClient().prepareGet("photon", "place", "1").execute().actionGet().isExists());
+        } finally {
+            server.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOfflineBuildNeedsEmbeddedNode() {
+        new Server("photon-offline", folder.getRoot().getAbsolutePath(), "en", "127.0.0.1:9300", false).setOfflineBuild(true);
+    }
+
+    private long count(String index) {
+        return getClient().prepareSearch(index).setSize(0).execute().actionGet().getHits().getTotalHits();
+    }
+
+    @Test
+    public void testIndexGenerations() throws IOException {
+        Server server = getServer();
+        String old = server.getActiveIndex();
+        long oldCount = count("photon");
+        assertTrue(oldCount > 0);
+        assertFalse(server.isPendingGeneration(old, false));
+
+        String next = server.createIndexGeneration();
+        assertTrue(server.isPendingGeneration(next, false));
+        assertFalse(server.isPendingGeneration(next, true));
+        assertEquals(old, server.getActiveIndex());
+
+        try {
+            server.activateIndex(next);
+            fail("an empty index must not be activated");
+        } catch (IllegalStateException e) {
+            assertEquals(old, server.getActiveIndex());
+        }
+
+        getClient().prepareIndex(next, "place").setId("1").setSource("osm_id", 1).execute().actionGet();
+        // the new generation is not visible before it is activated
+        assertEquals(oldCount, count("photon"));
+
+        try {
+            server.activateIndex(next, false, 2);
+            fail("an index with missing documents must not be activated");
+        } catch (IllegalStateException e) {
+            assertEquals(old, server.getActiveIndex());
+        }
+
+        server.activateIndex(next, false, 1);
+        assertEquals(next, server.getActiveIndex());
+        assertFalse(server.isPendingGeneration(next, false));
+        assertEquals(1, count("photon"));
+
+        // searches of other photon instances may still go to the old index for a while
+        long startMillis = System.currentTimeMillis();
+        server.setDeleteDelay(1000).deleteOldIndices(1);
+        assertEquals(Arrays.asList(old, next), server.getIndexGenerations());
+        server.deleteOldIndices(0);
+        assertTrue(System.currentTimeMillis() - startMillis >= 1000);
+        assertEquals(Collections.singletonList(next), server.getIndexGenerations());
+    }
+
+    @Test
+    public void testReplacesIndexWithoutGenerations() throws IOException {
+        Server server = getServer();
+        server.deleteIndex();
+        getClient().admin().indices().prepareCreate("photon").execute().actionGet();
+        assertNull(server.getActiveIndex());
+
+        String next = server.createIndexGeneration();
+        getClient().prepareIndex(next, "place").setId("1").setSource("osm_id", 1).execute().actionGet();
+        server.activateIndex(next);
+
+        assertEquals(next, server.getActiveIndex());
+        assertEquals(1, count("photon"));
+    }
+
+    @Test
+    public void testOutdatedMappingIsDetected() throws IOException {
+        Server server = getServer();
+        assertTrue(server.hasCurrentMapping());
+
+        server.deleteIndex();
+        getClient().admin().indices().prepareCreate("photon").execute().actionGet();
+        assertFalse("an index without mapping version is outdated", server.hasCurrentMapping());
+    }
+}
@@ -0,0 +1,85 @@
+package de.komoot.photon.elasticsearch;
+
+import com.google.common.collect.ImmutableMap;
+import de.komoot.photon.ESBaseTester;
+import de.komoot.photon.PhotonDoc;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.client.Requests;
+import org.elasticsearch.search.builder.SearchSourceBuilder;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class UpdaterTest extends ESBaseTester {
+    private long count() {
+        return getClient().search(Requests.searchRequest("photon").types("place").source(SearchSourceBuilder.searchSource().size(0)))
+                .actionGet().getHits().getTotalHits();
+    }
+
+    @SuppressWarnings("unchecked")
+    private String getName(long id) {
+        GetResponse response = getClient().prepareGet("photon", "place", String.valueOf(id)).execute().actionGet();
+        return response.isExists() ? (String) ((Map<String, Object>) response.getSource().get("name")).get("default") : null;
+    }
+
+    @Test
+    public void testUpdateInSmallBulks() {
+        long before = count();
+        // bulks of three changes, two of them may be in flight at the same time
+        Updater updater = new Updater(getClient(), "en", new BulkSender(getClient(), 2, 3, 1, 0));
+        for (long id = 1000; id < 1100; id++) {
+            updater.create(PhotonDoc.create(id, "N", id, ImmutableMap.of("name", "place " + id)));
+        }
+        for (long id = 1000; id < 1100; id++) {
+            // deleted and written again like a changed rank 30 place
+            updater.delete(id);
+            if (id % 2 == 0) {
+                updater.create(PhotonDoc.create(id, "N", id, ImmutableMap.of("name", "changed " + id)));
+            }
+        }
+        updater.finish();
+        refresh();
+
+        assertEquals(before + 50, count());
+        assertEquals("changed 1000", getName(1000));
+        assertNull(getName(1001));
+        assertEquals("changed 1098", getName(1098));
+        assertNull(getName(1099));
+    }
+
+    @Test
+    public void testFlush() {
+        Updater updater = new Updater(getClient(), "en");
+        updater.create(PhotonDoc.create(1000, "N", 1000, ImmutableMap.of("name", "place 1000")));
+        assertTrue(updater.flush());
+
+        // a partial update of a place that does not exist fails
+        updater.update(PhotonDoc.create(1001, "N", 1001, ImmutableMap.of("name", "place 1001")));
+        assertFalse(updater.flush());
+        assertTrue(updater.flush());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testUpdateOrCreate() {
+        Updater updater = new Updater(getClient(), "en");
+        updater.create(PhotonDoc.create(1000, "N", 1000, ImmutableMap.of("name", "place 1000", "name:en", "place")));
+        updater.finish();
+        refresh();
+        long before = count();
+
+        updater.updateOrCreate(PhotonDoc.create(1000, "N", 1000, ImmutableMap.of("name", "changed 1000")));
+        updater.updateOrCreate(PhotonDoc.create(1001, "N", 1001, ImmutableMap.of("name", "place 1001")));
+        updater.finish();
+        refresh();
+
+        assertEquals(before + 1, count());
+        assertEquals("changed 1000", getName(1000));
+        assertEquals("place 1001", getName(1001));
+        // names the place does not have anymore are gone
+        GetResponse response = getClient().prepareGet("photon", "place", "1000").execute().actionGet();
+        assertFalse(((Map<String, Object>) response.getSource().get("name")).containsKey("en"));
+    }
+}
@@ -0,0 +1,102 @@
+package de.komoot.photon.nominatim;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import de.komoot.photon.PhotonDoc;
+import de.komoot.photon.nominatim.model.AddressRow;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+public class AddressBatchResolverTest {
+
+    private static AddressRow row(long placeId, int rank) {
+        return new AddressRow(placeId, ImmutableMap.of("name", "place " + placeId), "place", "city", rank);
+    }
+
+    private static PhotonDoc doc(long placeId, long parentPlaceId, int rankAddress) {
+        return new PhotonDoc(placeId, "N", placeId, "amenity", "cafe", ImmutableMap.of("name", "doc"), null,
+                null, null, null, parentPlaceId, 0.5, "de", null, 0, rankAddress);
+    }
+
+    /**
+     * Address source with canned database answers.
+     */
+    private static class StaticSource implements AddressSource {
+        private final Map<Long, List<AddressRow>> lines;
+        private final Map<Long, AddressRow> places;
+        private final List<Collection<Long>> queriedLines = new ArrayList<>();
+
+        StaticSource(Map<Long, List<AddressRow>> lines, Map<Long, AddressRow> places) {
+            this.lines = lines;
+            this.places = places;
+        }
+
+        @Override
+        public Map<Long, List<AddressRow>> getAddressLines(Collection<Long> placeIds) {
+            queriedLines.add(new HashSet<>(placeIds));
+            Map<Long, List<AddressRow>> result = new HashMap<>();
+            for (Long placeId : placeIds) {
+                if (lines.containsKey(placeId)) {
+                    result.put(placeId, lines.get(placeId));
+                }
+            }
+            return result;
+        }
+
+        @Override
+        public Map<Long, AddressRow> getPlaces(Collection<Long> placeIds) {
+            Map<Long, AddressRow> result = new HashMap<>();
+            for (Long placeId : placeIds) {
+                if (places.containsKey(placeId)) {
+                    result.put(placeId, places.get(placeId));
+                }
+            }
+            return result;
+        }
+    }
+
+    @Test
+    public void testGroupsRowsPerDocument() {
+        AddressRow street = row(10, 26);
+        AddressRow city = row(20, 16);
+        AddressRow state = row(30, 8);
+        StaticSource source = new StaticSource(
+                ImmutableMap.<Long, List<AddressRow>>of(
+                        10L, ImmutableList.of(city, state),
+                        20L, ImmutableList.of(state)),
+                ImmutableMap.of(10L, street));
+        AddressBatchResolver resolver = new AddressBatchResolver(source);
+
+        PhotonDoc poi1 = doc(1, 10, 30);
+        PhotonDoc poi2 = doc(2, 10, 30);
+        PhotonDoc cityDoc = doc(20, 0, 16);
+
+        List<List<AddressRow>> addresses = resolver.getAddresses(ImmutableList.of(poi1, poi2, cityDoc));
+
+        assertEquals(3, addresses.size());
+        assertEquals(ImmutableList.of(street, city, state), addresses.get(0));
+        assertEquals(ImmutableList.of(street, city, state), addresses.get(1));
+        assertEquals(2, addresses.get(2).size());
+        assertEquals(20L, addresses.get(2).get(0).getPlaceId());
+        assertSame(state, addresses.get(2).get(1));
+
+        // a single lookup for all documents
+        assertEquals(1, source.queriedLines.size());
+        assertEquals(new HashSet<>(Arrays.asList(10L, 20L)), source.queriedLines.get(0));
+    }
+
+    @Test
+    public void testMissingParent() {
+        AddressBatchResolver resolver = new AddressBatchResolver(new StaticSource(
+                Collections.<Long, List<AddressRow>>emptyMap(), Collections.<Long, AddressRow>emptyMap()));
+
+        List<List<AddressRow>> addresses = resolver.getAddresses(ImmutableList.of(doc(1, 0, 30)));
+
+        assertEquals(1, addresses.size());
+        assertEquals(0, addresses.get(0).size());
+    }
+}
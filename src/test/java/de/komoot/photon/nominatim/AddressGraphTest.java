@@ -0,0 +1,105 @@
+package de.komoot.photon.nominatim;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import de.komoot.photon.nominatim.model.AddressRow;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class AddressGraphTest {
+    private final List<Long> fallbackPlaces = new ArrayList<>();
+    private final List<Long> fallbackLines = new ArrayList<>();
+    private AddressGraph graph;
+
+    @Before
+    public void setUp() {
+        graph = new AddressGraph(new AddressSource() {
+            @Override
+            public Map<Long, List<AddressRow>> getAddressLines(Collection<Long> placeIds) {
+                fallbackLines.addAll(placeIds);
+                return ImmutableMap.<Long, List<AddressRow>>of(500L, ImmutableList.of(new AddressRow(2, ImmutableMap.of("name", "City"), "place", "city", 16)));
+            }
+
+            @Override
+            public Map<Long, AddressRow> getPlaces(Collection<Long> placeIds) {
+                fallbackPlaces.addAll(placeIds);
+                return ImmutableMap.of(500L, new AddressRow(500, ImmutableMap.of("name", "Building"), "building", "yes", 30));
+            }
+        });
+
+        graph.addPlace(1, ImmutableMap.of("name", "State"), "boundary", "administrative", 8);
+        graph.addPlace(2, ImmutableMap.of("name", "City", "name:de", "Stadt"), "place", "city", 16);
+        graph.addPlace(3, ImmutableMap.of("name", "Street"), "highway", "residential", 26);
+        graph.addPlace(4, ImmutableMap.<String, String>of(), "highway", "service", 27);
+
+        graph.addLine(2, 1);
+        graph.addLine(3, 2);
+        graph.addLine(3, 1);
+        graph.addLine(100, 3);
+        // address place with a rank or country outside the graph
+        graph.addLine(101, 2);
+        graph.addLine(101, 500);
+        graph.addLine(101, 1);
+        graph.finishLines();
+    }
+
+    @Test
+    public void testGetPlaces() {
+        Map<Long, AddressRow> places = graph.getPlaces(Arrays.asList(2L, 3L));
+
+        assertEquals(2, places.size());
+        AddressRow city = places.get(2L);
+        assertEquals("Stadt", city.getName().get("name:de"));
+        assertEquals("place", city.getOsmKey());
+        assertEquals("city", city.getOsmValue());
+        assertEquals(16, city.getRankAddress());
+        assertTrue(fallbackPlaces.isEmpty());
+    }
+
+    @Test
+    public void testGetAddressLinesKeepsOrder() {
+        Map<Long, List<AddressRow>> lines = graph.getAddressLines(Arrays.asList(3L, 100L, 4L));
+
+        assertEquals(2, lines.get(3L).size());
+        assertEquals(2L, lines.get(3L).get(0).getPlaceId());
+        assertEquals(1L, lines.get(3L).get(1).getPlaceId());
+        assertEquals(1, lines.get(100L).size());
+        // place of the graph without any lines
+        assertNull(lines.get(4L));
+        assertTrue(fallbackLines.isEmpty());
+    }
+
+    @Test
+    public void testAddressPlacesOutsideGraph() {
+        List<AddressRow> lines = graph.getAddressLines(Collections.singletonList(101L)).get(101L);
+
+        assertEquals(3, lines.size());
+        assertEquals(2L, lines.get(0).getPlaceId());
+        assertEquals("Building", lines.get(1).getName().get("name"));
+        assertEquals(1L, lines.get(2).getPlaceId());
+        assertEquals(Collections.singletonList(500L), fallbackPlaces);
+        assertTrue(fallbackLines.isEmpty());
+    }
+
+    @Test
+    public void testFallbackForUnknownPlaces() {
+        Map<Long, AddressRow> places = graph.getPlaces(Arrays.asList(3L, 500L, 0L));
+        Map<Long, List<AddressRow>> lines = graph.getAddressLines(Collections.singletonList(500L));
+
+        assertEquals(2, places.size());
+        assertEquals("Building", places.get(500L).getName().get("name"));
+        assertEquals(1, lines.get(500L).size());
+        assertEquals(Collections.singletonList(500L), fallbackPlaces);
+        assertEquals(Collections.singletonList(500L), fallbackLines);
+        assertEquals(2, graph.getFallbackLookups());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPlacesMustBeOrdered() {
+        graph.addPlace(2, ImmutableMap.of("name", "again"), "place", "city", 16);
+    }
+}
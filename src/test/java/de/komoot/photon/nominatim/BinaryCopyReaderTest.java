@@ -0,0 +1,111 @@
+package de.komoot.photon.nominatim;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class BinaryCopyReaderTest {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    private final DataOutputStream out = new DataOutputStream(bytes);
+
+    private void writeHeader() throws IOException {
+        out.write(new byte[]{'P', 'G', 'C', 'O', 'P', 'Y', '\n', (byte) 0xff, '\r', '\n', 0});
+        out.writeInt(0);
+        out.writeInt(4);
+        out.writeInt(42); // unknown header extension
+    }
+
+    private void writeText(String text) throws IOException {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(data.length);
+        out.write(data);
+    }
+
+    private BinaryCopyReader reader() throws IOException {
+        return new BinaryCopyReader(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    public void testReadRow() throws IOException {
+        writeHeader();
+        out.writeShort(6);
+        out.writeInt(8);
+        out.writeLong(1234567890123L);
+        out.writeInt(-1); // null bigint
+        out.writeInt(4);
+        out.writeInt(30);
+        out.writeInt(8);
+        out.writeDouble(0.25);
+        writeText("Straße");
+        // hstore with two entries, one of them null
+        ByteArrayOutputStream hstore = new ByteArrayOutputStream();
+        DataOutputStream hout = new DataOutputStream(hstore);
+        hout.writeInt(2);
+        hout.writeInt(4);
+        hout.write("name".getBytes(StandardCharsets.UTF_8));
+        hout.writeInt(6);
+        hout.write("Berlin".getBytes(StandardCharsets.UTF_8));
+        hout.writeInt(7);
+        hout.write("name:de".getBytes(StandardCharsets.UTF_8));
+        hout.writeInt(-1);
+        out.writeInt(hstore.size());
+        out.write(hstore.toByteArray());
+        out.writeShort(-1);
+
+        BinaryCopyReader reader = reader();
+        assertTrue(reader.nextRow());
+        assertEquals(1234567890123L, reader.readLong(0));
+        assertEquals(-5, reader.readLong(-5));
+        assertEquals(30, reader.readInt(0));
+        assertEquals(0.25, reader.readDouble(), 0.0);
+        assertEquals("Straße", reader.readString());
+        Map<String, String> map = reader.readHstore();
+        assertEquals(2, map.size());
+        assertEquals("Berlin", map.get("name"));
+        assertTrue(map.containsKey("name:de"));
+        assertNull(map.get("name:de"));
+        assertFalse(reader.nextRow());
+    }
+
+    @Test
+    public void testNullValues() throws IOException {
+        writeHeader();
+        out.writeShort(3);
+        for (int i = 0; i < 3; i++) {
+            out.writeInt(-1);
+        }
+        out.writeShort(-1);
+
+        BinaryCopyReader reader = reader();
+        assertTrue(reader.nextRow());
+        assertNull(reader.readDouble());
+        assertNull(reader.readString());
+        assertTrue(reader.readHstore().isEmpty());
+        assertFalse(reader.nextRow());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testUnreadFields() throws IOException {
+        writeHeader();
+        out.writeShort(1);
+        writeText("a");
+        out.writeShort(-1);
+
+        BinaryCopyReader reader = reader();
+        reader.nextRow();
+        reader.nextRow();
+    }
+
+    @Test(expected = IOException.class)
+    public void testNotCopyFormat() throws IOException {
+        out.write("place_id\tosm_id\n".getBytes(StandardCharsets.UTF_8));
+        reader();
+    }
+}
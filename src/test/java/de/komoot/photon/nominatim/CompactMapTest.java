@@ -0,0 +1,48 @@
+package de.komoot.photon.nominatim;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class CompactMapTest {
+
+    @Test
+    public void testBehavesLikeMap() {
+        Map<String, String> source = ImmutableMap.of("name", "Berlin", "name:fr", "Berlin", "ref", "B");
+
+        CompactMap map = CompactMap.copyOf(source);
+
+        assertEquals(source, map);
+        assertEquals(source.hashCode(), map.hashCode());
+        assertEquals(3, map.size());
+        assertEquals("B", map.get("ref"));
+        assertNull(map.get("name:de"));
+        assertTrue(map.containsKey("name:fr"));
+        assertEquals(source, new HashMap<>(map));
+    }
+
+    @Test
+    public void testKeysAreInterned() {
+        CompactMap first = CompactMap.ofEntries(new String[]{new String("name"), "A"});
+        CompactMap second = CompactMap.ofEntries(new String[]{new String("name"), "B"});
+
+        assertSame(first.keySet().iterator().next(), second.keySet().iterator().next());
+    }
+
+    @Test
+    public void testEmpty() {
+        assertSame(CompactMap.empty(), CompactMap.copyOf(null));
+        assertSame(CompactMap.empty(), CompactMap.copyOf(new HashMap<String, String>()));
+        assertSame(CompactMap.empty(), CompactMap.ofEntries(new String[0]));
+        assertTrue(CompactMap.empty().isEmpty());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testImmutable() {
+        CompactMap.copyOf(ImmutableMap.of("name", "A")).put("name", "B");
+    }
+}
@@ -0,0 +1,44 @@
+package de.komoot.photon.nominatim;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ImportCheckpointTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testResumeFromSavedCheckpoint() throws Exception {
+        File file = new File(folder.getRoot(), "checkpoint.json");
+        List<ScanPartition> partitions = ScanPartition.split(ScanPartition.Table.PLACEX, 0, 99, 4);
+
+        ImportCheckpoint checkpoint = ImportCheckpoint.create(file, "photon_20200101000000000", "'de'", partitions);
+        checkpoint.markCompleted(Collections.singletonList(partitions.get(1)), 1234);
+
+        ImportCheckpoint loaded = ImportCheckpoint.load(file);
+        assertEquals("photon_20200101000000000", loaded.getIndexName());
+        assertEquals("'de'", loaded.getCountryCodes());
+        assertEquals(4, loaded.getPartitions().size());
+        assertEquals(1, loaded.getCompletedCount());
+        assertEquals(1234, loaded.getDocumentCount());
+        for (int i = 0; i < partitions.size(); i++) {
+            assertEquals(partitions.get(i).toString(), loaded.getPartitions().get(i).toString());
+            assertEquals(partitions.get(i).getSectorCondition(), loaded.getPartitions().get(i).getSectorCondition());
+        }
+        assertFalse(loaded.isCompleted(loaded.getPartitions().get(0)));
+        assertTrue(loaded.isCompleted(loaded.getPartitions().get(1)));
+        assertFalse(new File(folder.getRoot(), "checkpoint.json.tmp").exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testInvalidPartition() {
+        ScanPartition.fromString("place[1,2)");
+    }
+}
@@ -0,0 +1,63 @@
+package de.komoot.photon.nominatim;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.*;
+
+public class ImportProfileTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testEverything() {
+        assertEquals("", ImportProfile.ALL.getPlacexCondition());
+        assertEquals("name", ImportProfile.ALL.getNameColumn());
+        assertTrue(ImportProfile.ALL.includesInterpolations());
+    }
+
+    @Test
+    public void testCitiesAndStreets() throws Exception {
+        File file = new File(folder.getRoot(), "profile.json");
+        Files.write(file.toPath(), ("{\"include\": [\"place\", \"highway:residential\"], \"exclude\": [\"place:house\"],"
+                + " \"min_rank\": 4, \"max_rank\": 26, \"min_importance\": 0.1, \"name_variants\": [\"alt\"]}").getBytes(StandardCharsets.UTF_8));
+        ImportProfile profile = ImportProfile.load(file);
+
+        assertEquals(" AND (class = 'place' OR (class = 'highway' AND type = 'residential'))"
+                + " AND NOT ((class = 'place' AND type = 'house'))"
+                + " AND rank_search BETWEEN 4 AND 26"
+                + " AND coalesce(importance, 0.75 - rank_search / 40.0) >= 0.1", profile.getPlacexCondition());
+        assertEquals("(name - ARRAY['int_name', 'loc_name', 'old_name', 'reg_name', 'addr:housename']) AS name", profile.getNameColumn());
+        assertFalse(profile.includesInterpolations());
+        assertEquals(profile.getPlacexCondition(), ImportProfile.parse(profile.toJson()).getPlacexCondition());
+        assertEquals(profile.getNameColumn(), ImportProfile.parse(profile.toJson()).getNameColumn());
+    }
+
+    @Test
+    public void testInterpolations() {
+        assertTrue(ImportProfile.parse(new JSONObject("{\"include\": [\"place:house_number\"]}")).includesInterpolations());
+        assertFalse(ImportProfile.parse(new JSONObject("{\"exclude\": [\"place\"]}")).includesInterpolations());
+        assertFalse(ImportProfile.parse(new JSONObject("{\"max_rank\": 26}")).includesInterpolations());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsQuotes() {
+        ImportProfile.parse(new JSONObject("{\"include\": [\"place' OR true --\"]}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownKeys() {
+        ImportProfile.parse(new JSONObject("{\"min_rnak\": 4}"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRejectsUnknownNameVariants() {
+        ImportProfile.parse(new JSONObject("{\"name_variants\": [\"official\"]}"));
+    }
+}
@@ -0,0 +1,30 @@
+package de.komoot.photon.nominatim;
+
+import org.junit.Test;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ImportStageTest {
+
+    @Test
+    public void testReport() {
+        BlockingQueue<String> input = new ArrayBlockingQueue<>(4);
+        BlockingQueue<String> output = new ArrayBlockingQueue<>(4);
+        ImportStage stage = new ImportStage("complete", "places", 2, input);
+
+        stage.put(input, "a");
+        stage.put(input, "b");
+        assertEquals("a", stage.take(input));
+        stage.processed(10);
+        stage.put(output, "a");
+
+        assertEquals(10, stage.getItems());
+        String report = stage.report();
+        assertTrue(report, report.startsWith("complete [2 thread(s)]: "));
+        assertTrue(report, report.contains(" places/second, queue 1/4, busy "));
+    }
+}
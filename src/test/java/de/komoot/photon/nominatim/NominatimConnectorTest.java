@@ -1,8 +1,16 @@
 package de.komoot.photon.nominatim;
 
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Point;
 import org.junit.Test;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 public class NominatimConnectorTest {
 
@@ -12,4 +20,44 @@ public class NominatimConnectorTest {
         assertEquals("'uk'", NominatimConnector.convertCountryCode("uk".split(",")));
         assertEquals("'uk','de'", NominatimConnector.convertCountryCode("uk,de".split(",")));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testPlaceExtratags() {
+        assertTrue(NominatimConnector.getPlaceExtratags(null, null).isEmpty());
+
+        Map<String, String> extratags = NominatimConnector.getPlaceExtratags("city", "town");
+        assertEquals(2, extratags.size());
+        assertEquals("city", extratags.get("place"));
+        assertEquals("town", extratags.get("linked_place"));
+    }
+
+    @Test
+    public void testCoordinates() {
+        assertEquals(new Envelope(1.0, 3.0, 2.0, 4.0), NominatimConnector.getEnvelope(1.0, 2.0, 3.0, 4.0));
+        assertNull(NominatimConnector.getEnvelope(null, null, null, null));
+
+        Point point = NominatimConnector.getPoint(13.4, 52.5);
+        assertEquals(13.4, point.getX(), 0.0);
+        assertEquals(52.5, point.getY(), 0.0);
+        assertEquals(4326, point.getSRID());
+        assertNull(NominatimConnector.getPoint(null, 52.5));
+    }
+
+    @Test
+    public void testPartitionDocumentsAreCountedWhenComplete() {
+        List<ScanPartition> partitions = ScanPartition.split(ScanPartition.Table.PLACEX, 0, 100, 2);
+        NominatimConnector.PartitionTracker tracker = new NominatimConnector.PartitionTracker();
+        tracker.batchSent(partitions.get(0));
+        tracker.batchSent(partitions.get(0));
+        tracker.batchSent(partitions.get(1));
+        tracker.scanFinished(partitions.get(0));
+
+        assertTrue(tracker.batchAdded(partitions.get(0), 10).isEmpty());
+        // the second partition is still being read, its documents are not part of the count
+        assertTrue(tracker.batchAdded(partitions.get(1), 7).isEmpty());
+        assertEquals(Collections.singletonMap(partitions.get(0), 15L), tracker.batchAdded(partitions.get(0), 5));
+
+        tracker.scanFinished(partitions.get(1));
+        assertEquals(Collections.singletonMap(partitions.get(1), 7L), tracker.getCompletedPartitions());
+    }
+}
@@ -0,0 +1,40 @@
+package de.komoot.photon.nominatim;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ScanPartitionTest {
+
+    @Test
+    public void testSinglePartition() {
+        List<ScanPartition> partitions = ScanPartition.split(ScanPartition.Table.PLACEX, 10, 100, 1);
+
+        assertEquals(1, partitions.size());
+        assertEquals("", partitions.get(0).getSectorCondition());
+        assertEquals(ScanPartition.Table.PLACEX, partitions.get(0).getTable());
+    }
+
+    @Test
+    public void testSplitCoversRange() {
+        List<ScanPartition> partitions = ScanPartition.split(ScanPartition.Table.OSMLINE, 0, 99, 4);
+
+        assertEquals(4, partitions.size());
+        assertEquals(" AND (geometry_sector < 25 OR geometry_sector IS NULL)", partitions.get(0).getSectorCondition());
+        assertEquals(" AND geometry_sector >= 25 AND geometry_sector < 50", partitions.get(1).getSectorCondition());
+        assertEquals(" AND geometry_sector >= 50 AND geometry_sector < 75", partitions.get(2).getSectorCondition());
+        assertEquals(" AND geometry_sector >= 75", partitions.get(3).getSectorCondition());
+        assertEquals("location_property_osmline[50,75)", partitions.get(2).toString());
+    }
+
+    @Test
+    public void testNoMorePartitionsThanSectors() {
+        List<ScanPartition> partitions = ScanPartition.split(ScanPartition.Table.PLACEX, 5, 6, 10);
+
+        assertEquals(2, partitions.size());
+        assertEquals(" AND (geometry_sector < 6 OR geometry_sector IS NULL)", partitions.get(0).getSectorCondition());
+        assertEquals(" AND geometry_sector >= 6", partitions.get(1).getSectorCondition());
+    }
+}
@@ -0,0 +1,95 @@
+package de.komoot.photon.nominatim;
+
+import de.komoot.photon.Updater;
+import org.junit.Test;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+public class SectorWorkerPoolTest {
+
+    @Test
+    public void testSingleUpdaterRunsOnCaller() {
+        Updater updater = mock(Updater.class);
+        SectorWorkerPool pool = new SectorWorkerPool(Collections.singletonList(updater));
+        final List<Thread> threads = new ArrayList<>();
+        pool.submit(u -> {
+            assertSame(updater, u);
+            threads.add(Thread.currentThread());
+        });
+        pool.await();
+        pool.close();
+
+        assertEquals(Collections.singletonList(Thread.currentThread()), threads);
+    }
+
+    @Test
+    public void testAwaitIsBarrier() {
+        List<Updater> updaters = Arrays.asList(mock(Updater.class), mock(Updater.class), mock(Updater.class));
+        SectorWorkerPool pool = new SectorWorkerPool(updaters);
+        final AtomicInteger done = new AtomicInteger();
+        final Set<Updater> used = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        try {
+            for (int rank = 1; rank <= 3; rank++) {
+                final int expectedBefore = (rank - 1) * 20;
+                for (int sector = 0; sector < 20; sector++) {
+                    pool.submit(u -> {
+                        // all sectors of the lower ranks are done
+                        assertTrue(done.get() >= expectedBefore);
+                        used.add(u);
+                        try {
+                            Thread.sleep(5);
+                        } catch (InterruptedException e) {
+                            throw new IllegalStateException(e);
+                        }
+                        done.incrementAndGet();
+                    });
+                }
+                pool.await();
+                assertEquals(rank * 20, done.get());
+            }
+        } finally {
+            pool.close();
+        }
+
+        assertEquals(new HashSet<>(updaters), used);
+    }
+
+    @Test
+    public void testFailureOfSector() {
+        SectorWorkerPool pool = new SectorWorkerPool(Arrays.asList(mock(Updater.class), mock(Updater.class)));
+        try {
+            pool.submit(u -> {
+                throw new IllegalStateException("sector failed");
+            });
+            pool.await();
+            fail("failure of sector not reported");
+        } catch (IllegalStateException e) {
+            assertEquals("sector failed", e.getMessage());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testErrorOfSector() {
+        SectorWorkerPool pool = new SectorWorkerPool(Arrays.asList(mock(Updater.class), mock(Updater.class)));
+        try {
+            for (int i = 0; i < 4; i++) {
+                pool.submit(u -> {
+                    throw new AssertionError("sector failed");
+                });
+            }
+            pool.await();
+            fail("error of sector not reported");
+        } catch (IllegalStateException e) {
+            assertTrue(e.getCause() instanceof AssertionError);
+        } finally {
+            pool.close();
+        }
+    }
+}
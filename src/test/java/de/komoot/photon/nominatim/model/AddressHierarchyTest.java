@@ -0,0 +1,96 @@
+package de.komoot.photon.nominatim.model;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import de.komoot.photon.PhotonDoc;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class AddressHierarchyTest {
+
+    private static AddressRow row(String name, String osmKey, String osmValue, int rank) {
+        return new AddressRow(rank, ImmutableMap.of("name", name), osmKey, osmValue, rank);
+    }
+
+    private static PhotonDoc poi() {
+        return new PhotonDoc(1, "N", 1, "amenity", "cafe", ImmutableMap.of("name", "cafe"), null,
+                null, null, null, 2, 0.5, "de", null, 0, 30);
+    }
+
+    @Test
+    public void testSortsAddressParts() {
+        AddressHierarchy hierarchy = AddressHierarchy.fromAddressRows(ImmutableList.of(
+                row("Main Street", "highway", "residential", 26),
+                row("Old Town", "place", "neighbourhood", 22),
+                row("Centre", "place", "suburb", 18),
+                row("Village", "place", "village", 16),
+                row("Municipality", "boundary", "administrative", 14),
+                row("County", "boundary", "administrative", 12),
+                row("State", "boundary", "administrative", 8)));
+
+        assertEquals("Main Street", hierarchy.getStreet().get("name"));
+        assertEquals("Old Town", hierarchy.getLocality().get("name"));
+        assertEquals("Centre", hierarchy.getDistrict().get("name"));
+        assertEquals("Village", hierarchy.getCity().get("name"));
+        assertEquals("County", hierarchy.getCounty().get("name"));
+        assertEquals("State", hierarchy.getState().get("name"));
+        assertTrue(hierarchy.getContext().isEmpty());
+    }
+
+    @Test
+    public void testSecondStreetGoesNowhere() {
+        AddressHierarchy hierarchy = AddressHierarchy.fromAddressRows(ImmutableList.of(
+                row("Main Street", "highway", "residential", 26),
+                row("Side Street", "highway", "residential", 26),
+                row("Hill", "place", "locality", 25),
+                row("Quarter", "landuse", "residential", 20)));
+
+        assertEquals("Main Street", hierarchy.getStreet().get("name"));
+        assertEquals("Hill", hierarchy.getLocality().get("name"));
+        assertEquals("Quarter", hierarchy.getDistrict().get("name"));
+        assertEquals(0, hierarchy.getContext().size());
+    }
+
+    @Test
+    public void testApplyToSharesHierarchy() {
+        AddressHierarchy hierarchy = AddressHierarchy.fromAddressRows(ImmutableList.of(
+                row("Main Street", "highway", "residential", 26),
+                row("Town", "place", "town", 16),
+                row("Region", "place", "region", 3),
+                row("Island", "place", "island", 17),
+                row("Islet", "place", "islet", 20)));
+
+        PhotonDoc doc1 = poi();
+        PhotonDoc doc2 = poi();
+        hierarchy.applyTo(doc1);
+        hierarchy.applyTo(doc2);
+
+        assertSame(doc1.getStreet(), doc2.getStreet());
+        assertEquals("Town", doc1.getCity().get("name"));
+        assertEquals(1, doc1.getContext().size());
+        assertEquals("Islet", doc1.getContext().iterator().next().get("name"));
+
+        // the context set of a document is its own
+        doc1.getContext().add(ImmutableMap.of("name", "extra"));
+        assertEquals(1, doc2.getContext().size());
+        assertEquals(1, hierarchy.getContext().size());
+    }
+
+    @Test
+    public void testCompleteFromAddressDoesNotModifySharedNames() {
+        AddressHierarchy hierarchy = AddressHierarchy.fromAddressRows(ImmutableList.of(
+                row("Main Street", "highway", "residential", 26)));
+        Map<String, String> sharedStreet = hierarchy.getStreet();
+
+        PhotonDoc doc = new PhotonDoc(1, "N", 1, "amenity", "cafe", ImmutableMap.of("name", "cafe"), null,
+                ImmutableMap.of("street", "Other Street"), null, null, 2, 0.5, "de", null, 0, 30);
+        hierarchy.applyTo(doc);
+        doc.completeFromAddress();
+
+        assertEquals("Other Street", doc.getStreet().get("name"));
+        assertEquals("Main Street", sharedStreet.get("name"));
+    }
+}
@@ -260,6 +260,54 @@ public class PhotonRequestFactoryTest {
     }
 
 
+    @Test
+    public void testWithCountryCodes() throws Exception {
+        Request mockRequest = Mockito.mock(Request.class);
+        Mockito.when(mockRequest.queryParams("q")).thenReturn("berlin");
+        Mockito.when(mockRequest.queryParams("countrycode")).thenReturn("de, at");
+        QueryParamsMap mockQueryParamsMap = Mockito.mock(QueryParamsMap.class);
+        Mockito.when(mockRequest.queryMap("osm_tag")).thenReturn(mockQueryParamsMap);
+        PhotonRequestFactory photonRequestFactory = new PhotonRequestFactory(ImmutableList.of("en"), "en");
+        photonRequest = photonRequestFactory.create(mockRequest);
+        Assert.assertEquals(ImmutableSet.of("DE", "AT"), photonRequest.getCountryCodes());
+    }
+
+    @Test
+    public void testWithBadCountryCode() throws Exception {
+        Request mockRequest = Mockito.mock(Request.class);
+        Mockito.when(mockRequest.queryParams("q")).thenReturn("berlin");
+        Mockito.when(mockRequest.queryParams("countrycode")).thenReturn("de,deu");
+        QueryParamsMap mockQueryParamsMap = Mockito.mock(QueryParamsMap.class);
+        Mockito.when(mockRequest.queryMap("osm_tag")).thenReturn(mockQueryParamsMap);
+
+        try {
+            PhotonRequestFactory photonRequestFactory = new PhotonRequestFactory(ImmutableList.of("en"), "en");
+            photonRequestFactory.create(mockRequest);
+            Assert.fail();
+        } catch (BadRequestException e) {
+            Assert.assertEquals(400, e.getHttpStatus());
+        }
+    }
+
+    @Test
+    public void testCountryCodeRefusedForOutdatedIndex() throws Exception {
+        Request mockRequest = Mockito.mock(Request.class);
+        Mockito.when(mockRequest.queryParams("q")).thenReturn("berlin");
+        QueryParamsMap mockQueryParamsMap = Mockito.mock(QueryParamsMap.class);
+        Mockito.when(mockRequest.queryMap("osm_tag")).thenReturn(mockQueryParamsMap);
+        PhotonRequestFactory photonRequestFactory = new PhotonRequestFactory(ImmutableList.of("en"), "en", false);
+        photonRequest = photonRequestFactory.create(mockRequest);
+        Assert.assertTrue(photonRequest.getCountryCodes().isEmpty());
+
+        Mockito.when(mockRequest.queryParams("countrycode")).thenReturn("de");
+        try {
+            photonRequestFactory.create(mockRequest);
+            Assert.fail();
+        } catch (BadRequestException e) {
+            Assert.assertEquals(400, e.getHttpStatus());
+        }
+    }
+
     public void testBoundingBoxResponse(double minLon, double minLat, double maxLon, double maxLat) {
         Request mockRequest = Mockito.mock(Request.class);
         Mockito.when(mockRequest.queryParams("q")).thenReturn("hanover");